@@ -0,0 +1,102 @@
+package com.prabh.Archiver;
+
+import com.prabh.Benchmarks.RecordSizes;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.CompressionType;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// TopicPartitionWriter.addToBuffer : record encoding, codec and block compression of one poll
+// Lives in the archiver package so the batch can be written to a discarding output instead of the disk,
+// which keeps the filesystem out of the numbers and the iterations free of multi GB files
+// One operation is one record
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AddToBufferBenchmark {
+    private static final String TOPIC = "benchmark";
+    private static final int RECORDS_PER_POLL = 256;
+    private static final int POLLS = 8;
+
+    @Param({"none", "gzip", "snappy", "lz4", "zstd"})
+    public String compression;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    @Param({"SMALL", "MEDIUM", "LARGE", "MIXED"})
+    public String recordSizes;
+
+    private final List<List<ConsumerRecord<byte[], byte[]>>> polls = new ArrayList<>(POLLS);
+    private BatchConfig config;
+    private TopicPartitionWriter writer;
+    private int nextPoll = 0;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        RecordSizes sizes = RecordSizes.valueOf(recordSizes);
+        for (int i = 0; i < POLLS; i++) {
+            polls.add(sizes.generate(TOPIC, (long) i * RECORDS_PER_POLL, RECORDS_PER_POLL, i));
+        }
+        config = BatchConfig.of(CompressionType.getCompressionType(compression),
+                ArchiveFormat.getArchiveFormat(format));
+    }
+
+    // A fresh batch per iteration, so every iteration also pays for opening the codec once
+    @Setup(Level.Iteration)
+    public void openBatch() {
+        writer = new TopicPartitionWriter(polls.get(0).get(0), config, config.rollover.initialLimits(),
+                (leader, batchConfig, path) -> new DiscardingOutput());
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeBatch() throws IOException {
+        writer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS_PER_POLL)
+    public void addToBuffer() {
+        writer.addToBuffer(polls.get(nextPoll));
+        nextPoll = (nextPoll + 1) % POLLS;
+    }
+
+    // Counts what the writer emits and drops it
+    static class DiscardingOutput extends BatchOutput {
+        private long written = 0;
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+
+        @Override
+        CompletableFuture<Void> commit(String key) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        long size() {
+            return written;
+        }
+
+        @Override
+        CompletableFuture<Void> commitSidecar(String key, byte[] data) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}
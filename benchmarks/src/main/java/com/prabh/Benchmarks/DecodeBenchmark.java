@@ -0,0 +1,122 @@
+package com.prabh.Benchmarks;
+
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.ArchivedRecord;
+import com.prabh.Utils.CompressionType;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The fetcher's read path : an archived batch decoded back into records the way ProducerService does it,
+// from the downloaded file and from the in memory stream, and CompressionType.wrapInputStream on its own
+// One operation is one record
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DecodeBenchmark {
+    private static final int RECORDS = 4096;
+
+    @Param({"none", "gzip", "snappy", "lz4", "zstd"})
+    public String compression;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    @Param({"SMALL", "MEDIUM", "LARGE", "MIXED"})
+    public String recordSizes;
+
+    private CompressionType compressionType;
+    private ArchiveFormat archiveFormat;
+    private String batchName;
+    private byte[] batch;
+    private File batchFile;
+    private final byte[] readBuffer = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void encode() throws IOException {
+        compressionType = CompressionType.getCompressionType(compression);
+        archiveFormat = ArchiveFormat.getArchiveFormat(format);
+        List<ConsumerRecord<byte[], byte[]>> records = RecordSizes.valueOf(recordSizes)
+                .generate("benchmark", 0, RECORDS, 42);
+
+        // named like an archived object so the reader is picked from the name, as the fetcher does
+        batchName = "0_0_" + (RECORDS - 1);
+        if (!archiveFormat.extension.equals("")) {
+            batchName += "." + archiveFormat.extension;
+        }
+        if (!compressionType.extension.equals("")) {
+            batchName += "." + compressionType.extension;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new BufferedOutputStream(compressionType.wrapOutputStream(bytes))) {
+            ArchiveFormat.RecordWriter writer = archiveFormat.newWriter(out);
+            for (ConsumerRecord<byte[], byte[]> record : records) {
+                writer.write(record);
+            }
+            writer.finish();
+        }
+        batch = bytes.toByteArray();
+
+        batchFile = File.createTempFile("decode-", "-" + batchName);
+        Files.write(batchFile.toPath(), batch);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        batchFile.delete();
+    }
+
+    private int readAll(ArchiveFormat.RecordReader reader, Blackhole bh) throws IOException {
+        int count = 0;
+        ArchivedRecord record;
+        while ((record = reader.next()) != null) {
+            bh.consume(record);
+            count++;
+        }
+        return count;
+    }
+
+    // ProducerService.getStreamReader : objects streamed without touching the disk
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int decodeStream(Blackhole bh) throws IOException {
+        try (ArchiveFormat.RecordReader reader = ArchiveFormat.fromFileName(batchName).newReader(
+                CompressionType.fromFileName(batchName).wrapInputStream(new ByteArrayInputStream(batch)))) {
+            return readAll(reader, bh);
+        }
+    }
+
+    // ProducerService.getFileReader : objects downloaded to the local cache first
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int decodeFile(Blackhole bh) throws IOException {
+        try (ArchiveFormat.RecordReader reader = ArchiveFormat.fromFileName(batchName).newReader(
+                CompressionType.fromFileName(batchName).wrapInputStream(
+                        new BufferedInputStream(new FileInputStream(batchFile))))) {
+            return readAll(reader, bh);
+        }
+    }
+
+    // The codec alone, without splitting the stream into records
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long decompress() throws IOException {
+        long total = 0;
+        try (InputStream in = compressionType.wrapInputStream(new ByteArrayInputStream(batch))) {
+            int n;
+            while ((n = in.read(readBuffer)) > 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+}
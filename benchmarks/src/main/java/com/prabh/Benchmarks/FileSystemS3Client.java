@@ -0,0 +1,213 @@
+package com.prabh.Benchmarks;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+// Stand-in for S3 that stores objects as files under a local directory, for load tests without AWS
+// Every request is delayed by the configured latency (plus a transfer time per MB), and data requests
+// are throttled with a 503 SlowDown at the configured rate, like S3 does under too many requests per prefix
+// Only the calls the archiver makes are implemented
+public class FileSystemS3Client implements S3Client {
+    private final Path root;
+    private final long latencyMs;
+    private final long jitterMs;
+    private final double msPerMB;
+    private final double throttleRate;
+    // Called with the key and the time an object became visible under its final key
+    private final BiConsumer<String, Long> storedListener;
+
+    public FileSystemS3Client(Path _root, long _latencyMs, long _jitterMs, double _msPerMB, double _throttleRate,
+                              BiConsumer<String, Long> _storedListener) {
+        this.root = _root;
+        this.latencyMs = _latencyMs;
+        this.jitterMs = _jitterMs;
+        this.msPerMB = _msPerMB;
+        this.throttleRate = _throttleRate;
+        this.storedListener = _storedListener;
+    }
+
+    public Path pathOf(String bucket, String key) {
+        return root.resolve(bucket).resolve(key);
+    }
+
+    private Path uploadDir(String uploadId) {
+        return root.resolve(".multipart").resolve(uploadId);
+    }
+
+    private void delay(long bytes) {
+        long ms = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0)
+                + (long) (msPerMB * bytes / (1024 * 1024));
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void maybeThrottle() {
+        if (throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+            throw (S3Exception) S3Exception.builder()
+                    .statusCode(503)
+                    .awsErrorDetails(AwsErrorDetails.builder()
+                            .errorCode("SlowDown")
+                            .errorMessage("Please reduce your request rate.")
+                            .build())
+                    .build();
+        }
+    }
+
+    // Written next to the target and moved over, so readers never see a partial object
+    private long write(Path target, RequestBody body) {
+        try {
+            Files.createDirectories(target.getParent());
+            Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+            long length;
+            try (InputStream in = body.contentStreamProvider().newStream();
+                 OutputStream out = Files.newOutputStream(temp)) {
+                length = in.transferTo(out);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return length;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void stored(String key) {
+        if (storedListener != null) {
+            storedListener.accept(key, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public GetBucketAclResponse getBucketAcl(GetBucketAclRequest request) {
+        delay(0);
+        return GetBucketAclResponse.builder().build();
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+        maybeThrottle();
+        long length = write(pathOf(request.bucket(), request.key()), body);
+        delay(length);
+        stored(request.key());
+        return PutObjectResponse.builder().eTag(UUID.randomUUID().toString()).build();
+    }
+
+    @Override
+    public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+        maybeThrottle();
+        delay(0);
+        String uploadId = UUID.randomUUID().toString();
+        try {
+            Files.createDirectories(uploadDir(uploadId));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return CreateMultipartUploadResponse.builder()
+                .bucket(request.bucket()).key(request.key()).uploadId(uploadId).build();
+    }
+
+    @Override
+    public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+        maybeThrottle();
+        long length = write(uploadDir(request.uploadId()).resolve(String.valueOf(request.partNumber())), body);
+        delay(length);
+        return UploadPartResponse.builder().eTag(String.valueOf(request.partNumber())).build();
+    }
+
+    @Override
+    public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        delay(0);
+        Path target = pathOf(request.bucket(), request.key());
+        Path parts = uploadDir(request.uploadId());
+        try {
+            Files.createDirectories(target.getParent());
+            try (OutputStream out = Files.newOutputStream(target)) {
+                for (CompletedPart part : request.multipartUpload().parts()) {
+                    Files.copy(parts.resolve(String.valueOf(part.partNumber())), out);
+                }
+            }
+            deleteRecursively(parts);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        stored(request.key());
+        return CompleteMultipartUploadResponse.builder().bucket(request.bucket()).key(request.key()).build();
+    }
+
+    @Override
+    public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+        delay(0);
+        try {
+            deleteRecursively(uploadDir(request.uploadId()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return AbortMultipartUploadResponse.builder().build();
+    }
+
+    @Override
+    public CopyObjectResponse copyObject(CopyObjectRequest request) {
+        Path source = pathOf(request.sourceBucket(), request.sourceKey());
+        Path target = pathOf(request.destinationBucket(), request.destinationKey());
+        try {
+            delay(Files.size(source));
+            Files.createDirectories(target.getParent());
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            throw NoSuchKeyException.builder().message("No such key " + request.sourceKey()).build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        stored(request.destinationKey());
+        return CopyObjectResponse.builder().build();
+    }
+
+    @Override
+    public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+        delay(0);
+        try {
+            Files.deleteIfExists(pathOf(request.bucket(), request.key()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return DeleteObjectResponse.builder().build();
+    }
+
+    public static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,20 @@
+package com.prabh.Benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Entry point of benchmarks.jar : the usual JMH command line, with the GC profiler always on
+// so that every result also reports the allocation rate (gc.alloc.rate.norm is bytes per record)
+// Usage : java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmark regex]
+public class JmhRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
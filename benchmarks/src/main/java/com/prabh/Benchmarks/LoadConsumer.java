@@ -0,0 +1,114 @@
+package com.prabh.Benchmarks;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// MockConsumer that owns a fixed set of partitions and behaves like a broker connection for the poll loop :
+// poll waits for records up to its timeout instead of spinning, and currentLag is answered from what was produced
+class LoadConsumer extends MockConsumer<byte[], byte[]> {
+    private final Collection<TopicPartition> ownedPartitions;
+    private final Map<TopicPartition, AtomicLong> endOffsets = new HashMap<>();
+    // Records added but not polled yet, the producer holds back once this is too large
+    private final Map<TopicPartition, AtomicLong> queuedRecords = new HashMap<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final Object signal = new Object();
+    private volatile boolean woken = false;
+
+    LoadConsumer(Collection<TopicPartition> _ownedPartitions) {
+        super(OffsetResetStrategy.EARLIEST);
+        this.ownedPartitions = List.copyOf(_ownedPartitions);
+        Map<TopicPartition, Long> beginning = new HashMap<>();
+        for (TopicPartition tp : ownedPartitions) {
+            endOffsets.put(tp, new AtomicLong());
+            queuedRecords.put(tp, new AtomicLong());
+            beginning.put(tp, 0L);
+        }
+        updateBeginningOffsets(beginning);
+    }
+
+    long queued() {
+        return queued.get();
+    }
+
+    // Called by the producer thread
+    void produce(ConsumerRecord<byte[], byte[]> record) {
+        addRecord(record);
+        TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+        endOffsets.get(tp).set(record.offset() + 1);
+        queuedRecords.get(tp).incrementAndGet();
+        queued.incrementAndGet();
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener listener) {
+        super.subscribe(topics, listener);
+        rebalance(ownedPartitions);
+        listener.onPartitionsAssigned(ownedPartitions);
+    }
+
+    @Override
+    public ConsumerRecords<byte[], byte[]> poll(Duration timeout) {
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        synchronized (signal) {
+            while (!hasFetchable() && !woken) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    signal.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        woken = false;
+        ConsumerRecords<byte[], byte[]> records = super.poll(Duration.ZERO);
+        for (TopicPartition tp : records.partitions()) {
+            queuedRecords.get(tp).addAndGet(-records.records(tp).size());
+        }
+        queued.addAndGet(-records.count());
+        return records;
+    }
+
+    // Records of paused partitions stay queued, as the broker would keep them
+    private boolean hasFetchable() {
+        Set<TopicPartition> paused = paused();
+        for (Map.Entry<TopicPartition, AtomicLong> entry : queuedRecords.entrySet()) {
+            if (entry.getValue().get() > 0 && !paused.contains(entry.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void wakeup() {
+        woken = true;
+        super.wakeup();
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    @Override
+    public OptionalLong currentLag(TopicPartition tp) {
+        AtomicLong end = endOffsets.get(tp);
+        if (end == null) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(end.get() - position(tp));
+    }
+}
@@ -0,0 +1,298 @@
+package com.prabh.Benchmarks;
+
+import com.prabh.Archiver.RolloverPolicy;
+import com.prabh.Archiver.SinkClient;
+import com.prabh.Archiver.SinkMode;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.Metrics;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Drives the whole sink (ConsumerService -> WriteService -> UploadService) in process, fed by MockConsumers
+// and storing into a filesystem backed S3 stand-in, to size nodes without a cluster or AWS
+// Reports the sustained archive rate, the end to end latency of every record (produced -> visible in S3)
+// and the peak heap / direct memory
+// Usage : LoadHarness [--option value]... , see Options for the names and defaults
+public class LoadHarness {
+    private static final String TOPIC = "load";
+    private static final String BUCKET = "load-test";
+    private static final Pattern BATCH_NAME = Pattern.compile("(\\d+)_(\\d+)_(\\d+)(\\..*)?");
+    private static final int VALUE_POOL_SIZE = 4096;
+    private static final int MAX_LATENCY_MS = 10 * 60 * 1000;
+
+    static class Options {
+        int partitions = 12;
+        int consumers = 3;
+        long rate = 50_000; // records per second over all partitions
+        RecordSizes recordSizes = RecordSizes.MIXED;
+        int durationSeconds = 60;
+        int warmupSeconds = 10;
+        CompressionType compression = CompressionType.ZSTD;
+        ArchiveFormat format = ArchiveFormat.BINARY;
+        SinkMode sinkMode = SinkMode.LOCAL_FILE;
+        int batchMB = 10;
+        int batchAgeSeconds = 30;
+        int writeTasks = 5;
+        int uploads = 5;
+        long s3LatencyMs = 30;
+        long s3JitterMs = 20;
+        double s3MsPerMB = 10;
+        double s3ThrottleRate = 0;
+        boolean keepObjects = false;
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--partitions" -> o.partitions = Integer.parseInt(value);
+                    case "--consumers" -> o.consumers = Integer.parseInt(value);
+                    case "--rate" -> o.rate = Long.parseLong(value);
+                    case "--record-sizes" -> o.recordSizes = RecordSizes.valueOf(value.toUpperCase());
+                    case "--duration" -> o.durationSeconds = Integer.parseInt(value);
+                    case "--warmup" -> o.warmupSeconds = Integer.parseInt(value);
+                    case "--compression" -> o.compression = CompressionType.getCompressionType(value);
+                    case "--format" -> o.format = ArchiveFormat.getArchiveFormat(value);
+                    case "--sink-mode" -> o.sinkMode = SinkMode.valueOf(value.toUpperCase());
+                    case "--batch-mb" -> o.batchMB = Integer.parseInt(value);
+                    case "--batch-age" -> o.batchAgeSeconds = Integer.parseInt(value);
+                    case "--write-tasks" -> o.writeTasks = Integer.parseInt(value);
+                    case "--uploads" -> o.uploads = Integer.parseInt(value);
+                    case "--s3-latency" -> o.s3LatencyMs = Long.parseLong(value);
+                    case "--s3-jitter" -> o.s3JitterMs = Long.parseLong(value);
+                    case "--s3-ms-per-mb" -> o.s3MsPerMB = Double.parseDouble(value);
+                    case "--s3-throttle" -> o.s3ThrottleRate = Double.parseDouble(value);
+                    case "--keep-objects" -> o.keepObjects = Boolean.parseBoolean(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length % 2 != 0) {
+                throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+            }
+            return o;
+        }
+    }
+
+    private final Options options;
+    private final List<LoadConsumer> consumers = new ArrayList<>();
+    private final AtomicInteger nextConsumer = new AtomicInteger();
+    // produce time of every record, per partition, indexed by offset
+    private final ProduceTimes[] produceTimes;
+    private final long[] latencyCounts = new long[MAX_LATENCY_MS + 1];
+    private final AtomicLong archivedRecords = new AtomicLong();
+    private final AtomicLong archivedBytes = new AtomicLong();
+    private final Path storeRoot;
+    private FileSystemS3Client s3;
+    private volatile boolean producing = true;
+    private long produced = 0;
+    private long throttledProduceMillis = 0;
+
+    LoadHarness(Options _options) throws IOException {
+        this.options = _options;
+        this.storeRoot = Files.createTempDirectory("load-harness-s3-");
+        this.produceTimes = new ProduceTimes[options.partitions];
+        List<List<TopicPartition>> owned = new ArrayList<>();
+        for (int i = 0; i < options.consumers; i++) {
+            owned.add(new ArrayList<>());
+        }
+        for (int p = 0; p < options.partitions; p++) {
+            owned.get(p % options.consumers).add(new TopicPartition(TOPIC, p));
+            produceTimes[p] = new ProduceTimes();
+        }
+        owned.forEach(partitions -> consumers.add(new LoadConsumer(partitions)));
+    }
+
+    // Offsets -> produce time in chunks, so the table grows without copying
+    private static class ProduceTimes {
+        private static final int CHUNK = 64 * 1024;
+        private final List<long[]> chunks = new ArrayList<>();
+
+        synchronized void set(long offset, long time) {
+            int chunk = (int) (offset / CHUNK);
+            while (chunks.size() <= chunk) {
+                chunks.add(new long[CHUNK]);
+            }
+            chunks.get(chunk)[(int) (offset % CHUNK)] = time;
+        }
+
+        synchronized long get(long offset) {
+            return chunks.get((int) (offset / CHUNK))[(int) (offset % CHUNK)];
+        }
+    }
+
+    private void onStored(String key, long storedMillis) {
+        if (key.startsWith("staging/")) {
+            return;
+        }
+        Matcher m = BATCH_NAME.matcher(key.substring(key.lastIndexOf('/') + 1));
+        if (!m.matches() || key.endsWith(".idx")) {
+            return;
+        }
+        int partition = Integer.parseInt(m.group(1));
+        long start = Long.parseLong(m.group(2));
+        long end = Long.parseLong(m.group(3));
+        ProduceTimes times = produceTimes[partition];
+        synchronized (latencyCounts) {
+            for (long offset = start; offset <= end; offset++) {
+                long latency = storedMillis - times.get(offset);
+                latencyCounts[(int) Math.max(0, Math.min(latency, MAX_LATENCY_MS))]++;
+            }
+        }
+        archivedRecords.addAndGet(end - start + 1);
+        Path object = s3.pathOf(BUCKET, key);
+        try {
+            archivedBytes.addAndGet(Files.size(object));
+            if (!options.keepObjects) {
+                Files.deleteIfExists(object);
+            }
+        } catch (IOException e) {
+            System.err.println("Stored object " + key + " unreadable : " + e.getMessage());
+        }
+    }
+
+    // Paced from the wall clock, so a slow tick catches up in the next one
+    // A consumer with more than two seconds of records still unpolled holds the producer back, that time is reported
+    private void produce() {
+        List<ConsumerRecord<byte[], byte[]>> pool = options.recordSizes.generate(TOPIC, 0, VALUE_POOL_SIZE, 7);
+        long[] nextOffset = new long[options.partitions];
+        long maxQueued = Math.max(options.rate * 2 / options.consumers, 1000);
+        long start = System.currentTimeMillis();
+        int partition = 0;
+        while (producing) {
+            long now = System.currentTimeMillis();
+            long due = options.rate * (now - start) / 1000;
+            while (produced < due && producing) {
+                LoadConsumer consumer = consumers.get(partition % options.consumers);
+                if (consumer.queued() > maxQueued) {
+                    throttledProduceMillis += 5;
+                    break;
+                }
+                ConsumerRecord<byte[], byte[]> template = pool.get((int) (produced % VALUE_POOL_SIZE));
+                long offset = nextOffset[partition]++;
+                long timestamp = System.currentTimeMillis();
+                produceTimes[partition].set(offset, timestamp);
+                consumer.produce(new ConsumerRecord<>(TOPIC, partition, offset, timestamp,
+                        TimestampType.CREATE_TIME, template.serializedKeySize(), template.serializedValueSize(),
+                        template.key(), template.value(), new RecordHeaders(), Optional.empty()));
+                produced++;
+                partition = (partition + 1) % options.partitions;
+            }
+            sleep(5);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long percentile(double p, long total) {
+        long threshold = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < latencyCounts.length; i++) {
+            seen += latencyCounts[i];
+            if (seen >= threshold && seen > 0) {
+                return i;
+            }
+        }
+        return MAX_LATENCY_MS;
+    }
+
+    public void run() throws Exception {
+        Options o = options;
+        s3 = new FileSystemS3Client(storeRoot, o.s3LatencyMs, o.s3JitterMs, o.s3MsPerMB, o.s3ThrottleRate,
+                this::onStored);
+        SinkClient sink = new SinkClient.Builder()
+                .consumerFactory(() -> consumers.get(nextConsumer.getAndIncrement()))
+                .consumerCount(o.consumers)
+                .subscribedTopics(TOPIC)
+                .s3Builder(s3, BUCKET)
+                .compressionType(o.compression)
+                .archiveFormat(o.format)
+                .sinkMode(o.sinkMode)
+                .rollover(RolloverPolicy.fixed((long) o.batchMB * 1024 * 1024, RolloverPolicy.UNLIMITED,
+                        o.batchAgeSeconds * 1000L))
+                .writeTaskCount(o.writeTasks)
+                .uploadCount(o.uploads)
+                .build();
+
+        System.out.printf("%d partitions, %d consumers, %d records/sec of %s records, %s %s, %s, S3 latency %d+-%d ms "
+                        + "+ %.0f ms/MB, throttled %.2f%%%n", o.partitions, o.consumers, o.rate, o.recordSizes,
+                o.format.name, o.compression.name, o.sinkMode, o.s3LatencyMs, o.s3JitterMs, o.s3MsPerMB,
+                o.s3ThrottleRate * 100);
+
+        sink.start();
+        Thread producer = new Thread(this::produce, "LOAD-PRODUCER");
+        producer.start();
+
+        List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+        long peakHeap = 0;
+        long peakDirect = 0;
+        long measuredFromRecords = 0;
+        long measuredFromMillis = 0;
+        long startMillis = System.currentTimeMillis();
+        for (int second = 1; second <= o.durationSeconds; second++) {
+            sleep(startMillis + second * 1000L - System.currentTimeMillis());
+            long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            long direct = bufferPools.stream().mapToLong(BufferPoolMXBean::getMemoryUsed).sum();
+            peakHeap = Math.max(peakHeap, heap);
+            peakDirect = Math.max(peakDirect, direct);
+            if (second == o.warmupSeconds) {
+                measuredFromRecords = archivedRecords.get();
+                measuredFromMillis = System.currentTimeMillis();
+            }
+            System.out.printf("%4ds archived %,12d records, heap %,6d MB, direct %,5d MB%n", second,
+                    archivedRecords.get(), heap >> 20, direct >> 20);
+        }
+        long measuredRecords = archivedRecords.get() - measuredFromRecords;
+        double measuredSeconds = (System.currentTimeMillis() - (measuredFromMillis > 0 ? measuredFromMillis : startMillis)) / 1000.0;
+
+        producing = false;
+        producer.join();
+        long drainStart = System.currentTimeMillis();
+        sink.shutdown();
+        long drainMillis = System.currentTimeMillis() - drainStart;
+
+        long total;
+        synchronized (latencyCounts) {
+            total = Arrays.stream(latencyCounts).sum();
+        }
+        System.out.println();
+        System.out.printf("produced              %,d records (producer held back %,d ms by unpolled records)%n",
+                produced, throttledProduceMillis);
+        System.out.printf("archived              %,d records, %,d MB stored%n", archivedRecords.get(),
+                archivedBytes.get() >> 20);
+        System.out.printf("sustained             %,.0f records/sec after %ds warm up%n", measuredRecords / measuredSeconds,
+                o.warmupSeconds);
+        System.out.printf("end to end latency ms p50 %d, p95 %d, p99 %d, p99.9 %d, max %d%n", percentile(0.5, total),
+                percentile(0.95, total), percentile(0.99, total), percentile(0.999, total), percentile(1, total));
+        System.out.printf("peak memory           heap %,d MB, direct %,d MB%n", peakHeap >> 20, peakDirect >> 20);
+        System.out.printf("upload retries        %d%n", Metrics.counter("archiver_upload_retries_total", "").getCount());
+        System.out.printf("shutdown drain        %,d ms%n", drainMillis);
+
+        FileSystemS3Client.deleteRecursively(storeRoot);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadHarness(Options.parse(args)).run();
+        // the client's shutdown hook finds nothing left to do
+        System.exit(0);
+    }
+}
@@ -0,0 +1,203 @@
+package com.prabh.Benchmarks;
+
+import com.prabh.Archiver.BatchConfig;
+import com.prabh.Archiver.SinkMode;
+import com.prabh.Archiver.TopicPartitionWriter;
+import com.prabh.Archiver.UploadService;
+import com.prabh.Archiver.WriteService;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.CompressionType;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Per partition throughput of the consumer loop, driven by an emulated broker so that only the
+// hand-off between consumer and writers is measured
+// before   : every fetched partition is paused and only resumed once a later poll finds its task finished,
+//            a poll over nothing but paused partitions blocks for the whole poll timeout
+// after    : records go to the partition's pipeline, partitions are paused only when out of credit
+// Usage : PipelineBenchmark [partitions] [seconds] [writerThreads] [recordsPerFetch]
+public class PipelineBenchmark {
+    private static final String TOPIC = "benchmark";
+    private static final long POLL_TIMEOUT_MS = 2000;
+    private static final long FETCH_LATENCY_MS = 5;
+    private final int partitions;
+    private final int seconds;
+    private final int writerThreads;
+    private final int recordsPerFetch;
+    private final byte[] value;
+
+    public PipelineBenchmark(int partitions, int seconds, int writerThreads, int recordsPerFetch) {
+        this.partitions = partitions;
+        this.seconds = seconds;
+        this.writerThreads = writerThreads;
+        this.recordsPerFetch = recordsPerFetch;
+        StringBuilder v = new StringBuilder("{");
+        Random random = new Random(42);
+        while (v.length() < 256) {
+            v.append("\"field").append(random.nextInt(100)).append("\":").append(random.nextInt(100000)).append(',');
+        }
+        v.setCharAt(v.length() - 1, '}');
+        this.value = v.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Stands in for the broker : every fetchable partition returns a full fetch
+    private class EmulatedBroker {
+        private final long[] nextOffset = new long[partitions];
+
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> poll(Set<TopicPartition> paused) throws InterruptedException {
+            if (paused.size() == partitions) {
+                Thread.sleep(POLL_TIMEOUT_MS);
+                return Collections.emptyMap();
+            }
+            Thread.sleep(FETCH_LATENCY_MS);
+            long now = System.currentTimeMillis();
+            Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> fetched = new HashMap<>();
+            for (int p = 0; p < partitions; p++) {
+                TopicPartition tp = new TopicPartition(TOPIC, p);
+                if (paused.contains(tp)) continue;
+                List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>(recordsPerFetch);
+                for (int i = 0; i < recordsPerFetch; i++) {
+                    records.add(new ConsumerRecord<>(TOPIC, p, nextOffset[p]++, now, TimestampType.CREATE_TIME, -1,
+                            value.length, null, value, new RecordHeaders(), Optional.empty()));
+                }
+                fetched.put(tp, records);
+            }
+            return fetched;
+        }
+    }
+
+    private static S3Client discardingS3Client() {
+        return new S3Client() {
+            @Override
+            public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+                return PutObjectResponse.builder().build();
+            }
+
+            @Override
+            public String serviceName() {
+                return "s3";
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    long runBefore() throws Exception {
+        EmulatedBroker broker = new EmulatedBroker();
+        ExecutorService executor = Executors.newFixedThreadPool(writerThreads);
+        Map<TopicPartition, TopicPartitionWriter> batches = new ConcurrentHashMap<>();
+        Map<TopicPartition, Future<?>> activeTasks = new HashMap<>();
+        Set<TopicPartition> paused = new HashSet<>();
+        long written = 0;
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            for (Map.Entry<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> entry : broker.poll(paused).entrySet()) {
+                TopicPartition tp = entry.getKey();
+                List<ConsumerRecord<byte[], byte[]>> records = entry.getValue();
+                activeTasks.put(tp, executor.submit(() -> {
+                    TopicPartitionWriter batch = batches.get(tp);
+                    if (batch == null || batch.readyForCommit()) {
+                        seal(batch);
+                        batch = new TopicPartitionWriter(records.get(0), CompressionType.NONE, ArchiveFormat.BINARY);
+                        batches.put(tp, batch);
+                    }
+                    batch.addToBuffer(records);
+                    return null;
+                }));
+                paused.add(tp);
+                written += records.size();
+            }
+
+            Iterator<Map.Entry<TopicPartition, Future<?>>> tasks = activeTasks.entrySet().iterator();
+            while (tasks.hasNext()) {
+                Map.Entry<TopicPartition, Future<?>> task = tasks.next();
+                if (task.getValue().isDone()) {
+                    paused.remove(task.getKey());
+                    tasks.remove();
+                }
+            }
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        for (TopicPartitionWriter batch : batches.values()) {
+            seal(batch);
+        }
+        return written;
+    }
+
+    private static void seal(TopicPartitionWriter batch) throws IOException {
+        if (batch != null) {
+            batch.close();
+            new File(batch.getFilePath()).delete();
+        }
+    }
+
+    long runAfter() throws Exception {
+        EmulatedBroker broker = new EmulatedBroker();
+        UploadService uploads = new UploadService(discardingS3Client(), "benchmark", 2, 256L * 1024 * 1024);
+        WriteService writer = new WriteService(writerThreads, BatchConfig.of(CompressionType.NONE, ArchiveFormat.BINARY),
+                SinkMode.LOCAL_FILE, 0, 0, uploads, false, 0, 0);
+        Set<TopicPartition> paused = new HashSet<>();
+        long written = 0;
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            for (Map.Entry<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> entry : broker.poll(paused).entrySet()) {
+                if (!writer.submit(entry.getKey(), entry.getValue())) {
+                    paused.add(entry.getKey());
+                }
+                written += entry.getValue().size();
+            }
+            paused.removeAll(writer.resumable(paused));
+            writer.tick();
+        }
+        List<TopicPartition> all = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            all.add(new TopicPartition(TOPIC, p));
+        }
+        writer.drainPartitions(all);
+        writer.shutdown();
+        uploads.shutdown();
+        return written;
+    }
+
+    interface Run {
+        long apply() throws Exception;
+    }
+
+    void measure(String label, Run run) throws Exception {
+        long startNanos = System.nanoTime();
+        long records = run.apply();
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-8s %12.0f records/sec total %12.0f records/sec per partition%n",
+                label, records / elapsed, records / elapsed / partitions);
+    }
+
+    public void run() throws Exception {
+        System.out.printf("%d partitions, %d writer threads, %d records per fetch, %d byte values%n",
+                partitions, writerThreads, recordsPerFetch, value.length);
+        measure("before", this::runBefore);
+        measure("after", this::runAfter);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int partitions = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int writerThreads = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int recordsPerFetch = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+        new PipelineBenchmark(partitions, seconds, writerThreads, recordsPerFetch).run();
+    }
+}
@@ -0,0 +1,62 @@
+package com.prabh.Benchmarks;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+// Value size distributions the JMH benchmarks run with
+// Values are JSON like, so the codecs see roughly the redundancy of real event payloads
+public enum RecordSizes {
+    SMALL(new int[]{100}, new int[]{100}),
+    MEDIUM(new int[]{1024}, new int[]{100}),
+    LARGE(new int[]{16 * 1024}, new int[]{100}),
+    // mostly small events with the occasional large one
+    MIXED(new int[]{100, 1024, 16 * 1024}, new int[]{80, 15, 5});
+
+    private static final String[] WORDS = {"user", "event", "click", "view", "session", "id", "timestamp", "value",
+            "true", "false"};
+    private final int[] sizes;
+    private final int[] weights;
+
+    RecordSizes(int[] _sizes, int[] _weights) {
+        this.sizes = _sizes;
+        this.weights = _weights;
+    }
+
+    private int nextSize(Random random) {
+        int r = random.nextInt(100);
+        for (int i = 0; i < sizes.length; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return sizes[i];
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    public List<ConsumerRecord<byte[], byte[]>> generate(String topic, long firstOffset, int count, long seed) {
+        Random random = new Random(seed);
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>(count);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            int size = nextSize(random);
+            StringBuilder value = new StringBuilder(size + 16).append('{');
+            while (value.length() < size) {
+                value.append('"').append(WORDS[random.nextInt(WORDS.length)]).append("\":")
+                        .append(random.nextInt(100000)).append(',');
+            }
+            value.setCharAt(value.length() - 1, '}');
+            byte[] v = value.toString().getBytes(StandardCharsets.UTF_8);
+            byte[] k = ("key-" + random.nextInt(1000)).getBytes(StandardCharsets.UTF_8);
+            records.add(new ConsumerRecord<>(topic, 0, firstOffset + i, now + i, TimestampType.CREATE_TIME,
+                    k.length, v.length, k, v, new RecordHeaders(), Optional.empty()));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,143 @@
+package com.prabh.Benchmarks;
+
+import com.prabh.Archiver.BatchConfig;
+import com.prabh.Archiver.RolloverPolicy;
+import com.prabh.Archiver.TopicPartitionWriter;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.CompressionConfig;
+import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.KeyLayout;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+// Compares the reopen-per-poll writer against the single open stream per batch,
+// and the single stream against parallel block compression
+// Usage : WriterBenchmark [totalRecords] [recordsPerPoll] [recordSizeBytes]
+public class WriterBenchmark {
+    private static final String TOPIC = "benchmark";
+    private static final int PARALLEL_BLOCK_BYTES = 1024 * 1024;
+    private final int totalRecords;
+    private final int recordsPerPoll;
+    private final int recordSize;
+
+    public WriterBenchmark(int totalRecords, int recordsPerPoll, int recordSize) {
+        this.totalRecords = totalRecords;
+        this.recordsPerPoll = recordsPerPoll;
+        this.recordSize = recordSize;
+    }
+
+    List<List<ConsumerRecord<byte[], byte[]>>> generatePolls() {
+        Random random = new Random(42);
+        String[] words = {"user", "event", "click", "view", "session", "id", "timestamp", "value", "true", "false"};
+        List<List<ConsumerRecord<byte[], byte[]>>> polls = new ArrayList<>();
+        List<ConsumerRecord<byte[], byte[]>> current = new ArrayList<>(recordsPerPoll);
+        long now = System.currentTimeMillis();
+        for (int offset = 0; offset < totalRecords; offset++) {
+            StringBuilder value = new StringBuilder("{");
+            while (value.length() < recordSize) {
+                value.append('"').append(words[random.nextInt(words.length)]).append("\":")
+                        .append(random.nextInt(100000)).append(',');
+            }
+            value.setCharAt(value.length() - 1, '}');
+            byte[] v = value.toString().getBytes(StandardCharsets.UTF_8);
+            current.add(new ConsumerRecord<>(TOPIC, 0, offset, now, TimestampType.CREATE_TIME, -1,
+                    v.length, null, v, new RecordHeaders(), Optional.empty()));
+            if (current.size() == recordsPerPoll) {
+                polls.add(current);
+                current = new ArrayList<>(recordsPerPoll);
+            }
+        }
+        if (!current.isEmpty()) {
+            polls.add(current);
+        }
+        return polls;
+    }
+
+    // Behaviour before the writer kept its stream open : one new codec stream per poll
+    long runReopenPerPoll(List<List<ConsumerRecord<byte[], byte[]>>> polls, CompressionType type) throws IOException {
+        File file = File.createTempFile("reopen-", "." + type.name);
+        for (List<ConsumerRecord<byte[], byte[]>> poll : polls) {
+            try (PrintWriter writer = new PrintWriter(new BufferedOutputStream(
+                    type.wrapOutputStream(new FileOutputStream(file, true))))) {
+                for (ConsumerRecord<byte[], byte[]> record : poll) {
+                    writer.println(new String(record.value(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        long size = file.length();
+        file.delete();
+        return size;
+    }
+
+    long runSingleStream(List<List<ConsumerRecord<byte[], byte[]>>> polls, CompressionType type,
+                         ArchiveFormat format) throws IOException {
+        return runSingleStream(polls, CompressionConfig.of(type), format);
+    }
+
+    long runSingleStream(List<List<ConsumerRecord<byte[], byte[]>>> polls, CompressionConfig compression,
+                         ArchiveFormat format) throws IOException {
+        TopicPartitionWriter writer = new TopicPartitionWriter(polls.get(0).get(0),
+                new BatchConfig(compression, format, BatchConfig.DEFAULT_ROW_GROUP_SIZE_BYTES,
+                        RolloverPolicy.DEFAULT, Map.of(), KeyLayout.LEGACY, 0));
+        for (List<ConsumerRecord<byte[], byte[]>> poll : polls) {
+            writer.addToBuffer(poll);
+        }
+        writer.close();
+        File file = new File(writer.getFilePath());
+        long size = file.length();
+        file.delete();
+        return size;
+    }
+
+    interface Run {
+        long apply() throws IOException;
+    }
+
+    void measure(String label, CompressionType type, Run run) throws IOException {
+        // warm up once so that JIT and native codec loading are not measured
+        run.apply();
+        long startNanos = System.nanoTime();
+        long bytes = run.apply();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-8s %-16s %12.0f records/sec %14d compressed bytes%n",
+                type.name, label, totalRecords / seconds, bytes);
+    }
+
+    public void run() throws IOException {
+        List<List<ConsumerRecord<byte[], byte[]>>> polls = generatePolls();
+        long rawBytes = 0;
+        for (List<ConsumerRecord<byte[], byte[]>> poll : polls) {
+            for (ConsumerRecord<byte[], byte[]> record : poll) {
+                rawBytes += record.value().length + 1;
+            }
+        }
+        System.out.printf("%d records in %d polls, %d raw bytes%n", totalRecords, polls.size(), rawBytes);
+        for (CompressionType type : CompressionType.values()) {
+            measure("reopen-per-poll", type, () -> runReopenPerPoll(polls, type));
+            measure("single-stream", type, () -> runSingleStream(polls, type, ArchiveFormat.TEXT));
+            measure("single-binary", type, () -> runSingleStream(polls, type, ArchiveFormat.BINARY));
+            measure("single-parquet", type, () -> runSingleStream(polls, type, ArchiveFormat.PARQUET));
+            if (type != CompressionType.NONE) {
+                CompressionConfig parallel = new CompressionConfig(type, CompressionType.DEFAULT_LEVEL, Map.of(), 0,
+                        PARALLEL_BLOCK_BYTES);
+                measure("parallel-blocks", type, () -> runSingleStream(polls, parallel, ArchiveFormat.TEXT));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int totalRecords = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int recordsPerPoll = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int recordSize = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        new WriterBenchmark(totalRecords, recordsPerPoll, recordSize).run();
+    }
+}
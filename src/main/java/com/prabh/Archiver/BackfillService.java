@@ -0,0 +1,228 @@
+package com.prabh.Archiver;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.prabh.Utils.Metrics;
+import org.apache.kafka.clients.consumer.*;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+// Archives what the topics already hold before the group starts consuming them
+// Every partition's range, from the group's committed offset (or the log start) up to the log end when the
+// backfill starts, is cut into chunks that are read in parallel by consumers outside of the group with
+// assign() and seek(), so a single partition's history is spread over every backfill consumer
+// Chunks are written into batches of their own and stored like any other batch, with the same object names
+// The group's offsets are then moved past the chunks that were stored without a gap, and group consumption
+// carries on from there
+public class BackfillService {
+    private static final Logger logger = LoggerFactory.getLogger(BackfillService.class);
+    private static final Metrics.Counter backfilledRecords = Metrics.counter("archiver_backfilled_records_total",
+            "Records written by the backfill");
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(1000);
+    // A chunk whose position doesn't move for this long is given up, e.g. its records were deleted meanwhile
+    private static final long STALLED_CHUNK_MS = 2 * 60 * 1000;
+    private static final long STORE_TIMEOUT_MS = 10 * 60 * 1000;
+    private final WriteService writer;
+    private final int noOfConsumers;
+    private final long recordsPerChunk;
+    private final String serverId;
+    // Creates the consumers instead of the bootstrap server when set
+    private final Supplier<Consumer<byte[], byte[]>> consumerFactory;
+    private final List<Consumer<byte[], byte[]>> consumers = new ArrayList<>();
+    private volatile boolean stopped = false;
+
+    public BackfillService(WriteService _writer, int _noOfConsumers, long _recordsPerChunk, String _serverId,
+                           Supplier<Consumer<byte[], byte[]>> _consumerFactory) {
+        this.writer = _writer;
+        this.noOfConsumers = _noOfConsumers;
+        this.recordsPerChunk = _recordsPerChunk;
+        this.serverId = _serverId;
+        this.consumerFactory = _consumerFactory;
+    }
+
+    private record Chunk(TopicPartition partition, long start, long end) {
+    }
+
+    // Reads [startOffsets, endOffsets) of every partition and returns, per partition that moved, the offset
+    // the group can resume from : the end of the chunks stored without a gap from its start offset
+    public Map<TopicPartition, OffsetAndMetadata> run(Map<TopicPartition, Long> startOffsets,
+                                                      Map<TopicPartition, Long> endOffsets) {
+        List<Chunk> chunks = split(startOffsets, endOffsets);
+        Map<TopicPartition, OffsetAndMetadata> resumeOffsets = new HashMap<>();
+        if (chunks.isEmpty()) {
+            return resumeOffsets;
+        }
+        long total = chunks.stream().mapToLong(chunk -> chunk.end - chunk.start).sum();
+        logger.warn("Backfilling {} records of {} partitions in {} chunks", total,
+                chunks.stream().map(Chunk::partition).distinct().count(), chunks.size());
+
+        Queue<Chunk> pending = new ConcurrentLinkedQueue<>(chunks);
+        Map<Chunk, CompletableFuture<Void>> stored = new ConcurrentHashMap<>();
+        int workerCount = (int) Math.min(noOfConsumers, chunks.size());
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount,
+                new ThreadFactoryBuilder().setNameFormat("BACKFILL-WORKER-%d").build());
+        for (int i = 0; i < workerCount; i++) {
+            Consumer<byte[], byte[]> consumer = createConsumer();
+            synchronized (consumers) {
+                consumers.add(consumer);
+            }
+            workers.execute(() -> {
+                try {
+                    Chunk chunk;
+                    while (!stopped && (chunk = pending.poll()) != null) {
+                        stored.put(chunk, read(consumer, chunk));
+                    }
+                } finally {
+                    consumer.close();
+                }
+            });
+        }
+        workers.shutdown();
+        try {
+            // the backfill doesn't poll the group, so the manifests are flushed from here
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                writer.tick();
+            }
+        } catch (InterruptedException e) {
+            logger.error(e.getMessage(), e);
+            stopped = true;
+        }
+
+        // a failed chunk only ends the contiguous range of its partition
+        List<CompletableFuture<Void>> settled = stored.values().stream()
+                .map(future -> future.handle((v, e) -> (Void) null)).toList();
+        if (!writer.awaitDurable(settled, STORE_TIMEOUT_MS)) {
+            logger.error("Not every backfilled batch was stored in time, the rest is consumed by the group");
+        }
+
+        Map<TopicPartition, Long> resume = new HashMap<>();
+        Set<TopicPartition> gaps = new HashSet<>();
+        for (Chunk chunk : chunks) {
+            resume.putIfAbsent(chunk.partition, chunk.start);
+            if (gaps.contains(chunk.partition)) {
+                continue;
+            }
+            CompletableFuture<Void> future = stored.get(chunk);
+            if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
+                resume.put(chunk.partition, chunk.end);
+            } else {
+                gaps.add(chunk.partition);
+            }
+        }
+        resume.forEach((partition, next) -> {
+            if (next > startOffsets.get(partition)) {
+                resumeOffsets.put(partition, new OffsetAndMetadata(next));
+            }
+            if (next < endOffsets.get(partition)) {
+                logger.error("Backfill of {} stopped at offset {}, the group consumes the rest", partition, next);
+            }
+        });
+        return resumeOffsets;
+    }
+
+    // Chunks are ordered round robin over the partitions, so every partition moves along from the start
+    private List<Chunk> split(Map<TopicPartition, Long> startOffsets, Map<TopicPartition, Long> endOffsets) {
+        List<List<Chunk>> perPartition = new ArrayList<>();
+        startOffsets.forEach((partition, start) -> {
+            long end = endOffsets.getOrDefault(partition, start);
+            List<Chunk> chunks = new ArrayList<>();
+            for (long offset = start; offset < end; offset += recordsPerChunk) {
+                chunks.add(new Chunk(partition, offset, Math.min(end, offset + recordsPerChunk)));
+            }
+            if (!chunks.isEmpty()) {
+                perPartition.add(chunks);
+            }
+        });
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; !perPartition.isEmpty(); i++) {
+            int index = i;
+            perPartition.removeIf(partitionChunks -> partitionChunks.size() <= index);
+            perPartition.forEach(partitionChunks -> chunks.add(partitionChunks.get(index)));
+        }
+        return chunks;
+    }
+
+    // Writes the chunk into batches of its own, the future completes once all of them are stored
+    private CompletableFuture<Void> read(Consumer<byte[], byte[]> consumer, Chunk chunk) {
+        TopicPartition partition = chunk.partition;
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        TopicPartitionWriter batch = null;
+        try {
+            consumer.assign(List.of(partition));
+            consumer.seek(partition, chunk.start);
+            long position = chunk.start;
+            long lastProgress = System.currentTimeMillis();
+            // offsets of aborted transactions and control records are skipped without records
+            while (position < chunk.end) {
+                if (stopped) {
+                    throw new IllegalStateException("Backfill stopped");
+                }
+                List<ConsumerRecord<byte[], byte[]>> records = consumer.poll(POLL_TIMEOUT).records(partition);
+                int n = 0;
+                while (n < records.size() && records.get(n).offset() < chunk.end) {
+                    n++;
+                }
+                if (n > 0) {
+                    batch = writer.append(batch, records.subList(0, n), batches);
+                    backfilledRecords.add(n);
+                }
+                long next = consumer.position(partition);
+                if (next > position) {
+                    position = next;
+                    lastProgress = System.currentTimeMillis();
+                } else if (System.currentTimeMillis() - lastProgress > STALLED_CHUNK_MS) {
+                    throw new IllegalStateException("No progress at offset " + position);
+                }
+            }
+            if (batch != null) {
+                batches.add(writer.store(batch));
+            }
+        } catch (KafkaException | IllegalStateException e) {
+            // a wakeup from stop() is a KafkaException as well
+            logger.error("Backfill of {} offsets {} to {} failed : {}", partition, chunk.start, chunk.end - 1,
+                    e.getMessage());
+            if (batch != null) {
+                batch.abandon();
+            }
+            batches.add(CompletableFuture.failedFuture(e));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0]));
+    }
+
+    private Consumer<byte[], byte[]> createConsumer() {
+        if (consumerFactory != null) {
+            return consumerFactory.get();
+        }
+        // no group : partitions are assigned by hand and nothing is committed
+        Properties consumerProperties = new Properties();
+        consumerProperties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, serverId);
+        consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        consumerProperties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        // a chunk is read from a single partition, so its fetches can be larger
+        consumerProperties.put(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG, 16 * 1024 * 1024);
+        consumerProperties.put(ConsumerConfig.FETCH_MAX_BYTES_CONFIG, 64 * 1024 * 1024);
+        consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, Integer.MAX_VALUE);
+        return new KafkaConsumer<>(consumerProperties);
+    }
+
+    // Chunks being read are given up, what was stored so far is still committed by run
+    public void stop() {
+        stopped = true;
+        synchronized (consumers) {
+            consumers.forEach(Consumer::wakeup);
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+}
@@ -0,0 +1,48 @@
+package com.prabh.Archiver;
+
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.CompressionConfig;
+import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.KeyLayout;
+
+import java.util.Map;
+
+// How each batch is encoded, when it is cut and where it is uploaded
+public class BatchConfig {
+    public static final long DEFAULT_ROW_GROUP_SIZE_BYTES = 8 * 1024 * 1024; // 8 MB
+    public final CompressionConfig compression;
+    public final ArchiveFormat archiveFormat;
+    // Only used by the Parquet format
+    public final long rowGroupSizeBytes;
+    public final RolloverPolicy rollover;
+    public final Map<String, RolloverPolicy> topicRollover;
+    public final KeyLayout keyLayout;
+    // Uncompressed size of the indexed blocks, 0 writes no sidecar index
+    public final int indexBlockBytes;
+
+    public BatchConfig(CompressionConfig _compression, ArchiveFormat _archiveFormat, long _rowGroupSizeBytes,
+                       RolloverPolicy _rollover, Map<String, RolloverPolicy> _topicRollover, KeyLayout _keyLayout,
+                       int _indexBlockBytes) {
+        this.compression = _compression;
+        this.archiveFormat = _archiveFormat;
+        this.rowGroupSizeBytes = _rowGroupSizeBytes;
+        this.rollover = _rollover;
+        this.topicRollover = Map.copyOf(_topicRollover);
+        this.keyLayout = _keyLayout;
+        this.indexBlockBytes = _indexBlockBytes;
+    }
+
+    public static BatchConfig of(CompressionType compressionType, ArchiveFormat archiveFormat) {
+        return new BatchConfig(CompressionConfig.of(compressionType), archiveFormat, DEFAULT_ROW_GROUP_SIZE_BYTES,
+                RolloverPolicy.DEFAULT, Map.of(), KeyLayout.LEGACY, 0);
+    }
+
+    // Parquet files carry their own row group statistics
+    public boolean indexed() {
+        return indexBlockBytes > 0 && !archiveFormat.compressesInternally();
+    }
+
+    public RolloverPolicy rolloverFor(String topic) {
+        return topicRollover.getOrDefault(topic, rollover);
+    }
+}
@@ -0,0 +1,54 @@
+package com.prabh.Archiver;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Destination of the (compressed) bytes of a single batch
+// close() marks the end of the batch, commit() then makes it durable under its final key
+abstract class BatchOutput extends OutputStream {
+
+    // Completes once the batch is stored under the given key
+    abstract CompletableFuture<Void> commit(String key);
+
+    // Bytes written so far, the size of the stored object once closed
+    abstract long size();
+
+    // Stores a small object that belongs to the batch, such as its index
+    abstract CompletableFuture<Void> commitSidecar(String key, byte[] data);
+
+    // Views of the closed batch's bytes, valid until it is committed or discarded
+    // Only outputs that hold the batch locally have them, they are what a pack is assembled from
+    List<ByteBuffer> contents() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't keep the batch locally");
+    }
+
+    // Gives the batch up without storing it, e.g. when it could not be sealed
+    void discard() {
+    }
+
+    // Outputs that survive a crash are told how far the batch can be recovered after every write, see Spool
+    boolean recoverable() {
+        return false;
+    }
+
+    // The first exactRecords records sit at consecutive offsets from the leader and are one line each in TEXT,
+    // the timestamps span every record written so far
+    void recordsWritten(long exactRecords, long minTimestamp, long maxTimestamp) {
+    }
+
+    // Memory backed outputs take small writes as cheaply as a buffer would, the writer doesn't buffer in front
+    boolean directWrites() {
+        return false;
+    }
+
+    // The config is the one of the batch, a batch recovered from the spool keeps the format it was written in
+    interface Factory {
+        BatchOutput open(ConsumerRecord<byte[], byte[]> leaderRecord, BatchConfig config, String localFilePath)
+                throws IOException;
+    }
+}
@@ -0,0 +1,72 @@
+package com.prabh.Archiver;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+
+// Publishes read only views of the given buffers, unlike AsyncRequestBody.fromBytes nothing gets copied
+// Every subscription starts from the beginning, so SDK retries resend the same content
+class ByteBufferAsyncRequestBody implements AsyncRequestBody {
+    private final List<ByteBuffer> buffers;
+    private final long length;
+
+    ByteBufferAsyncRequestBody(List<ByteBuffer> _buffers) {
+        this.buffers = _buffers;
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        this.length = total;
+    }
+
+    static ByteBufferAsyncRequestBody of(byte[] data, int length) {
+        return new ByteBufferAsyncRequestBody(List.of(ByteBuffer.wrap(data, 0, length)));
+    }
+
+    @Override
+    public Optional<Long> contentLength() {
+        return Optional.of(length);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        subscriber.onSubscribe(new Subscription() {
+            private int next = 0;
+            private long demand = 0;
+            private boolean emitting = false;
+            private boolean done = false;
+
+            @Override
+            public synchronized void request(long n) {
+                if (done) return;
+                if (n <= 0) {
+                    done = true;
+                    subscriber.onError(new IllegalArgumentException("Non-positive request signals are illegal"));
+                    return;
+                }
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                // onNext may call request() again, the loop below keeps emission non recursive
+                if (emitting) return;
+                emitting = true;
+                while (demand > 0 && next < buffers.size() && !done) {
+                    demand--;
+                    subscriber.onNext(buffers.get(next++).asReadOnlyBuffer());
+                }
+                emitting = false;
+                if (next == buffers.size() && !done) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+            }
+
+            @Override
+            public synchronized void cancel() {
+                done = true;
+            }
+        });
+    }
+}
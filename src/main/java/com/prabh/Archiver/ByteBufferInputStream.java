@@ -0,0 +1,50 @@
+package com.prabh.Archiver;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Reads through views of the given buffers without copying them first, the blocking counterpart
+// of ByteBufferAsyncRequestBody
+class ByteBufferInputStream extends InputStream {
+    private final List<ByteBuffer> buffers;
+    private int next = 0;
+    private ByteBuffer current;
+
+    ByteBufferInputStream(List<ByteBuffer> _buffers) {
+        this.buffers = _buffers;
+    }
+
+    private boolean advance() {
+        while (current == null || !current.hasRemaining()) {
+            if (next == buffers.size()) {
+                return false;
+            }
+            current = buffers.get(next++).duplicate();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() {
+        return advance() ? current.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!advance()) {
+            return -1;
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+}
@@ -0,0 +1,646 @@
+package com.prabh.Archiver;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.ArchiveManifest;
+import com.prabh.Utils.ArchivedRecord;
+import com.prabh.Utils.BatchIndex;
+import com.prabh.Utils.BatchKey;
+import com.prabh.Utils.CompressionConfig;
+import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.KeyLayout;
+import com.prabh.Utils.Metrics;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.TimestampType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Merges runs of small batches of a partition into larger ones, so that fetches list and get fewer objects
+// Restarts, rebalances and age based rollovers of quiet partitions leave many small batches behind, which
+// rollover settings alone can't prevent
+// A run is batches of a partition in the same directory, format and compression whose offsets follow each other
+// without a gap, each smaller than smallObjectBytes and adding up to at most targetObjectBytes
+// The records of a BINARY or PARQUET run are streamed into a batch named after the run's first and last offsets,
+// in the same directory, the objects of a TEXT run are appended as they are
+// The merged batch is stored (with its manifest entry) first, the batches it merged are deleted by a later pass
+// once the grace period is over, so that a fetch that listed them before can still read them
+// Meanwhile readers see both : the fetcher drops batches whose offsets a larger batch covers, so a replay
+// neither repeats nor misses a record while a compaction is under way
+public class CompactionService {
+    private static final Logger logger = LoggerFactory.getLogger(CompactionService.class);
+    private static final Metrics.Counter compactedBatches = Metrics.counter("archiver_compacted_batches_total",
+            "Batches merged into larger ones and deleted");
+    private static final Metrics.Counter mergedBatches = Metrics.counter("archiver_compaction_batches_stored_total",
+            "Batches stored by the compaction");
+    private static final int RECORDS_PER_WRITE = 1000;
+    private static final int MAX_DELETE_KEYS = 1000;
+    // Batches this recent are left alone, their partition may still be storing the next one next to them
+    private static final long SETTLE_MS = 15 * 60 * 1000;
+    private static final long STORE_TIMEOUT_MS = 10 * 60 * 1000;
+    // compaction/<topic>/<due millis>-<writer>-<n>.deletes : keys of merged batches, one per line
+    private static final String PENDING_DELETES = "compaction/";
+    private static final String DELETES_EXTENSION = ".deletes";
+    private static final RolloverPolicy.Limits UNLIMITED = new RolloverPolicy.Limits(Long.MAX_VALUE, Long.MAX_VALUE,
+            Long.MAX_VALUE);
+    private final S3Client s3Client;
+    private final String bucket;
+    private final UploadService uploadService;
+    private final KeyLayout keyLayout;
+    private final long smallObjectBytes;
+    private final long targetObjectBytes;
+    private final int indexBlockBytes;
+    private final boolean manifests;
+    private final CompressionType parquetCompressionType;
+    private final List<String> topics;
+    private final long intervalMs;
+    private final long lookbackMs;
+    private final long deleteGraceMs;
+    private final String workDir = String.format("%s/KafkaToS3/compaction", System.getProperty("java.io.tmpdir"));
+    private final String writerId = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ScheduledExecutorService scheduler;
+
+    private CompactionService(Builder builder) {
+        this.s3Client = builder.s3Client;
+        this.bucket = builder.bucket;
+        this.uploadService = new UploadService(builder.s3Client, builder.bucket, builder.noOfUploads,
+                builder.maxInFlightUploadBytes);
+        this.keyLayout = builder.keyLayout;
+        this.smallObjectBytes = builder.smallObjectBytes;
+        this.targetObjectBytes = builder.targetObjectBytes;
+        this.indexBlockBytes = builder.indexBlockBytes;
+        this.manifests = builder.manifests;
+        this.parquetCompressionType = builder.parquetCompressionType;
+        this.topics = builder.topics;
+        this.intervalMs = builder.intervalMs;
+        this.lookbackMs = builder.lookbackMs;
+        this.deleteGraceMs = builder.deleteGraceMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("COMPACTION").setDaemon(true).build());
+    }
+
+    // Compacts the topics every interval, over the lookback up to the settled batches
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            long to = System.currentTimeMillis() - SETTLE_MS;
+            for (String topic : topics) {
+                try {
+                    compact(topic, to - lookbackMs, to);
+                } catch (RuntimeException e) {
+                    logger.error("Compaction of {} failed : {}", topic, e.getMessage());
+                }
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            logger.error(e.getMessage(), e);
+        }
+        uploadService.shutdown();
+        logger.warn("Compaction Service Shutdown Complete");
+    }
+
+    // Merges the runs of small batches of the topic that started between the two timestamps (inclusive)
+    // and returns how many batches were merged
+    // The batches merged (and those left behind by an earlier pass) are deleted by a pass that runs once the
+    // grace period is over, readers that listed them before the merged batch was stored can still get them
+    public long compact(String topic, long fromMillis, long toMillis) {
+        long now = System.currentTimeMillis();
+        Set<String> scheduled = deleteDue(topic, now);
+        Map<String, ArchiveManifest.Entry> listedEntries;
+        try {
+            // a batch is listed under every hour its records span, so the hours of the range list every batch
+            // started within it
+            listedEntries = manifests ? ArchiveManifest.list(s3Client, bucket, topic, fromMillis, toMillis) : Map.of();
+        } catch (IOException e) {
+            logger.error("Manifests of {} are unreadable, nothing is compacted : {}", topic, e.getMessage());
+            return 0;
+        }
+        long compacted = 0;
+        List<String> obsolete = new ArrayList<>();
+        for (String prefix : keyLayout.listPrefixes(topic, fromMillis, toMillis)) {
+            Map<String, Long> sizes = list(prefix);
+            List<BatchKey> batches = sizes.keySet().stream().map(BatchKey::parse).filter(Objects::nonNull).toList();
+            Set<BatchKey> superseded = BatchKey.superseded(batches);
+
+            // left behind by a pass that stopped before scheduling their deletion, the manifests may still list them
+            List<String> merged = new ArrayList<>();
+            if (!manifests) {
+                superseded.stream().map(BatchKey::key).filter(key -> !scheduled.contains(key)).forEach(merged::add);
+            }
+
+            Map<String, List<BatchKey>> groups = new TreeMap<>();
+            for (BatchKey batch : batches) {
+                if (!superseded.contains(batch)) {
+                    groups.computeIfAbsent(batch.directory() + batch.partition() + batch.suffix(),
+                            group -> new ArrayList<>()).add(batch);
+                }
+            }
+            List<Run> runs = new ArrayList<>();
+            for (List<BatchKey> group : groups.values()) {
+                group.sort(Comparator.comparingLong(BatchKey::startOffset));
+                runs.addAll(runs(group, sizes));
+            }
+
+            List<String> stored = store(topic, runs, sizes.keySet(), listedEntries);
+            compacted += stored.size();
+            merged.addAll(stored);
+            for (String key : merged) {
+                obsolete.add(key);
+                if (sizes.containsKey(key + BatchIndex.EXTENSION)) {
+                    obsolete.add(key + BatchIndex.EXTENSION);
+                }
+            }
+        }
+        scheduleDeletes(topic, obsolete, now + deleteGraceMs);
+        if (compacted > 0) {
+            logger.warn("Compacted {} batches of {}", compacted, topic);
+        }
+        return compacted;
+    }
+
+    private record Run(List<BatchKey> batches, String key) {
+    }
+
+    // A batch stored for a run, with what the manifests record about it
+    private record Merged(CompletableFuture<Void> stored, ArchiveManifest.Entry entry) {
+    }
+
+    private List<Run> runs(List<BatchKey> group, Map<String, Long> sizes) {
+        List<Run> runs = new ArrayList<>();
+        List<BatchKey> run = new ArrayList<>();
+        long runBytes = 0;
+        for (BatchKey batch : group) {
+            long size = sizes.get(batch.key());
+            boolean small = size < smallObjectBytes;
+            if (!small || runBytes + size > targetObjectBytes
+                    || (!run.isEmpty() && batch.startOffset() != run.get(run.size() - 1).endOffset() + 1)) {
+                addRun(runs, run);
+                run = new ArrayList<>();
+                runBytes = 0;
+            }
+            if (small) {
+                run.add(batch);
+                runBytes += size;
+            }
+        }
+        addRun(runs, run);
+        return runs;
+    }
+
+    private void addRun(List<Run> runs, List<BatchKey> run) {
+        if (run.size() > 1) {
+            runs.add(new Run(run, run.get(0).withOffsets(run.get(0).startOffset(),
+                    run.get(run.size() - 1).endOffset())));
+        }
+    }
+
+    // Stores a batch per run with its manifest entry, and returns the keys of the batches it merged
+    private List<String> store(String topic, List<Run> runs, Set<String> listed, Map<String, ArchiveManifest.Entry> listedEntries) {
+        Map<Run, CompletableFuture<Void>> stored = new LinkedHashMap<>();
+        Map<String, List<ArchiveManifest.Entry>> entries = new HashMap<>();
+        for (Run run : runs) {
+            Merged merged = ArchiveFormat.fromFileName(run.batches.get(0).suffix()) == ArchiveFormat.TEXT
+                    ? concatenate(run, listed, listedEntries) : merge(topic, run);
+            if (merged == null) {
+                continue;
+            }
+            stored.put(run, merged.stored);
+            if (merged.entry != null) {
+                for (String hourPrefix : ArchiveManifest.hourPrefixes(topic, merged.entry)) {
+                    entries.computeIfAbsent(hourPrefix, hour -> new ArrayList<>()).add(merged.entry);
+                }
+            }
+        }
+        if (stored.isEmpty()) {
+            return List.of();
+        }
+        try {
+            CompletableFuture.allOf(stored.values().stream().map(future -> future.handle((v, e) -> null))
+                    .toArray(CompletableFuture[]::new)).get(STORE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            logger.error("Compacted batches of {} were not stored in time, nothing is merged", topic);
+            return List.of();
+        }
+
+        Set<String> storedKeys = new HashSet<>();
+        stored.forEach((run, future) -> {
+            if (!future.isCompletedExceptionally()) {
+                storedKeys.add(run.key);
+                mergedBatches.increment();
+            }
+        });
+        if (manifests) {
+            // the manifests of the compaction list the merged batches next to the ones the archivers listed
+            List<CompletableFuture<Void>> written = new ArrayList<>();
+            entries.forEach((hourPrefix, hourEntries) -> {
+                List<ArchiveManifest.Entry> storedEntries = hourEntries.stream()
+                        .filter(entry -> storedKeys.contains(entry.key())).toList();
+                if (!storedEntries.isEmpty()) {
+                    written.add(uploadService.submitMetadata(ArchiveManifest.encode(storedEntries), hourPrefix + "compaction-"
+                            + writerId + "-" + sequence.incrementAndGet() + ArchiveManifest.EXTENSION));
+                }
+            });
+            try {
+                CompletableFuture.allOf(written.toArray(new CompletableFuture[0])).get(STORE_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                logger.error("Compaction manifests of {} were not stored, nothing is merged", topic);
+                return List.of();
+            }
+        }
+
+        List<String> merged = new ArrayList<>();
+        stored.keySet().stream().filter(run -> storedKeys.contains(run.key))
+                .forEach(run -> run.batches.forEach(batch -> merged.add(batch.key())));
+        return merged;
+    }
+
+    // Streams the records of the run into a single sealed batch, null when a batch of the run doesn't hold
+    // exactly the offsets its name says
+    private Merged merge(String topic, Run run) {
+        BatchKey first = run.batches.get(0);
+        ArchiveFormat format = ArchiveFormat.fromFileName(first.suffix());
+        CompressionType codec = format.compressesInternally() ? parquetCompressionType
+                : CompressionType.fromFileName(first.suffix());
+        BatchConfig config = new BatchConfig(CompressionConfig.of(codec), format,
+                BatchConfig.DEFAULT_ROW_GROUP_SIZE_BYTES, RolloverPolicy.DEFAULT, Map.of(), keyLayout, indexBlockBytes);
+        File workFile = new File(workDir, UUID.randomUUID().toString());
+        TopicPartitionWriter batch = null;
+        try {
+            for (BatchKey source : run.batches) {
+                batch = copy(topic, source, batch, config, workFile);
+            }
+            batch.close();
+            if (!run.key.equals(first.directory() + batch.getFileName())) {
+                throw new IOException("Merged batch came out as " + batch.getFileName());
+            }
+            return new Merged(batch.commit(run.key), batch.getManifestEntry(run.key, true));
+        } catch (IOException | RuntimeException e) {
+            logger.error("Run of {} batches from {} was not compacted : {}", run.batches.size(), first.key(),
+                    e.getMessage());
+            if (batch != null) {
+                batch.abandon();
+            }
+            if (workFile.exists() && !workFile.delete()) {
+                logger.error("Failed Local Cache deletion of {}", workFile.getName());
+            }
+            return null;
+        }
+    }
+
+    // A TEXT batch is a single codec stream of lines, and streams of the same codec read back to back as one,
+    // so the batches of the run are appended as they are instead of being decoded and encoded again
+    // Their indexes are carried over, shifted to where each batch starts, null when the run can't be merged
+    private Merged concatenate(Run run, Set<String> listed, Map<String, ArchiveManifest.Entry> listedEntries) {
+        BatchKey first = run.batches.get(0);
+        if (manifests && !run.batches.stream().allMatch(batch -> listedEntries.containsKey(batch.key()))) {
+            logger.error("Run of {} batches from {} is not listed in the manifests, it is left as is",
+                    run.batches.size(), first.key());
+            return null;
+        }
+        boolean indexed = run.batches.stream().anyMatch(batch -> listed.contains(batch.key() + BatchIndex.EXTENSION));
+        File workFile = new File(workDir, UUID.randomUUID().toString());
+        List<BatchIndex.Block> blocks = new ArrayList<>();
+        long length = 0;
+        try {
+            workFile.getParentFile().mkdirs();
+            try (OutputStream out = new FileOutputStream(workFile)) {
+                for (BatchKey source : run.batches) {
+                    long size;
+                    try (InputStream in = s3Client.getObject(GetObjectRequest.builder().bucket(bucket)
+                            .key(source.key()).build())) {
+                        size = in.transferTo(out);
+                    }
+                    if (indexed) {
+                        blocks.addAll(blocks(source, length, size, listed, listedEntries));
+                    }
+                    length += size;
+                }
+            }
+        } catch (IOException | AwsServiceException | SdkClientException e) {
+            logger.error("Run of {} batches from {} was not compacted : {}", run.batches.size(), first.key(),
+                    e.getMessage());
+            if (workFile.exists() && !workFile.delete()) {
+                logger.error("Failed Local Cache deletion of {}", workFile.getName());
+            }
+            return null;
+        }
+
+        byte[] index = indexed ? new BatchIndex(blocks, length).toBytes() : null;
+        CompletableFuture<Void> stored = uploadService.submit(workFile, run.key).whenComplete((v, e) -> {
+            if (e != null && workFile.exists() && !workFile.delete()) {
+                logger.error("Failed Local Cache deletion of {}", workFile.getName());
+            }
+        });
+        if (index != null) {
+            stored = stored.thenCompose(v -> uploadService.submitMetadata(index, run.key + BatchIndex.EXTENSION)
+                    .exceptionally(e -> {
+                        logger.error("Index of {} was not stored, fetches will read the whole batch", run.key);
+                        return null;
+                    }));
+        }
+        if (!manifests) {
+            return new Merged(stored, null);
+        }
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        for (BatchKey source : run.batches) {
+            ArchiveManifest.Entry entry = listedEntries.get(source.key());
+            minTimestamp = Math.min(minTimestamp, entry.minTimestamp());
+            maxTimestamp = Math.max(maxTimestamp, entry.maxTimestamp());
+        }
+        BatchKey last = run.batches.get(run.batches.size() - 1);
+        return new Merged(stored, new ArchiveManifest.Entry(run.key, first.partition(), first.startOffset(),
+                last.endOffset(), minTimestamp, maxTimestamp, length, index != null));
+    }
+
+    // Blocks of a batch appended at the position, a batch without a readable index is a single block
+    private List<BatchIndex.Block> blocks(BatchKey source, long position, long size, Set<String> listed,
+                                          Map<String, ArchiveManifest.Entry> listedEntries) {
+        if (listed.contains(source.key() + BatchIndex.EXTENSION)) {
+            try {
+                BatchIndex index = BatchIndex.fromBytes(s3Client.getObject(GetObjectRequest.builder().bucket(bucket)
+                        .key(source.key() + BatchIndex.EXTENSION).build(), ResponseTransformer.toBytes()).asByteArray());
+                if (index.objectLength != size) {
+                    throw new IOException("Index of " + source.key() + " is for " + index.objectLength + " bytes");
+                }
+                return index.blocks.stream().map(block -> new BatchIndex.Block(block.firstOffset(),
+                        block.minTimestamp(), block.maxTimestamp(), position + block.position())).toList();
+            } catch (IOException | AwsServiceException | SdkClientException e) {
+                logger.error(e.getMessage());
+            }
+        }
+        // without timestamps the block is always read
+        ArchiveManifest.Entry entry = listedEntries.get(source.key());
+        return List.of(new BatchIndex.Block(source.startOffset(), entry == null ? -1 : entry.minTimestamp(),
+                entry == null ? -1 : entry.maxTimestamp(), position));
+    }
+
+    private TopicPartitionWriter copy(String topic, BatchKey source, TopicPartitionWriter batch, BatchConfig config,
+                                      File workFile) throws IOException {
+        GetObjectRequest request = GetObjectRequest.builder().bucket(bucket).key(source.key()).build();
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>(RECORDS_PER_WRITE);
+        long lastOffset = source.startOffset() - 1;
+        try (InputStream in = s3Client.getObject(request);
+             ArchiveFormat.RecordReader reader = config.archiveFormat
+                     .newReader(CompressionType.fromFileName(source.key()).wrapInputStream(in))) {
+            ArchivedRecord record;
+            while ((record = reader.next()) != null) {
+                // offsets only grow within a batch, from the first to the last one of its name
+                if (record.offset <= lastOffset || (lastOffset < source.startOffset()
+                        && record.offset != source.startOffset()) || record.offset > source.endOffset()) {
+                    throw new IOException(source.key() + " holds offset " + record.offset);
+                }
+                lastOffset = record.offset;
+                records.add(new ConsumerRecord<>(topic, source.partition(), record.offset,
+                        record.timestamp == null ? RecordBatch.NO_TIMESTAMP : record.timestamp,
+                        TimestampType.CREATE_TIME, record.key == null ? -1 : record.key.length,
+                        record.value == null ? -1 : record.value.length, record.key, record.value,
+                        new RecordHeaders(record.headers), Optional.empty()));
+                if (records.size() == RECORDS_PER_WRITE) {
+                    batch = write(batch, records, config, workFile);
+                    records = new ArrayList<>(RECORDS_PER_WRITE);
+                }
+            }
+        } catch (AwsServiceException | SdkClientException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        if (lastOffset != source.endOffset()) {
+            throw new IOException(source.key() + " ends at offset " + lastOffset);
+        }
+        if (!records.isEmpty()) {
+            batch = write(batch, records, config, workFile);
+        }
+        return batch;
+    }
+
+    private TopicPartitionWriter write(TopicPartitionWriter batch, List<ConsumerRecord<byte[], byte[]>> records,
+                                       BatchConfig config, File workFile) {
+        if (batch == null) {
+            batch = new TopicPartitionWriter(records.get(0), config, UNLIMITED,
+                    (leader, batchConfig, path) -> new LocalFileOutput(workFile.getPath(), uploadService));
+        }
+        batch.addToBuffer(records);
+        return batch;
+    }
+
+    // Key -> size of every object under the prefix
+    private Map<String, Long> list(String prefix) {
+        Map<String, Long> sizes = new HashMap<>();
+        ListObjectsV2Request listObjects = ListObjectsV2Request.builder().bucket(bucket).prefix(prefix).build();
+        while (true) {
+            ListObjectsV2Response listObjResponse = s3Client.listObjectsV2(listObjects);
+            for (S3Object content : listObjResponse.contents()) {
+                sizes.put(content.key(), content.size());
+            }
+            if (!listObjResponse.isTruncated()) {
+                return sizes;
+            }
+            listObjects = listObjects.toBuilder().continuationToken(listObjResponse.nextContinuationToken()).build();
+        }
+    }
+
+    // Records the keys in a list of their own, deleted by the first pass after the due time
+    private void scheduleDeletes(String topic, List<String> keys, long dueMillis) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        String listKey = PENDING_DELETES + topic + "/" + dueMillis + "-" + writerId + "-" + sequence.incrementAndGet()
+                + DELETES_EXTENSION;
+        try {
+            uploadService.submit(String.join("\n", keys).getBytes(StandardCharsets.UTF_8), listKey)
+                    .get(STORE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            // the merged batches stay covered, a later pass schedules them again
+            logger.error("Deletion of {} merged objects of {} was not scheduled", keys.size(), topic);
+        }
+    }
+
+    // Deletes the objects of the lists that are due, and returns the keys of those that are not due yet
+    private Set<String> deleteDue(String topic, long nowMillis) {
+        String prefix = PENDING_DELETES + topic + "/";
+        Set<String> pending = new HashSet<>();
+        for (String listKey : list(prefix).keySet()) {
+            String name = listKey.substring(prefix.length());
+            List<String> keys;
+            long dueMillis;
+            try {
+                dueMillis = Long.parseLong(name.substring(0, name.indexOf('-')));
+                byte[] list = s3Client.getObject(GetObjectRequest.builder().bucket(bucket).key(listKey).build(),
+                        ResponseTransformer.toBytes()).asByteArray();
+                keys = new String(list, StandardCharsets.UTF_8).lines().filter(key -> !key.isEmpty()).toList();
+            } catch (RuntimeException e) {
+                logger.error("Pending deletes {} are unreadable : {}", listKey, e.getMessage());
+                continue;
+            }
+            if (dueMillis > nowMillis || !delete(keys)) {
+                pending.addAll(keys);
+                continue;
+            }
+            try {
+                s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(listKey).build());
+            } catch (AwsServiceException | SdkClientException e) {
+                logger.error(e.getMessage());
+            }
+        }
+        return pending;
+    }
+
+    // Deletes the objects, and returns whether they are all gone
+    private boolean delete(List<String> keys) {
+        boolean deleted = true;
+        for (int i = 0; i < keys.size(); i += MAX_DELETE_KEYS) {
+            List<ObjectIdentifier> chunk = keys.subList(i, Math.min(keys.size(), i + MAX_DELETE_KEYS)).stream()
+                    .map(key -> ObjectIdentifier.builder().key(key).build()).toList();
+            DeleteObjectsRequest request = DeleteObjectsRequest.builder().bucket(bucket)
+                    .delete(Delete.builder().objects(chunk).quiet(true).build()).build();
+            try {
+                DeleteObjectsResponse response = s3Client.deleteObjects(request);
+                response.errors().forEach(error -> logger.error("Failed deletion of {} : {}", error.key(),
+                        error.message()));
+                compactedBatches.add(chunk.stream().filter(object -> !BatchIndex.isIndexKey(object.key())).count()
+                        - response.errors().stream().filter(error -> !BatchIndex.isIndexKey(error.key())).count());
+                deleted = deleted && response.errors().isEmpty();
+            } catch (AwsServiceException | SdkClientException e) {
+                logger.error(e.getMessage());
+                deleted = false;
+            }
+        }
+        return deleted;
+    }
+
+    public static class Builder {
+        public S3Client s3Client;
+        public String bucket;
+        public int noOfUploads = 4;
+        public long maxInFlightUploadBytes = 256 * 1024 * 1024;
+        public KeyLayout keyLayout = KeyLayout.LEGACY;
+        public long smallObjectBytes = 1024 * 1024;
+        public long targetObjectBytes = 64 * 1024 * 1024;
+        public int indexBlockBytes = 0;
+        public boolean manifests = false;
+        public CompressionType parquetCompressionType = CompressionType.SNAPPY;
+        public List<String> topics = List.of();
+        public long intervalMs = 60 * 60 * 1000;
+        public long lookbackMs = 24 * 60 * 60 * 1000;
+        public long deleteGraceMs = 6 * 60 * 60 * 1000;
+
+        public Builder() {
+
+        }
+
+        // Bucket the archiver stores into
+        public Builder s3Builder(S3Client s3Client, String _bucket) {
+            this.s3Client = s3Client;
+            this.bucket = _bucket;
+            return this;
+        }
+
+        public Builder uploadCount(int _noOfSimultaneousUploads) {
+            this.noOfUploads = _noOfSimultaneousUploads;
+            return this;
+        }
+
+        // Same layout as the archiver's
+        public Builder keyLayout(KeyLayout _keyLayout) {
+            this.keyLayout = _keyLayout;
+            return this;
+        }
+
+        // Batches smaller than this are merged, into batches of at most the target size
+        public Builder objectSizes(int _smallObjectKB, int _targetObjectMB) {
+            this.smallObjectBytes = _smallObjectKB * 1024L;
+            this.targetObjectBytes = _targetObjectMB * 1024L * 1024;
+            return this;
+        }
+
+        // Writes a <key>.idx sidecar with every merged batch, as the archiver's sidecarIndex does
+        public Builder sidecarIndex(int _blockSizeKB) {
+            this.indexBlockBytes = _blockSizeKB * 1024;
+            return this;
+        }
+
+        // Lists the merged batches in manifests of their own, needed when the archiver keeps manifests
+        public Builder manifests() {
+            this.manifests = true;
+            return this;
+        }
+
+        // Codec of the merged Parquet batches, their names don't carry the one the archiver used
+        public Builder parquetCompression(CompressionType _type) {
+            this.parquetCompressionType = _type;
+            return this;
+        }
+
+        // Topics compacted by start(), every interval over the batches of the lookback
+        public Builder schedule(List<String> _topics, int _intervalMinutes, int _lookbackHours) {
+            this.topics = _topics;
+            this.intervalMs = _intervalMinutes * 60 * 1000L;
+            this.lookbackMs = _lookbackHours * 60 * 60 * 1000L;
+            return this;
+        }
+
+        // Merged batches are deleted this long after the batch replacing them is stored, at least the longest fetch
+        public Builder deleteGracePeriod(int _minutes) {
+            this.deleteGraceMs = _minutes * 60 * 1000L;
+            return this;
+        }
+
+        public void validate() {
+            if (s3Client == null) {
+                throw new IllegalArgumentException("S3Client cannot be null");
+            }
+            if (bucket == null) {
+                throw new IllegalArgumentException("Destination Bucket cannot be null");
+            }
+            if (keyLayout == null) {
+                throw new IllegalArgumentException("Key layout cannot be null");
+            }
+            if (noOfUploads <= 0) {
+                throw new IllegalArgumentException("Upload count must be positive");
+            }
+            if (smallObjectBytes <= 0 || targetObjectBytes < 2 * smallObjectBytes) {
+                throw new IllegalArgumentException("Target size must hold at least two small objects");
+            }
+            if (indexBlockBytes < 0) {
+                throw new IllegalArgumentException("Index block size cannot be negative");
+            }
+            if (parquetCompressionType == null) {
+                throw new IllegalArgumentException("Parquet compression cannot be null");
+            }
+            if (deleteGraceMs < 0) {
+                throw new IllegalArgumentException("Delete grace period cannot be negative");
+            }
+            if (topics == null || intervalMs <= 0 || lookbackMs <= 0) {
+                throw new IllegalArgumentException("Compaction schedule needs topics, an interval and a lookback");
+            }
+        }
+
+        public CompactionService build() {
+            validate();
+            return new CompactionService(this);
+        }
+    }
+}
@@ -1,10 +1,11 @@
 package com.prabh.Archiver;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.prabh.Utils.Metrics;
 import org.apache.kafka.clients.consumer.*;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
-import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,79 +13,171 @@ import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 public class ConsumerService {
+    private static final Metrics.Histogram polledRecords = Metrics.histogram("archiver_poll_records",
+            "Records returned by a non empty poll");
+    private static final Metrics.Counter commitFailures = Metrics.counter("archiver_offset_commit_failures_total",
+            "Offset commits that failed");
+    private static final Metrics.Histogram revokeDuration = Metrics.histogram("archiver_revoke_duration_ms",
+            "Time a rebalance waits for the batches of the revoked partitions");
+    private static final Metrics.Counter lostPartitions = Metrics.counter("archiver_lost_partitions_total",
+            "Partitions lost to another consumer without being revoked first");
     private final Logger logger = LoggerFactory.getLogger(ConsumerService.class);
     private final List<ConsumerWorker> consumers;
     private final ExecutorService workers;
     private final WriteService writer;
-    private final CountDownLatch runningStatus;
     private final int noOfConsumers;
     private final String groupName;
     private final String serverId;
     private final List<String> subscribedTopics;
+    // Creates the consumers instead of the bootstrap server when set, e.g. MockConsumers in load tests
+    private final Supplier<Consumer<byte[], byte[]>> consumerFactory;
+    // Only the partitions that move are revoked on a rebalance, the others keep their open batches
+    private final boolean cooperativeRebalancing;
+    // Static membership when set, consumer i joins as <groupInstanceId>-<i>
+    private final String groupInstanceId;
+    private final int sessionTimeoutMs;
 
     public ConsumerService(WriteService _writer, int _noOfConsumers, String _groupName, String _serverId, List<String> topics) {
+        this(_writer, _noOfConsumers, _groupName, _serverId, topics, null);
+    }
+
+    public ConsumerService(WriteService _writer, int _noOfConsumers, String _groupName, String _serverId,
+                           List<String> topics, Supplier<Consumer<byte[], byte[]>> _consumerFactory) {
+        this(_writer, _noOfConsumers, _groupName, _serverId, topics, _consumerFactory, false, null, 0);
+    }
+
+    public ConsumerService(WriteService _writer, int _noOfConsumers, String _groupName, String _serverId,
+                           List<String> topics, Supplier<Consumer<byte[], byte[]>> _consumerFactory,
+                           boolean _cooperativeRebalancing, String _groupInstanceId, int _sessionTimeoutMs) {
         this.writer = _writer;
+        this.consumerFactory = _consumerFactory;
+        this.cooperativeRebalancing = _cooperativeRebalancing;
+        this.groupInstanceId = _groupInstanceId;
+        this.sessionTimeoutMs = _sessionTimeoutMs;
         this.groupName = _groupName;
         this.serverId = _serverId;
         this.noOfConsumers = _noOfConsumers;
 
+        // consumers can be added at runtime, see addConsumer
         ThreadFactory tf = new ThreadFactoryBuilder().setNameFormat("CONSUMER-WORKER-%d").build();
-        this.workers = Executors.newFixedThreadPool(noOfConsumers, tf);
-        this.runningStatus = new CountDownLatch(this.noOfConsumers);
+        this.workers = Executors.newCachedThreadPool(tf);
         this.consumers = new ArrayList<>(_noOfConsumers);
         this.subscribedTopics = topics;
+        Metrics.gauge("archiver_consumer_lag_records", "Records behind the log end over the assigned partitions",
+                this::lag);
+        Metrics.gauge("archiver_paused_partitions", "Partitions paused until their writer drains",
+                this::pausedPartitions);
+        Metrics.gauge("archiver_consumers", "Consumers in the group from this archiver", this::consumerCount);
+    }
+
+    private long sumOverConsumers(ToLongFunction<ConsumerWorker> value) {
+        synchronized (consumers) {
+            return consumers.stream().mapToLong(value).sum();
+        }
     }
 
     public void start() {
         for (int i = 0; i < noOfConsumers; i++) {
-            ConsumerWorker c = new ConsumerWorker(i);
+            addConsumer();
+        }
+    }
+
+    // Joins one more consumer to the group, which triggers a rebalance
+    public void addConsumer() {
+        synchronized (consumers) {
+            // numbered by position, a static member id is reused by the next consumer added after a removal
+            ConsumerWorker c = new ConsumerWorker(consumers.size());
+            consumers.add(c);
             workers.execute(c);
-            synchronized (consumers) {
-                consumers.add(c);
+        }
+    }
+
+    // Stops the newest consumer once its partitions are released to the rest of the group
+    public void removeConsumer() {
+        ConsumerWorker c;
+        synchronized (consumers) {
+            if (consumers.isEmpty()) {
+                return;
             }
+            c = consumers.remove(consumers.size() - 1);
+        }
+        c.stopConsumer();
+        c.awaitStopped();
+    }
+
+    public int consumerCount() {
+        synchronized (consumers) {
+            return consumers.size();
         }
     }
 
+    // Records behind the log end over every assigned partition, as of the last poll of each consumer
+    public long lag() {
+        return sumOverConsumers(c -> c.lag);
+    }
+
+    public long pausedPartitions() {
+        return sumOverConsumers(c -> c.pausedCount);
+    }
+
     public void shutdown() {
+        List<ConsumerWorker> stopping;
         synchronized (consumers) {
-            consumers.forEach(ConsumerWorker::stopConsumer);
+            stopping = new ArrayList<>(consumers);
             consumers.clear();
         }
+        stopping.forEach(ConsumerWorker::stopConsumer);
+        stopping.forEach(ConsumerWorker::awaitStopped);
         workers.shutdown();
-        try {
-            runningStatus.await();
-        } catch (InterruptedException e) {
-            logger.error(e.getMessage(), e);
-        }
         logger.warn("Consumer Service Shutdown Complete");
     }
 
     private class ConsumerWorker extends Thread implements ConsumerRebalanceListener {
         private final Logger logger = LoggerFactory.getLogger(ConsumerWorker.class.getName());
-        private final KafkaConsumer<String, String> consumer;
+        private final Consumer<byte[], byte[]> consumer;
         private final AtomicBoolean stopped = new AtomicBoolean(false);
-        private final Map<TopicPartition, OffsetAndMetadata> pendingOffsets = new HashMap<>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        // Offsets already handed to commitAsync, so an unchanged watermark isn't committed again
+        private final Map<TopicPartition, OffsetAndMetadata> committedOffsets = new HashMap<>();
+        // Partitions whose writer is out of credit
+        private final Set<TopicPartition> pausedPartitions = new HashSet<>();
         private final int consumerNo;
         private long lastCommitTime = System.currentTimeMillis();
+        // Published for the metrics, read from other threads
+        private volatile long lag = 0;
+        private volatile int pausedCount = 0;
 
         public ConsumerWorker(int consumerNumber) {
             this.consumerNo = consumerNumber;
-            this.consumer = createKafkaConsumer();
+            this.consumer = consumerFactory != null ? consumerFactory.get() : createKafkaConsumer();
         }
 
-        public KafkaConsumer<String, String> createKafkaConsumer() {
+        public KafkaConsumer<byte[], byte[]> createKafkaConsumer() {
             Properties consumerProperties = new Properties();
             consumerProperties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, serverId);
             consumerProperties.put(ConsumerConfig.GROUP_ID_CONFIG, groupName);
-            consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
-            consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+            consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+            consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
             consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
             consumerProperties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
 //            consumerProperties.put(ConsumerConfig.FETCH_MAX_BYTES_CONFIG, 50 * 1024 * 1024);
             consumerProperties.put(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG, 2 * 1024 * 1024);
             consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, Integer.MAX_VALUE);
+            if (cooperativeRebalancing) {
+                consumerProperties.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG,
+                        CooperativeStickyAssignor.class.getName());
+            }
+            // A restart within the session timeout gets the same partitions back without a rebalance
+            if (groupInstanceId != null) {
+                consumerProperties.put(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG, groupInstanceId + "-" + consumerNo);
+            }
+            if (sessionTimeoutMs > 0) {
+                consumerProperties.put(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, sessionTimeoutMs);
+            }
             return new KafkaConsumer<>(consumerProperties);
         }
 
@@ -95,13 +188,18 @@ public class ConsumerService {
 
                 consumer.subscribe(subscribedTopics, this);
                 while (!stopped.get()) {
-                    ConsumerRecords<String, String> records = consumer.poll(Duration.ofMillis(2000));
-                    System.out.println("done");
+                    rewindFailedPartitions();
+                    // while writers are draining, come back soon to resume their partitions
+                    Duration timeout = pausedPartitions.isEmpty() ? Duration.ofMillis(2000) : Duration.ofMillis(100);
+                    ConsumerRecords<byte[], byte[]> records = consumer.poll(timeout);
                     if (!records.isEmpty()) {
+                        polledRecords.observe(records.count());
                         log(records); // makes logs too messy : rather get some better method
                         handleFetchedRecords(records);
                     }
-                    checkActiveTasks();
+                    resumeDrainedPartitions();
+                    updateLag();
+                    writer.tick();
                     commitOffsets();
                 }
             } catch (WakeupException e) {
@@ -109,51 +207,109 @@ public class ConsumerService {
                     throw e;
                 }
             } finally {
+                // Upload whatever is still open so the group resumes right after it
+                releasePartitions(consumer.assignment());
                 consumer.close();
-                runningStatus.countDown();
+                finished.countDown();
                 logger.warn("{} Shutdown Successfully", Thread.currentThread().getName());
             }
         }
 
-        public void handleFetchedRecords(ConsumerRecords<String, String> records) {
+        public void handleFetchedRecords(ConsumerRecords<byte[], byte[]> records) {
             List<TopicPartition> partitionsToPause = new ArrayList<>();
             records.partitions().forEach(currentPartition -> {
-                List<ConsumerRecord<String, String>> partitionRecords = records.records(currentPartition);
-                writer.submit(consumerNo, currentPartition, partitionRecords);
-                partitionsToPause.add(currentPartition);
+                List<ConsumerRecord<byte[], byte[]>> partitionRecords = records.records(currentPartition);
+                if (!writer.submit(currentPartition, partitionRecords)) {
+                    partitionsToPause.add(currentPartition);
+                }
             });
 
-            consumer.pause(partitionsToPause);
+            if (!partitionsToPause.isEmpty()) {
+                consumer.pause(partitionsToPause);
+                pausedPartitions.addAll(partitionsToPause);
+                pausedCount = pausedPartitions.size();
+            }
         }
 
-        public void checkActiveTasks() {
-            List<TopicPartition> partitionsToResume = new ArrayList<>();
-            Map<TopicPartition, OffsetAndMetadata> doneTasks = writer.checkActiveTasks(consumerNo);
-            doneTasks.forEach((currentPartition, offsets) -> {
-                partitionsToResume.add(currentPartition);
-                pendingOffsets.put(currentPartition, offsets);
-            });
+        public void resumeDrainedPartitions() {
+            if (pausedPartitions.isEmpty()) {
+                return;
+            }
+            List<TopicPartition> partitionsToResume = writer.resumable(pausedPartitions);
             if (!partitionsToResume.isEmpty()) {
                 consumer.resume(partitionsToResume);
+                partitionsToResume.forEach(pausedPartitions::remove);
+                pausedCount = pausedPartitions.size();
+            }
+        }
+
+        // A batch that could not be stored is fetched again, together with everything the partition fetched after it
+        // Done before polling, so that no record past the failed batch reaches the new pipeline first
+        private void rewindFailedPartitions() {
+            Map<TopicPartition, Long> rewinds = writer.rewindFailedPartitions(consumer.assignment());
+            if (rewinds.isEmpty()) {
+                return;
             }
+            rewinds.forEach(consumer::seek);
+            consumer.resume(rewinds.keySet());
+            rewinds.keySet().forEach(pausedPartitions::remove);
+            pausedCount = pausedPartitions.size();
+            logger.warn("Fetching {} again after failed batches", rewinds);
         }
 
+        // From the fetch positions and the log end offsets the consumer already has, no broker round trip
+        private void updateLag() {
+            long total = 0;
+            for (TopicPartition tp : consumer.assignment()) {
+                total += consumer.currentLag(tp).orElse(0);
+            }
+            lag = total;
+        }
+
+        // Watermarks only move once uploads complete, every change since the last round goes out
+        // in a single commitAsync so the poll loop never stalls on the coordinator
         public void commitOffsets() {
-            try {
-                long currentTimeInMillis = System.currentTimeMillis();
-                if (currentTimeInMillis - lastCommitTime > 5000) {
-                    if (!pendingOffsets.isEmpty()) {
-                        consumer.commitSync(pendingOffsets);
-                        pendingOffsets.clear();
-                    }
-                    lastCommitTime = currentTimeInMillis;
+            long currentTimeInMillis = System.currentTimeMillis();
+            if (currentTimeInMillis - lastCommitTime <= 5000) {
+                return;
+            }
+            lastCommitTime = currentTimeInMillis;
+
+            Map<TopicPartition, OffsetAndMetadata> offsetsToCommit = new HashMap<>();
+            writer.committableOffsets(consumer.assignment()).forEach((currentPartition, offset) -> {
+                if (!offset.equals(committedOffsets.get(currentPartition))) {
+                    offsetsToCommit.put(currentPartition, offset);
+                }
+            });
+            if (offsetsToCommit.isEmpty()) {
+                return;
+            }
+
+            committedOffsets.putAll(offsetsToCommit);
+            consumer.commitAsync(offsetsToCommit, (offsets, e) -> {
+                if (e != null) {
+                    commitFailures.increment();
+                    logger.error("Failed to commit offsets during routine offset commit : {}", e.getMessage());
+                    // retried with the next round
+                    offsets.keySet().forEach(committedOffsets::remove);
                 }
+            });
+        }
+
+        private void releasePartitions(Collection<TopicPartition> partitions) {
+            Map<TopicPartition, OffsetAndMetadata> offsetsToCommit = writer.drainPartitions(partitions);
+            partitions.forEach(committedOffsets::remove);
+            partitions.forEach(pausedPartitions::remove);
+            pausedCount = pausedPartitions.size();
+            try {
+                consumer.commitSync(offsetsToCommit);
             } catch (Exception e) {
-                logger.error("Failed to commit offsets during routine offset commit");
+                commitFailures.increment();
+                logger.error("Failed to commit offsets of released partitions : {}", e.getMessage());
             }
         }
 
-        public void log(ConsumerRecords<String, String> records) {
+        public void log(ConsumerRecords<byte[], byte[]> records) {
             logger.info("Fetched {} records constituting of {}", records.count(), records.partitions());
         }
 
@@ -163,32 +319,71 @@ public class ConsumerService {
             consumer.wakeup();
         }
 
+        void awaitStopped() {
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                logger.error(e.getMessage(), e);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Only the partitions moving to another consumer with the cooperative assignor, all of them otherwise
         @Override
         public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
-
-            Map<TopicPartition, OffsetAndMetadata> revokedPartitionOffsets = writer.handleRevokedPartitionTasks(consumerNo, partitions);
-            pendingOffsets.putAll(revokedPartitionOffsets);
-
-            // 3. Get the offsets of revoked partitions
-            Map<TopicPartition, OffsetAndMetadata> offsetsToCommit = new HashMap<>();
-            partitions.forEach(currentPartition -> {
-                OffsetAndMetadata offset = pendingOffsets.remove(currentPartition);
-                if (offset != null) {
-                    offsetsToCommit.put(currentPartition, offset);
-                }
-            });
-
-            // 4. Commit offsets of revoked partitions
-            try {
-                consumer.commitSync(offsetsToCommit);
-            } catch (Exception e) {
-                logger.error("Failed to commit offset during re-balance");
+            if (partitions.isEmpty()) {
+                return;
             }
+            // The next owner starts from what is committed here, so the open batches are uploaded first
+            long startTime = System.currentTimeMillis();
+            releasePartitions(partitions);
+            revokeDuration.observe(System.currentTimeMillis() - startTime);
+            logger.info("Released {} after {} ms", partitions, System.currentTimeMillis() - startTime);
+        }
+
+        // The session expired or the member was fenced, another consumer may already be writing them
+        // so their offsets must not be committed from here anymore
+        @Override
+        public void onPartitionsLost(Collection<TopicPartition> partitions) {
+            lostPartitions.add(partitions.size());
+            logger.warn("Lost {}, they are fetched again by their new owner", partitions);
+            writer.abandonPartitions(partitions);
+            partitions.forEach(committedOffsets::remove);
+            partitions.forEach(pausedPartitions::remove);
+            pausedCount = pausedPartitions.size();
         }
 
         @Override
         public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
             consumer.resume(partitions);
+            skipRecoveredOffsets(partitions);
+        }
+
+        // Batches recovered from a crashed run are already in S3, fetching resumes right after them
+        // The new position is committed at once so that the group doesn't go back to it after another crash
+        private void skipRecoveredOffsets(Collection<TopicPartition> partitions) {
+            Map<TopicPartition, OffsetAndMetadata> skipped = new HashMap<>();
+            for (TopicPartition partition : partitions) {
+                if (!writer.hasRecovered(partition)) {
+                    continue;
+                }
+                long position = consumer.position(partition);
+                long next = writer.recoveredUpTo(partition, position);
+                if (next > position) {
+                    consumer.seek(partition, next);
+                    skipped.put(partition, new OffsetAndMetadata(next));
+                }
+            }
+            if (skipped.isEmpty()) {
+                return;
+            }
+            logger.warn("Skipping offsets recovered from the spool, resuming at {}", skipped);
+            try {
+                consumer.commitSync(skipped);
+            } catch (Exception e) {
+                commitFailures.increment();
+                logger.error("Failed to commit the recovered offsets : {}", e.getMessage());
+            }
         }
     }
 }
\ No newline at end of file
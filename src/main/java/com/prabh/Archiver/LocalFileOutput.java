@@ -0,0 +1,61 @@
+package com.prabh.Archiver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+class LocalFileOutput extends BatchOutput {
+    private final File file;
+    private final FileOutputStream out;
+    private final UploadService uploadService;
+    private long written = 0;
+
+    LocalFileOutput(String filePath, UploadService _uploadService) throws IOException {
+        this.file = new File(filePath);
+        this.uploadService = _uploadService;
+        file.getParentFile().mkdirs();
+        this.out = new FileOutputStream(file);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        written++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    @Override
+    long size() {
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    @Override
+    CompletableFuture<Void> commit(String key) {
+        return uploadService.submit(file, key);
+    }
+
+    @Override
+    void discard() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        file.delete();
+    }
+
+    @Override
+    CompletableFuture<Void> commitSidecar(String key, byte[] data) {
+        return uploadService.submitMetadata(data, key);
+    }
+}
@@ -0,0 +1,120 @@
+package com.prabh.Archiver;
+
+import com.prabh.Utils.ArchiveManifest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps this archiver's manifests for the hours it is writing to, and rewrites the ones that changed
+// on a coalesced flush rather than on every batch
+// A batch's offsets only become committable once its entry is in a stored manifest, so that a replay
+// planned from manifests never misses a batch whose records were already committed
+class ManifestWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ManifestWriter.class);
+    static final long FLUSH_INTERVAL_MS = 10 * 1000;
+    // Hours that got nothing new for this long are dropped from memory, late batches start a new manifest
+    private static final long IDLE_RETENTION_MS = 2 * 60 * 60 * 1000;
+    private final UploadService uploadService;
+    private final String writerId = UUID.randomUUID().toString();
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ConcurrentHashMap<String, Manifest> manifests = new ConcurrentHashMap<>();
+    private final AtomicLong lastFlushTime = new AtomicLong(System.currentTimeMillis());
+
+    ManifestWriter(UploadService _uploadService) {
+        this.uploadService = _uploadService;
+    }
+
+    // Completes once the entry is part of a stored manifest of every hour its records span
+    CompletableFuture<Void> add(String topic, ArchiveManifest.Entry entry) {
+        List<CompletableFuture<Void>> stored = new ArrayList<>();
+        for (String hourPrefix : ArchiveManifest.hourPrefixes(topic, entry)) {
+            stored.add(addToHour(hourPrefix, entry));
+        }
+        return CompletableFuture.allOf(stored.toArray(new CompletableFuture[0]));
+    }
+
+    private CompletableFuture<Void> addToHour(String hourPrefix, ArchiveManifest.Entry entry) {
+        while (true) {
+            Manifest manifest = manifests.computeIfAbsent(hourPrefix, prefix -> new Manifest(
+                    prefix + writerId + "-" + generation.incrementAndGet() + ArchiveManifest.EXTENSION));
+            synchronized (manifest) {
+                if (manifest.evicted) {
+                    continue;
+                }
+                CompletableFuture<Void> stored = new CompletableFuture<>();
+                manifest.entries.add(entry);
+                manifest.waiting.add(stored);
+                manifest.lastUpdateTime = System.currentTimeMillis();
+                return stored;
+            }
+        }
+    }
+
+    void flushIfDue() {
+        long now = System.currentTimeMillis();
+        long last = lastFlushTime.get();
+        if (now - last >= FLUSH_INTERVAL_MS && lastFlushTime.compareAndSet(last, now)) {
+            flush();
+        }
+    }
+
+    void flush() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Manifest>> it = manifests.entrySet().iterator();
+        while (it.hasNext()) {
+            Manifest manifest = it.next().getValue();
+            byte[] data;
+            List<CompletableFuture<Void>> flushed;
+            synchronized (manifest) {
+                if (manifest.flushing) {
+                    continue;
+                }
+                if (manifest.waiting.isEmpty()) {
+                    if (now - manifest.lastUpdateTime >= IDLE_RETENTION_MS) {
+                        manifest.evicted = true;
+                        it.remove();
+                    }
+                    continue;
+                }
+                manifest.flushing = true;
+                data = ArchiveManifest.encode(manifest.entries);
+                flushed = manifest.waiting;
+                manifest.waiting = new ArrayList<>();
+            }
+
+            uploadService.submitMetadata(data, manifest.key).whenComplete((v, e) -> {
+                synchronized (manifest) {
+                    manifest.flushing = false;
+                    if (e != null) {
+                        // the next flush writes them again
+                        manifest.waiting.addAll(flushed);
+                        return;
+                    }
+                }
+                flushed.forEach(f -> f.complete(null));
+            });
+        }
+    }
+
+    private static class Manifest {
+        final String key;
+        final List<ArchiveManifest.Entry> entries = new ArrayList<>();
+        List<CompletableFuture<Void>> waiting = new ArrayList<>();
+        long lastUpdateTime = System.currentTimeMillis();
+        boolean flushing = false;
+        boolean evicted = false;
+
+        Manifest(String _key) {
+            this.key = _key;
+        }
+    }
+}
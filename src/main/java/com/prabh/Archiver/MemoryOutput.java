@@ -0,0 +1,87 @@
+package com.prabh.Archiver;
+
+import com.prabh.Utils.BufferArena;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Keeps the batch in blocks of the buffer arena and uploads it straight from them, nothing touches the disk
+class MemoryOutput extends BatchOutput {
+    private final BufferArena arena;
+    private final UploadService uploadService;
+    private final List<ByteBuffer> blocks = new ArrayList<>();
+    private ByteBuffer current;
+    private long written = 0;
+
+    MemoryOutput(BufferArena _arena, UploadService _uploadService) {
+        this.arena = _arena;
+        this.uploadService = _uploadService;
+    }
+
+    private ByteBuffer writable() {
+        if (current == null || !current.hasRemaining()) {
+            current = arena.acquire();
+            blocks.add(current);
+        }
+        return current;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        writable().put((byte) b);
+        written++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        written += len;
+        while (len > 0) {
+            ByteBuffer block = writable();
+            int n = Math.min(len, block.remaining());
+            block.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    long size() {
+        return written;
+    }
+
+    @Override
+    boolean directWrites() {
+        return true;
+    }
+
+    @Override
+    List<ByteBuffer> contents() {
+        List<ByteBuffer> views = new ArrayList<>(blocks.size());
+        for (ByteBuffer block : blocks) {
+            ByteBuffer view = block.duplicate();
+            view.flip();
+            views.add(view);
+        }
+        return views;
+    }
+
+    @Override
+    CompletableFuture<Void> commit(String key) {
+        return uploadService.submit(contents(), key).whenComplete((v, e) -> discard());
+    }
+
+    @Override
+    CompletableFuture<Void> commitSidecar(String key, byte[] data) {
+        return uploadService.submitMetadata(data, key);
+    }
+
+    @Override
+    void discard() {
+        blocks.forEach(arena::release);
+        blocks.clear();
+        current = null;
+    }
+}
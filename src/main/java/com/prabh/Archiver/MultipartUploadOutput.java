@@ -0,0 +1,110 @@
+package com.prabh.Archiver;
+
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Uploads the batch as parts of a multipart upload while it is being written, nothing touches the local disk
+// The final key is only known once the batch is sealed, hence the upload goes to a staging key and is copied
+// over to its final key on commit
+class MultipartUploadOutput extends BatchOutput {
+    static final int MIN_PART_SIZE_BYTES = 5 * 1024 * 1024; // 5 MB, S3 lower bound for all but the last part
+    private static final int INITIAL_BUFFER_SIZE_BYTES = 64 * 1024;
+    private final UploadService uploadService;
+    private final String stagingKey;
+    private final CompletableFuture<String> uploadId;
+    private final int partSize;
+    private final List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE_BYTES];
+    private int count = 0;
+    // bytes of the parts already handed over
+    private long sentBytes = 0;
+    private boolean closed = false;
+
+    MultipartUploadOutput(UploadService _uploadService, String _stagingKey, int _partSize) {
+        this.uploadService = _uploadService;
+        this.stagingKey = _stagingKey;
+        this.partSize = Math.max(_partSize, MIN_PART_SIZE_BYTES);
+        this.uploadId = uploadService.createMultipartUpload(stagingKey);
+    }
+
+    // Buffers grow up to the part size so quiet partitions don't pin a full part in memory
+    private void ensureCapacity(int required) {
+        if (required > buf.length) {
+            buf = Arrays.copyOf(buf, Math.min(Math.max(buf.length * 2, required), Math.max(partSize, required)));
+        }
+    }
+
+    private void sendPart() {
+        int partNumber = parts.size() + 1;
+        parts.add(uploadService.uploadPart(stagingKey, uploadId, partNumber, buf, count));
+        sentBytes += count;
+        // ownership of the buffer is handed over to the upload, the budget blocks here once too much is in flight
+        buf = new byte[INITIAL_BUFFER_SIZE_BYTES];
+        count = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+        if (count >= partSize) {
+            sendPart();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, partSize - count);
+            ensureCapacity(count + n);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count >= partSize) {
+                sendPart();
+            }
+        }
+    }
+
+    @Override
+    long size() {
+        return sentBytes + count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (count > 0 || parts.isEmpty()) {
+            sendPart();
+        }
+    }
+
+    @Override
+    CompletableFuture<Void> commit(String key) {
+        if (!closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Attempt to commit " + key + " before sealing it"));
+        }
+        return uploadService.completeMultipartUpload(stagingKey, uploadId, parts, key, size());
+    }
+
+    // The parts already sent are dropped with the upload, S3 would otherwise keep (and bill) them
+    @Override
+    void discard() {
+        closed = true;
+        buf = null;
+        count = 0;
+        uploadService.abortMultipartUpload(stagingKey, uploadId, parts);
+    }
+
+    @Override
+    CompletableFuture<Void> commitSidecar(String key, byte[] data) {
+        return uploadService.submitMetadata(data, key);
+    }
+}
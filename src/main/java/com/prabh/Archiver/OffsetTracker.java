@@ -0,0 +1,71 @@
+package com.prabh.Archiver;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Per partition watermark of offsets that are durable in S3
+// A batch is pending from the moment it is opened until its object is stored, the committable offset
+// never moves past the start of the oldest pending batch, so a failed upload holds the partition back
+// until the consumer has fetched it again from there
+class OffsetTracker {
+    private final ConcurrentHashMap<TopicPartition, Watermark> watermarks = new ConcurrentHashMap<>();
+
+    // A pipeline keeps the watermark it started with : once the partition is forgotten (or rewound) the batches
+    // still in flight from before only move that detached watermark, never the one of the next owner
+    static class Watermark {
+        // start offset -> number of batches opened at that offset (a retried batch can reuse it)
+        private final TreeMap<Long, Integer> pendingBatches = new TreeMap<>();
+        private long durableOffset = -1;
+
+        synchronized void opened(long startOffset) {
+            pendingBatches.merge(startOffset, 1, Integer::sum);
+        }
+
+        synchronized void durable(long startOffset, long nextOffset) {
+            pendingBatches.computeIfPresent(startOffset, (k, count) -> count == 1 ? null : count - 1);
+            durableOffset = Math.max(durableOffset, nextOffset);
+        }
+
+        synchronized long committable() {
+            if (pendingBatches.isEmpty()) {
+                return durableOffset;
+            }
+            long oldestPending = pendingBatches.firstKey();
+            // nothing before the oldest pending batch has been made durable yet
+            return durableOffset < 0 ? -1 : Math.min(oldestPending, durableOffset);
+        }
+
+        // Start of the oldest batch that isn't durable, -1 when there is none
+        synchronized long oldestPending() {
+            return pendingBatches.isEmpty() ? -1 : pendingBatches.firstKey();
+        }
+    }
+
+    Watermark watermark(TopicPartition partition) {
+        return watermarks.computeIfAbsent(partition, k -> new Watermark());
+    }
+
+    Map<TopicPartition, OffsetAndMetadata> committable(Collection<TopicPartition> partitions) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            Watermark watermark = watermarks.get(partition);
+            if (watermark == null) continue;
+            long offset = watermark.committable();
+            if (offset >= 0) {
+                offsets.put(partition, new OffsetAndMetadata(offset));
+            }
+        }
+        return offsets;
+    }
+
+    // Ownership moved to another consumer, or the partition is fetched again, it resumes from what was committed
+    void forget(Collection<TopicPartition> partitions) {
+        partitions.forEach(watermarks::remove);
+    }
+}
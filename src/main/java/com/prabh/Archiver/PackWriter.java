@@ -0,0 +1,146 @@
+package com.prabh.Archiver;
+
+import com.prabh.Utils.ArchivePack;
+import com.prabh.Utils.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Packs the small batches of a topic's quiet partitions into shared objects instead of an object per batch
+// A topic with many lightly used partitions otherwise stores a tiny object per partition on every rollover,
+// which the fetcher then has to list and get one by one
+// Batches are copied into the pack of their topic and key prefix and released right away, a pack is stored
+// once it reaches MAX_PACK_BYTES or its first batch waited maxWaitMs, and only then are its batches durable
+// A pack is filled into fixed size chunks that are uploaded as they are, and stored on the writer threads like
+// any batch, as waiting for the upload budget must not hold up the consumer that flushes the due packs
+class PackWriter {
+    private static final Logger logger = LoggerFactory.getLogger(PackWriter.class);
+    static final long MAX_PACK_BYTES = 32 * 1024 * 1024; // 32 MB
+    private static final int CHUNK_BYTES = 1024 * 1024; // 1 MB
+    private static final Metrics.Counter packedBatches = Metrics.counter("archiver_packed_batches_total",
+            "Batches stored as a section of a pack");
+    private static final Metrics.Counter packsStored = Metrics.counter("archiver_packs_stored_total",
+            "Packs stored");
+    private final UploadService uploadService;
+    private final Executor storeExecutor;
+    private final long maxWaitMs;
+    private final String writerId = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+    // key prefix -> pack being filled, guarded by this
+    private final Map<String, Pack> packs = new HashMap<>();
+
+    PackWriter(UploadService _uploadService, Executor _storeExecutor, long _maxWaitMs) {
+        this.uploadService = _uploadService;
+        this.storeExecutor = _storeExecutor;
+        this.maxWaitMs = _maxWaitMs;
+    }
+
+    // Takes over the sealed batch, the future completes with the key of its pack once the pack is stored
+    CompletableFuture<String> add(TopicPartitionWriter sealed) {
+        CompletableFuture<String> stored = new CompletableFuture<>();
+        Pack full = null;
+        try {
+            synchronized (this) {
+                Pack pack = packs.computeIfAbsent(sealed.getPackPrefix(), Pack::new);
+                pack.add(sealed, stored);
+                if (pack.size >= MAX_PACK_BYTES) {
+                    full = packs.remove(pack.prefix);
+                }
+            }
+        } finally {
+            sealed.discard();
+        }
+        packedBatches.increment();
+        if (full != null) {
+            store(full);
+        }
+        return stored;
+    }
+
+    void flushIfDue() {
+        long now = System.currentTimeMillis();
+        List<Pack> due = new ArrayList<>();
+        synchronized (this) {
+            packs.values().removeIf(pack -> now - pack.createdTime >= maxWaitMs && due.add(pack));
+        }
+        due.forEach(this::store);
+    }
+
+    // Stores every pack no matter how full, e.g. before partitions are handed over
+    void flush() {
+        List<Pack> all;
+        synchronized (this) {
+            all = new ArrayList<>(packs.values());
+            packs.clear();
+        }
+        all.forEach(this::store);
+    }
+
+    private void store(Pack pack) {
+        storeExecutor.execute(() -> submit(pack));
+    }
+
+    private void submit(Pack pack) {
+        String key = pack.prefix + ArchivePack.fileName(writerId, sequence.incrementAndGet());
+        List<ByteBuffer> data = pack.contents();
+        data.add(ByteBuffer.wrap(ArchivePack.encodeTable(pack.sections)));
+        uploadService.submit(data, key).whenComplete((v, e) -> {
+            if (e != null) {
+                // every batch in it fails, which rewinds its partition to the batch, see rewindFailedPartitions
+                logger.error("Pack of {} batches under {} was not stored", pack.sections.size(), pack.prefix);
+                pack.waiting.forEach(f -> f.completeExceptionally(e));
+                return;
+            }
+            packsStored.increment();
+            pack.waiting.forEach(f -> f.complete(key));
+        });
+    }
+
+    private static class Pack {
+        final String prefix;
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        final List<ArchivePack.Section> sections = new ArrayList<>();
+        final List<CompletableFuture<String>> waiting = new ArrayList<>();
+        final long createdTime = System.currentTimeMillis();
+        long size = 0;
+
+        Pack(String _prefix) {
+            this.prefix = _prefix;
+        }
+
+        // The batch's views are released right after, so their bytes are copied into the pack's chunks
+        void add(TopicPartitionWriter sealed, CompletableFuture<String> stored) {
+            ArchivePack.Section section = sealed.getSection(size);
+            for (ByteBuffer view : sealed.getContents()) {
+                ByteBuffer bytes = view.duplicate();
+                while (bytes.hasRemaining()) {
+                    ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+                    if (chunk == null || !chunk.hasRemaining()) {
+                        chunk = ByteBuffer.allocate(CHUNK_BYTES);
+                        chunks.add(chunk);
+                    }
+                    int n = Math.min(bytes.remaining(), chunk.remaining());
+                    chunk.put(bytes.slice(bytes.position(), n));
+                    bytes.position(bytes.position() + n);
+                    size += n;
+                }
+            }
+            sections.add(section);
+            waiting.add(stored);
+        }
+
+        // Views of the bytes written, the chunks are not touched again once the pack is stored
+        List<ByteBuffer> contents() {
+            List<ByteBuffer> views = new ArrayList<>(chunks.size() + 1);
+            for (ByteBuffer chunk : chunks) {
+                views.add(chunk.duplicate().flip());
+            }
+            return views;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.prabh.Archiver;
+
+// Decides when a batch is sealed and uploaded : whichever of its size, record count or age limit is reached first
+// A fixed policy uses the same limits for every batch
+// An adaptive policy sizes each batch from the throughput its partition has shown so far, so that every
+// partition uploads about objectsPerHour objects : quiet partitions are cut by age, hot ones by a size
+// that grows with their throughput (bounded by minBytes and maxBytes)
+public class RolloverPolicy {
+    public static final long UNLIMITED = Long.MAX_VALUE;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+    // Weight of the latest batch in the throughput estimate
+    private static final double RATE_SMOOTHING = 0.5;
+    public static final RolloverPolicy DEFAULT = fixed(10 * 1024 * 1024, UNLIMITED, 5 * 60 * 1000);
+
+    public final long minBytes;
+    public final long maxBytes;
+    public final long maxRecords;
+    public final long maxAgeMs;
+    // 0 for a fixed policy
+    public final int objectsPerHour;
+
+    // Limits of a single batch
+    record Limits(long bytes, long records, long ageMs) {
+    }
+
+    private RolloverPolicy(long _minBytes, long _maxBytes, long _maxRecords, long _maxAgeMs, int _objectsPerHour) {
+        this.minBytes = _minBytes;
+        this.maxBytes = _maxBytes;
+        this.maxRecords = _maxRecords;
+        this.maxAgeMs = _maxAgeMs;
+        this.objectsPerHour = _objectsPerHour;
+    }
+
+    public static RolloverPolicy fixed(long maxBytes, long maxRecords, long maxAgeMs) {
+        if (maxBytes <= 0 || maxRecords <= 0 || maxAgeMs <= 0) {
+            throw new IllegalArgumentException("Rollover size, record count and age limits must be positive");
+        }
+        return new RolloverPolicy(maxBytes, maxBytes, maxRecords, maxAgeMs, 0);
+    }
+
+    public static RolloverPolicy adaptive(int objectsPerHour, long minBytes, long maxBytes) {
+        if (objectsPerHour <= 0) {
+            throw new IllegalArgumentException("Objects per hour must be positive");
+        }
+        if (minBytes <= 0 || maxBytes < minBytes) {
+            throw new IllegalArgumentException("Adaptive rollover needs 0 < minBytes <= maxBytes");
+        }
+        return new RolloverPolicy(minBytes, maxBytes, UNLIMITED, HOUR_MS / objectsPerHour, objectsPerHour);
+    }
+
+    public boolean isAdaptive() {
+        return objectsPerHour > 0;
+    }
+
+    // Limits of the first batch of a partition, before anything is known about its throughput
+    Limits initialLimits() {
+        return new Limits(maxBytes, maxRecords, maxAgeMs);
+    }
+
+    // bytesPerMs is the smoothed write rate of the partition, negative when not known yet
+    Limits limitsFor(double bytesPerMs) {
+        if (!isAdaptive() || bytesPerMs < 0) {
+            return initialLimits();
+        }
+        long target = (long) Math.min(bytesPerMs * maxAgeMs, maxBytes);
+        return new Limits(Math.max(target, minBytes), maxRecords, maxAgeMs);
+    }
+
+    // Folds the rate seen by the last sealed batch into the estimate
+    static double updateRate(double bytesPerMs, long bytes, long durationMs) {
+        double observed = (double) bytes / Math.max(durationMs, 1);
+        return bytesPerMs < 0 ? observed : (1 - RATE_SMOOTHING) * bytesPerMs + RATE_SMOOTHING * observed;
+    }
+}
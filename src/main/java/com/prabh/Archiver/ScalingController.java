@@ -0,0 +1,154 @@
+package com.prabh.Archiver;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+// Adds and removes consumers, writers and upload workers while running, between the configured counts
+// (the minimum) and the autoScale bounds (the maximum)
+// Every second it samples how busy each stage is, and every window it moves the stages that were
+// saturated for the whole window up by half their size, and the ones that stayed idle for a minute down by one
+// Writers and uploads grow on their own, consumers only while the writers and uploads keep up,
+// as more consumers would otherwise only fill the writer queues faster
+class ScalingController {
+    private static final Logger logger = LoggerFactory.getLogger(ScalingController.class);
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+    private static final int SAMPLES_PER_WINDOW = 10;
+    // Idle windows in a row before capacity is given back, traffic that just dipped comes back quickly
+    private static final int IDLE_WINDOWS_TO_SHRINK = 6;
+    private final ConsumerService consumers;
+    private final WriteService writer;
+    private final UploadService uploader;
+    private final long lagThreshold;
+    private final Stage consumerStage;
+    private final Stage writerStage;
+    private final Stage uploadStage;
+    private final ScheduledExecutorService scheduler;
+    private int samples = 0;
+    private long windowStartLag = -1;
+
+    ScalingController(ConsumerService _consumers, WriteService _writer, UploadService _uploader,
+                      int minConsumers, int maxConsumers, int minWriters, int maxWriters,
+                      int minUploads, int maxUploads, long _lagThreshold) {
+        this.consumers = _consumers;
+        this.writer = _writer;
+        this.uploader = _uploader;
+        this.lagThreshold = _lagThreshold;
+        this.consumerStage = new Stage("consumers", minConsumers, maxConsumers, this::resizeConsumers);
+        this.writerStage = new Stage("writers", minWriters, maxWriters, writer::resizeWriters);
+        this.uploadStage = new Stage("upload workers", minUploads, uploader.hasWorkers() ? maxUploads : minUploads,
+                uploader::resizeWorkers);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("SCALING-CONTROLLER").setDaemon(true).build());
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::sample, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private void sample() {
+        try {
+            long lag = consumers.lag();
+            if (windowStartLag < 0) {
+                windowStartLag = lag;
+            }
+            // busy : every slot taken and more work waiting, idle : at most half of the slots taken
+            writerStage.sample(writer.waitingWriters() > 0,
+                    writer.busyWriters() <= writerStage.size / 2);
+            uploadStage.sample(uploader.waitingRequests() > 0,
+                    uploader.busyWorkers() <= uploadStage.size / 2);
+            // paused partitions mean the consumers are already faster than the writers
+            consumerStage.sample(lag > lagThreshold && consumers.pausedPartitions() == 0,
+                    lag < lagThreshold / 4);
+
+            if (++samples < SAMPLES_PER_WINDOW) {
+                return;
+            }
+            // lag that is already shrinking doesn't need more consumers
+            boolean lagGrowing = lag >= windowStartLag;
+            samples = 0;
+            windowStartLag = lag;
+
+            boolean uploadsBusy = uploadStage.busyWindow();
+            boolean writersBusy = writerStage.busyWindow();
+            uploadStage.decide(true);
+            writerStage.decide(true);
+            consumerStage.decide(lagGrowing && !writersBusy && !uploadsBusy);
+        } catch (RuntimeException e) {
+            logger.error("Scaling round failed : {}", e.getMessage());
+        }
+    }
+
+    private void resizeConsumers(int count) {
+        while (consumers.consumerCount() < count) {
+            consumers.addConsumer();
+        }
+        while (consumers.consumerCount() > count) {
+            consumers.removeConsumer();
+        }
+    }
+
+    private static class Stage {
+        private final String name;
+        private final int min;
+        private final int max;
+        private final IntConsumer resize;
+        private int size;
+        private int busySamples = 0;
+        private int idleSamples = 0;
+        private int idleWindows = 0;
+
+        Stage(String _name, int _min, int _max, IntConsumer _resize) {
+            this.name = _name;
+            this.min = _min;
+            this.max = Math.max(_min, _max);
+            this.resize = _resize;
+            this.size = _min;
+        }
+
+        void sample(boolean busy, boolean idle) {
+            if (busy) busySamples++;
+            if (idle) idleSamples++;
+        }
+
+        boolean busyWindow() {
+            return busySamples >= SAMPLES_PER_WINDOW - 1;
+        }
+
+        // mayGrow is false when a stage further down is the bottleneck
+        void decide(boolean mayGrow) {
+            boolean busy = busyWindow();
+            boolean idle = idleSamples == SAMPLES_PER_WINDOW;
+            busySamples = 0;
+            idleSamples = 0;
+            idleWindows = idle ? idleWindows + 1 : 0;
+
+            int target = size;
+            if (busy && mayGrow) {
+                target = Math.min(max, size + Math.max(1, size / 2));
+            } else if (idleWindows >= IDLE_WINDOWS_TO_SHRINK) {
+                target = Math.max(min, size - 1);
+                idleWindows = 0;
+            }
+            if (target != size) {
+                logger.warn("Scaling {} from {} to {}", name, size, target);
+                resize.accept(target);
+                size = target;
+            }
+        }
+    }
+}
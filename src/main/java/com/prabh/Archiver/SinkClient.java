@@ -1,29 +1,78 @@
 package com.prabh.Archiver;
 
 import com.prabh.Utils.AdminController;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.CompressionConfig;
 import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.KeyLayout;
+import com.prabh.Utils.Metrics;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetBucketAclRequest;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 public class SinkClient {
+    private final Logger logger = LoggerFactory.getLogger(SinkClient.class);
     private final ConsumerService consumerClient;
     private final WriteService writerClient;
     private final UploadService uploadClient;
+    private final int metricsHttpPort;
+    // null unless autoScale is set
+    private final ScalingController scalingController;
+    // null unless backfill is set
+    private final BackfillService backfillClient;
+    private final String serverId;
+    private final String groupName;
+    private final List<String> subscribedTopics;
+    private HttpServer metricsServer;
 
     private SinkClient(Builder builder) {
 
 //         Creating Uploader Client
-        this.uploadClient = new UploadService(builder.s3Client, builder.bucket, builder.noOfUploads);
+        if (builder.s3AsyncClient != null) {
+            this.uploadClient = new UploadService(builder.s3AsyncClient, builder.bucket, builder.maxInFlightUploadBytes);
+        } else {
+            this.uploadClient = new UploadService(builder.s3Client, builder.bucket, builder.noOfUploads,
+                    builder.maxInFlightUploadBytes);
+        }
 
 //         Creating Writer Client
-        this.writerClient = new WriteService(builder.noOfConsumers, builder.noOfSimultaneousWrites, builder.compressionType, uploadClient);
+        this.writerClient = new WriteService(builder.noOfSimultaneousWrites,
+                new BatchConfig(new CompressionConfig(builder.compressionType, builder.compressionLevel,
+                        builder.topicCompressionLevels, builder.compressionWorkers, builder.parallelCompressionBlockBytes),
+                        builder.archiveFormat, builder.parquetRowGroupSizeBytes, builder.rollover,
+                        builder.topicRollover, builder.keyLayout, builder.indexBlockBytes),
+                builder.sinkMode, builder.partSizeInBytes, builder.memoryBufferBytes, uploadClient,
+                builder.manifests, builder.packBelowBytes, builder.packMaxWaitMs);
 
 //         Creating Consumer Client
-        this.consumerClient = new ConsumerService(writerClient, builder.noOfConsumers, builder.groupName, builder.serverId, builder.subscribedTopics);
+        this.consumerClient = new ConsumerService(writerClient, builder.noOfConsumers, builder.groupName, builder.serverId,
+                builder.subscribedTopics, builder.consumerFactory, builder.cooperativeRebalancing,
+                builder.groupInstanceId, builder.sessionTimeoutMs);
+        this.metricsHttpPort = builder.metricsHttpPort;
+        this.scalingController = builder.maxConsumers == 0 ? null : new ScalingController(consumerClient,
+                writerClient, uploadClient, builder.noOfConsumers, builder.maxConsumers,
+                builder.noOfSimultaneousWrites, builder.maxWriteTasks, builder.noOfUploads, builder.maxUploads,
+                builder.scaleUpLag);
+        this.backfillClient = builder.backfillConsumers == 0 ? null : new BackfillService(writerClient,
+                builder.backfillConsumers, builder.backfillChunkRecords, builder.serverId, null);
+        this.serverId = builder.serverId;
+        this.groupName = builder.groupName;
+        this.subscribedTopics = builder.subscribedTopics;
 
 
 //         shutdown hook
@@ -34,16 +83,69 @@ public class SinkClient {
     }
 
     public void start() {
+        if (metricsHttpPort > 0) {
+            try {
+                metricsServer = Metrics.serveHttp(metricsHttpPort);
+            } catch (IOException e) {
+                logger.error("Metrics endpoint not started : {}", e.getMessage());
+            }
+        }
+        // what a crashed run left behind is stored before its offsets are fetched again
+        writerClient.recover();
+        if (backfillClient != null) {
+            backfill();
+            if (backfillClient.isStopped()) {
+                return;
+            }
+        }
         consumerClient.start();
+        if (scalingController != null) {
+            scalingController.start();
+        }
+    }
+
+    // Archives everything up to the current log end with the backfill consumers, then hands the partitions
+    // over to the group by committing the offsets the backfill got to
+    private void backfill() {
+        AdminController adminController = new AdminController(serverId);
+        try {
+            Map<TopicPartition, Long> endOffsets = adminController.latestOffsets(subscribedTopics);
+            Map<TopicPartition, Long> startOffsets = adminController.earliestOffsets(subscribedTopics);
+            adminController.committedOffsets(groupName).forEach((partition, committed) -> {
+                if (startOffsets.containsKey(partition)) {
+                    startOffsets.merge(partition, committed.offset(), Math::max);
+                }
+            });
+            Map<TopicPartition, OffsetAndMetadata> resumeOffsets = backfillClient.run(startOffsets, endOffsets);
+            if (!resumeOffsets.isEmpty()) {
+                // fails while the group has active members, their partitions are then consumed again
+                adminController.commitOffsets(groupName, resumeOffsets);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Backfill handover failed, the group consumes from its committed offsets : {}",
+                    e.getMessage());
+        } finally {
+            adminController.shutdown();
+        }
     }
 
     public void shutdown() {
+        if (backfillClient != null) {
+            backfillClient.stop();
+        }
+        if (scalingController != null) {
+            scalingController.shutdown();
+        }
         consumerClient.shutdown();
         writerClient.shutdown();
         uploadClient.shutdown();
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+        }
     }
 
     public static class Builder {
+        private static final long MIN_MEMORY_BUFFER_BYTES = 64L * 1024 * 1024;
         public String serverId;
         public String groupName = "S3Archiver";
         public List<String> subscribedTopics;
@@ -51,8 +153,37 @@ public class SinkClient {
         public int noOfSimultaneousWrites = 5;
         public int noOfUploads = 5;
         public S3Client s3Client;
+        public S3AsyncClient s3AsyncClient;
+        public long maxInFlightUploadBytes = 256 * 1024 * 1024;
         public String bucket;
         public CompressionType compressionType = CompressionType.NONE;
+        public int compressionLevel = CompressionType.DEFAULT_LEVEL;
+        public Map<String, Integer> topicCompressionLevels = new HashMap<>();
+        public int compressionWorkers = 0;
+        public int parallelCompressionBlockBytes = 0;
+        public ArchiveFormat archiveFormat = ArchiveFormat.TEXT;
+        public long parquetRowGroupSizeBytes = BatchConfig.DEFAULT_ROW_GROUP_SIZE_BYTES;
+        public RolloverPolicy rollover = RolloverPolicy.DEFAULT;
+        public Map<String, RolloverPolicy> topicRollover = new HashMap<>();
+        public KeyLayout keyLayout = KeyLayout.LEGACY;
+        public int indexBlockBytes = 0;
+        public boolean manifests = false;
+        public long packBelowBytes = 0;
+        public long packMaxWaitMs = 0;
+        public SinkMode sinkMode = SinkMode.LOCAL_FILE;
+        public int partSizeInBytes = 8 * 1024 * 1024;
+        public long memoryBufferBytes = 512L * 1024 * 1024;
+        public int metricsHttpPort = 0;
+        public Supplier<Consumer<byte[], byte[]>> consumerFactory;
+        public boolean cooperativeRebalancing = false;
+        public String groupInstanceId;
+        public int sessionTimeoutMs = 0;
+        public int maxConsumers = 0;
+        public int maxWriteTasks = 0;
+        public int maxUploads = 0;
+        public long scaleUpLag = 0;
+        public int backfillConsumers = 0;
+        public long backfillChunkRecords = 0;
 
         public Builder() {
 
@@ -82,11 +213,18 @@ public class SinkClient {
             return this;
         }
 
+        // No of upload threads, only used with the blocking S3Client
         public Builder uploadCount(int _noOfSimultaneousUploads) {
             this.noOfUploads = _noOfSimultaneousUploads;
             return this;
         }
 
+        // Max bytes being uploaded at once, writers wait for uploads to finish beyond this
+        public Builder uploadBudget(int _maxInFlightMB) {
+            this.maxInFlightUploadBytes = (long) _maxInFlightMB * 1024 * 1024;
+            return this;
+        }
+
         // Make sure this topic Exists
         public Builder subscribedTopics(String _topic) {
             this.subscribedTopics = List.of(_topic);
@@ -98,25 +236,187 @@ public class SinkClient {
             return this;
         }
 
-        // Available options so far : none, Gzip, snappy
+        // Available options so far : none, Gzip, snappy, zstd, lz4
         public Builder compressionType(CompressionType _type) {
             this.compressionType = _type;
             return this;
         }
 
+        // Level for every topic : gzip 0-9, zstd 1-22 (negative for faster), lz4 1-17 (high compressor)
+        public Builder compressionLevel(int _level) {
+            this.compressionLevel = _level;
+            return this;
+        }
+
+        // Overrides the level for a single topic
+        public Builder compressionLevel(String _topic, int _level) {
+            this.topicCompressionLevels.put(_topic, _level);
+            return this;
+        }
+
+        // Native threads compressing each zstd stream, 0 compresses on the writer thread itself
+        public Builder compressionWorkers(int _workers) {
+            this.compressionWorkers = _workers;
+            return this;
+        }
+
+        // Compresses each batch as independent blocks of this size on a shared pool,
+        // so a single hot partition can use every core
+        public Builder parallelCompression(int _blockSizeMB) {
+            this.parallelCompressionBlockBytes = _blockSizeMB * 1024 * 1024;
+            return this;
+        }
+
+        // Available options so far : text (values only), binary (offset, timestamp, key, headers and value),
+        // parquet (the binary fields as columns, compressed per column chunk with compressionType)
+        public Builder archiveFormat(ArchiveFormat _format) {
+            this.archiveFormat = _format;
+            return this;
+        }
+
+        // Rows buffered before a Parquet row group is written out, bigger groups compress better
+        public Builder parquetRowGroupSize(int _rowGroupSizeInMB) {
+            this.parquetRowGroupSizeBytes = _rowGroupSizeInMB * 1024L * 1024;
+            return this;
+        }
+
+        // When batches are sealed and uploaded, for every topic
+        // RolloverPolicy.fixed(maxBytes, maxRecords, maxAgeMs) or RolloverPolicy.adaptive(objectsPerHour, minBytes, maxBytes)
+        public Builder rollover(RolloverPolicy _policy) {
+            this.rollover = _policy;
+            return this;
+        }
+
+        // Overrides the rollover policy of a single topic
+        public Builder rollover(String _topic, RolloverPolicy _policy) {
+            this.topicRollover.put(_topic, _policy);
+            return this;
+        }
+
+        // Key structure of the uploaded batches, the fetcher must be given the same layout
+        // HIVE and SALTED_HIVE use UTC dt=/hr= prefixes, SALTED_HIVE also spreads partitions over 16 leading prefixes
+        public Builder keyLayout(KeyLayout _keyLayout) {
+            this.keyLayout = _keyLayout;
+            return this;
+        }
+
+        // Writes a <key>.idx sidecar with every batch, mapping offsets and timestamps to independently compressed
+        // blocks of this size, so that the fetcher reads only the blocks it needs
+        // With parallelCompression the parallel block size is used instead
+        public Builder sidecarIndex(int _blockSizeKB) {
+            this.indexBlockBytes = _blockSizeKB * 1024;
+            return this;
+        }
+
+        // Keeps per hour manifests of the stored batches under manifests/<topic>/, which the fetcher can plan
+        // replays from instead of listing every minute prefix
+        // Offsets are then only committed once their batch is listed in a stored manifest
+        public Builder manifests() {
+            this.manifests = true;
+            return this;
+        }
+
+        // Batches that come out smaller than maxBatchKB once sealed, typically those of quiet partitions sealed
+        // on age, are stored together as sections of a shared .kpack object per topic and key prefix
+        // A pack is stored once it holds 32 MB or its first batch waited maxWaitSec, only then are the
+        // offsets of its batches committed
+        public Builder packSmallBatches(int _maxBatchKB, int _maxWaitSec) {
+            this.packBelowBytes = _maxBatchKB * 1024L;
+            this.packMaxWaitMs = _maxWaitSec * 1000L;
+            return this;
+        }
+
+        // LOCAL_FILE stages batches on disk, MULTIPART streams them to S3 while they are written
+        public Builder sinkMode(SinkMode _sinkMode) {
+            this.sinkMode = _sinkMode;
+            return this;
+        }
+
+        // Size of each streamed part in MULTIPART mode, S3 requires at least 5 MB
+        public Builder partSize(int _partSizeInMB) {
+            this.partSizeInBytes = _partSizeInMB * 1024 * 1024;
+            return this;
+        }
+
+        // Off heap memory all open and uploading batches share in IN_MEMORY mode
+        // Once it runs low batches are sealed early, and once it is used up the partitions are paused
+        public Builder memoryBuffer(int _sizeInMB) {
+            this.memoryBufferBytes = (long) _sizeInMB * 1024 * 1024;
+            return this;
+        }
+
+        // Serves the metrics in the Prometheus text format on http://<host>:<port>/metrics
+        // They are always exported over JMX under the com.prabh.archiver domain
+        public Builder metricsHttpPort(int _port) {
+            this.metricsHttpPort = _port;
+            return this;
+        }
+
+        // Uses the CooperativeStickyAssignor : a rebalance only revokes the partitions that move,
+        // the others keep consuming and their open batches aren't sealed early
+        // Switching a running group over needs a rolling restart through both assignors, see the Kafka docs
+        public Builder cooperativeRebalancing() {
+            this.cooperativeRebalancing = true;
+            return this;
+        }
+
+        // Static group membership : consumer i joins as <instanceId>-<i>, so the instance id must be unique per
+        // archiver and stable across its restarts
+        // A restart within the session timeout gets its partitions back without any rebalance
+        public Builder staticMembership(String _instanceId, int _sessionTimeoutSec) {
+            this.groupInstanceId = _instanceId;
+            this.sessionTimeoutMs = _sessionTimeoutSec * 1000;
+            return this;
+        }
+
+        // Grows consumers, write tasks and upload workers while running, up to these bounds, and shrinks
+        // them back to consumerCount, writeTaskCount and uploadCount once the load is gone
+        // Consumers are added while the lag stays over scaleUpLag records and keeps growing
+        public Builder autoScale(int _maxConsumers, int _maxWriteTasks, int _maxUploads, long _scaleUpLag) {
+            this.maxConsumers = _maxConsumers;
+            this.maxWriteTasks = _maxWriteTasks;
+            this.maxUploads = _maxUploads;
+            this.scaleUpLag = _scaleUpLag;
+            return this;
+        }
+
+        // Before joining the group, archives everything the topics hold past the group's committed offsets
+        // (all of it for a new group) with this many consumers outside of the group, each partition cut into
+        // chunks of recordsPerChunk offsets that are read in parallel
+        // The group then starts from where the backfill got to, it must have no other members meanwhile
+        public Builder backfill(int _consumers, long _recordsPerChunk) {
+            this.backfillConsumers = _consumers;
+            this.backfillChunkRecords = _recordsPerChunk;
+            return this;
+        }
+
+        // Every consumer worker takes its consumer from here instead of connecting to bootstrapServer
+        // Meant for load tests and other in-process runs, e.g. with MockConsumer
+        public Builder consumerFactory(Supplier<Consumer<byte[], byte[]>> _consumerFactory) {
+            this.consumerFactory = _consumerFactory;
+            return this;
+        }
+
         public Builder s3Builder(S3Client s3Client, String _bucket) {
             this.s3Client = s3Client;
             this.bucket = _bucket;
             return this;
         }
 
+        // Uploads are driven by the async client, no upload threads are used
+        public Builder s3Builder(S3AsyncClient s3AsyncClient, String _bucket) {
+            this.s3AsyncClient = s3AsyncClient;
+            this.bucket = _bucket;
+            return this;
+        }
+
         public void validate() {
-            if (serverId == null) {
+            if (serverId == null && consumerFactory == null) {
                 throw new IllegalArgumentException("Bootstrap Server Id cannot be null");
             }
             if (subscribedTopics == null) {
                 throw new IllegalArgumentException("Subscribed Topics cannot be null");
-            } else {
+            } else if (consumerFactory == null) {
                 AdminController adminController = new AdminController(serverId);
                 if (!adminController.exists(subscribedTopics)) {
                     throw new IllegalArgumentException("Attempt to subscribe non-existing topic");
@@ -124,26 +424,108 @@ public class SinkClient {
                 adminController.shutdown();
             }
 
-            if (s3Client == null) {
+            if (groupInstanceId != null && (groupInstanceId.isBlank() || sessionTimeoutMs <= 0)) {
+                throw new IllegalArgumentException("Static membership needs an instance id and a positive session timeout");
+            }
+
+            if (maxConsumers != 0 && (maxConsumers < noOfConsumers || maxWriteTasks < noOfSimultaneousWrites
+                    || maxUploads < noOfUploads || scaleUpLag <= 0)) {
+                throw new IllegalArgumentException("Auto scaling bounds must be at least the configured counts");
+            }
+
+            if (backfillConsumers != 0) {
+                if (backfillConsumers < 0 || backfillChunkRecords <= 0) {
+                    throw new IllegalArgumentException("Backfill needs a positive consumer count and chunk size");
+                } else if (consumerFactory != null) {
+                    throw new IllegalArgumentException("Backfill needs a bootstrap server to look up the offsets");
+                }
+            }
+
+            if (!compressionType.supportsLevel(compressionLevel)
+                    || !topicCompressionLevels.values().stream().allMatch(compressionType::supportsLevel)) {
+                throw new IllegalArgumentException("Compression level is not supported by " + compressionType.name);
+            }
+
+            if (indexBlockBytes < 0) {
+                throw new IllegalArgumentException("Index block size cannot be negative");
+            }
+
+            if (parallelCompressionBlockBytes < 0) {
+                throw new IllegalArgumentException("Parallel compression block size cannot be negative");
+            }
+
+            if (keyLayout == null) {
+                throw new IllegalArgumentException("Key layout cannot be null");
+            }
+
+            if (rollover == null || topicRollover.containsValue(null)) {
+                throw new IllegalArgumentException("Rollover policy cannot be null");
+            }
+
+            if (parquetRowGroupSizeBytes <= 0) {
+                throw new IllegalArgumentException("Parquet row group size must be positive");
+            }
+
+            if (metricsHttpPort < 0 || metricsHttpPort > 65535) {
+                throw new IllegalArgumentException("Metrics port must be between 0 and 65535");
+            }
+
+            if (partSizeInBytes < MultipartUploadOutput.MIN_PART_SIZE_BYTES) {
+                throw new IllegalArgumentException("Multipart part size must be at least 5 MB");
+            }
+
+            if (packBelowBytes != 0) {
+                if (packBelowBytes < 0 || packBelowBytes > PackWriter.MAX_PACK_BYTES || packMaxWaitMs <= 0) {
+                    throw new IllegalArgumentException("Packed batches must be at most 32 MB and wait a positive time");
+                } else if (sinkMode == SinkMode.MULTIPART) {
+                    throw new IllegalArgumentException("Batches can't be packed in MULTIPART mode, they are already streamed to S3");
+                }
+            }
+
+            if (sinkMode == SinkMode.IN_MEMORY) {
+                if (memoryBufferBytes < MIN_MEMORY_BUFFER_BYTES) {
+                    throw new IllegalArgumentException("Memory buffer must be at least 64 MB");
+                }
+                // one batch uploading while the next one fills
+                long largestBatch = topicRollover.values().stream().mapToLong(policy -> policy.maxBytes)
+                        .reduce(rollover.maxBytes, Math::max);
+                if (largestBatch > memoryBufferBytes / 2) {
+                    throw new IllegalArgumentException("Memory buffer must hold at least two batches of the rollover size");
+                }
+            }
+
+            if (s3Client == null && s3AsyncClient == null) {
                 throw new IllegalArgumentException("S3Client cannot be null");
             } else if (bucket == null) {
                 throw new IllegalArgumentException("Destination Bucket cannot be null");
             } else {
                 GetBucketAclRequest request = GetBucketAclRequest.builder().bucket(bucket).build();
                 try {
-                    s3Client.getBucketAcl(request);
-                } catch (AwsServiceException ase) {
-                    if (ase.statusCode() == 404) {
-                        throw new IllegalArgumentException("Destination Bucket Doesnt Exist");
-                    } else if (ase.statusCode() == 301) {
-                        throw new IllegalArgumentException("Defined S3 Region doesnt match the bucket configurations");
+                    if (s3AsyncClient != null) {
+                        s3AsyncClient.getBucketAcl(request).join();
+                    } else {
+                        s3Client.getBucketAcl(request);
                     }
-                } catch (SdkClientException e) {
-                    throw new IllegalArgumentException(e.getMessage());
+                } catch (CompletionException e) {
+                    checkBucketAccess(e.getCause());
+                } catch (AwsServiceException | SdkClientException e) {
+                    checkBucketAccess(e);
                 }
             }
         }
 
+        private void checkBucketAccess(Throwable e) {
+            if (e instanceof AwsServiceException ase) {
+                if (ase.statusCode() == 404) {
+                    throw new IllegalArgumentException("Destination Bucket Doesnt Exist");
+                } else if (ase.statusCode() == 301) {
+                    throw new IllegalArgumentException("Defined S3 Region doesnt match the bucket configurations");
+                }
+            } else {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+
         public SinkClient build() {
             validate();
             return new SinkClient(this);
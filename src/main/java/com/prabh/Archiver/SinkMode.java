@@ -0,0 +1,14 @@
+package com.prabh.Archiver;
+
+public enum SinkMode {
+    // Batches are staged in memory mapped spool segments on local disk and uploaded in one request,
+    // straight from the mapping, once sealed
+    LOCAL_FILE,
+
+    // Batches are kept in direct buffers of a fixed size arena and uploaded from memory once sealed
+    // An exhausted arena pauses the partitions instead of growing
+    IN_MEMORY,
+
+    // Compressed parts are streamed to an S3 multipart upload while the batch is still being written
+    MULTIPART
+}
@@ -0,0 +1,327 @@
+package com.prabh.Archiver;
+
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.Metrics;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Memory mapped segment files per partition that sealed batches are staged in until they are uploaded
+// A segment grows by mapping fixed size chunks and keeps them when it is handed back, so a partition's next
+// batches are written into memory that is already mapped, and the disk in use is bounded by the segments kept
+// Every archiver spools into its own directory under the root and holds a lock on it while running,
+// a directory nobody holds the lock of was left by a crashed archiver and is picked up by SpoolRecovery
+class Spool {
+    private static final Logger logger = LoggerFactory.getLogger(Spool.class);
+    static final int CHUNK_BYTES = 4 * 1024 * 1024; // 4 MB
+    static final String LOCK_FILE = "spool.lock";
+    static final String SEGMENT_EXTENSION = ".seg";
+    // Segments a partition keeps for its next batches, the ones beyond are deleted once uploaded
+    private static final int MAX_FREE_SEGMENTS = 2;
+
+    /*
+     * Segment header (big endian), the batch data follows it
+     *   int    magic
+     *   byte   state : FREE once the batch is uploaded or given up, OPEN while it is written or uploading
+     *   long   bytes of batch data written, updated on every write so a crash never exposes stale data
+     *   long   leader offset
+     *   long   leader timestamp
+     *   int    partition
+     *   short length + utf8 topic, archive format name, compression type name
+     * and at the end of the header, updated after every write of records (0 from older archivers) :
+     *   long   records written at consecutive offsets from the leader, one line each in TEXT
+     *   long   min timestamp
+     *   long   max timestamp
+     */
+    static final int HEADER_BYTES = 1024;
+    private static final int MAGIC = 0x4B534547; // KSEG
+    private static final int STATE_POSITION = 4;
+    private static final int WRITTEN_POSITION = 5;
+    private static final int LEADER_POSITION = 13;
+    private static final int RECORDS_POSITION = HEADER_BYTES - 24;
+    static final byte FREE = 0;
+    static final byte OPEN = 1;
+
+    private final Path directory;
+    private final AtomicInteger nextSegmentId = new AtomicInteger();
+    private final ConcurrentHashMap<TopicPartition, ConcurrentLinkedDeque<Segment>> freeSegments = new ConcurrentHashMap<>();
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private FileChannel lockChannel;
+
+    Spool(Path root) {
+        this.directory = root.resolve(UUID.randomUUID().toString());
+        Metrics.gauge("archiver_spool_mapped_bytes", "Bytes of the mapped spool segments", mappedBytes::get);
+    }
+
+    // Taken before the first segment is created and held until close, the lock goes with the process
+    private synchronized void lock() throws IOException {
+        if (lockChannel == null) {
+            Files.createDirectories(directory);
+            FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            channel.lock();
+            lockChannel = channel;
+        }
+    }
+
+    // A segment holding the batch that starts at the leader record, written in the format and codec
+    Segment acquire(ConsumerRecord<byte[], byte[]> leaderRecord, ArchiveFormat archiveFormat,
+                    CompressionType compressionType) throws IOException {
+        TopicPartition partition = new TopicPartition(leaderRecord.topic(), leaderRecord.partition());
+        ConcurrentLinkedDeque<Segment> free = freeSegments.computeIfAbsent(partition, p -> new ConcurrentLinkedDeque<>());
+        Segment segment = free.poll();
+        if (segment == null) {
+            lock();
+            Path path = directory.resolve(partition.topic() + "-" + partition.partition() + "-"
+                    + nextSegmentId.incrementAndGet() + SEGMENT_EXTENSION);
+            segment = new Segment(partition, path);
+        }
+        segment.open(leaderRecord, archiveFormat, compressionType);
+        return segment;
+    }
+
+    // Once the segment's contents are no longer needed
+    void release(Segment segment) {
+        segment.reset();
+        ConcurrentLinkedDeque<Segment> free = freeSegments.get(segment.partition);
+        if (free != null && free.size() < MAX_FREE_SEGMENTS) {
+            free.offer(segment);
+        } else {
+            segment.delete();
+        }
+    }
+
+    // The partition was handed to another archiver, segments still uploading are deleted on release
+    void releasePartition(TopicPartition partition) {
+        ConcurrentLinkedDeque<Segment> free = freeSegments.remove(partition);
+        if (free != null) {
+            free.forEach(Segment::delete);
+        }
+    }
+
+    // Segments still uploading are deleted on release, the directory stays behind until then and is
+    // cleaned up by the next start
+    synchronized void close() {
+        new ArrayList<>(freeSegments.keySet()).forEach(this::releasePartition);
+        if (lockChannel != null) {
+            try {
+                lockChannel.close();
+                Files.deleteIfExists(directory.resolve(LOCK_FILE));
+                Files.deleteIfExists(directory);
+            } catch (IOException e) {
+                logger.debug("Spool directory {} left for the next start : {}", directory, e.getMessage());
+            }
+            lockChannel = null;
+        }
+    }
+
+    // Lock of a spool directory that no running archiver holds, null while its owner is alive
+    static FileLock tryLockAbandoned(Path spoolDirectory) throws IOException {
+        FileChannel channel = FileChannel.open(spoolDirectory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return lock;
+            }
+        } catch (OverlappingFileLockException e) {
+            // held by another spool of this process
+        }
+        channel.close();
+        return null;
+    }
+
+    // What the header of an abandoned segment says about the batch in it
+    record Header(TopicPartition partition, long leaderOffset, long leaderTimestamp, ArchiveFormat archiveFormat,
+                  CompressionType compressionType, long written, long exactRecords, long minTimestamp,
+                  long maxTimestamp) {
+    }
+
+    // null when the segment holds no batch : it was never stamped or its batch was already uploaded
+    static Header readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.get() != OPEN) {
+            return null;
+        }
+        long written = header.getLong();
+        long leaderOffset = header.getLong();
+        long leaderTimestamp = header.getLong();
+        int partition = header.getInt();
+        String topic = getString(header);
+        ArchiveFormat format = ArchiveFormat.valueOf(getString(header));
+        CompressionType compression = CompressionType.valueOf(getString(header));
+        if (written < 0 || written > channel.size() - HEADER_BYTES) {
+            throw new IOException("Corrupt segment header, " + written + " bytes written");
+        }
+        return new Header(new TopicPartition(topic, partition), leaderOffset, leaderTimestamp, format, compression,
+                written, header.getLong(RECORDS_POSITION), header.getLong(RECORDS_POSITION + 8),
+                header.getLong(RECORDS_POSITION + 16));
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt segment header");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    class Segment {
+        private final TopicPartition partition;
+        private final Path path;
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> chunks = new ArrayList<>();
+        private int current = 0;
+
+        private Segment(TopicPartition _partition, Path _path) throws IOException {
+            this.partition = _partition;
+            this.path = _path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            mapChunk();
+            chunks.get(0).position(HEADER_BYTES);
+        }
+
+        // Stamps the header for the batch about to be written
+        private void open(ConsumerRecord<byte[], byte[]> leaderRecord, ArchiveFormat archiveFormat,
+                          CompressionType compressionType) {
+            ByteBuffer header = chunks.get(0).duplicate();
+            header.clear();
+            header.putInt(MAGIC);
+            header.put(FREE);
+            header.putLong(0);
+            header.putLong(leaderRecord.offset());
+            header.putLong(leaderRecord.timestamp());
+            header.putInt(leaderRecord.partition());
+            putString(header, leaderRecord.topic());
+            putString(header, archiveFormat.name());
+            putString(header, compressionType.name());
+            header.putLong(RECORDS_POSITION, 0);
+            header.putLong(RECORDS_POSITION + 8, leaderRecord.timestamp());
+            header.putLong(RECORDS_POSITION + 16, leaderRecord.timestamp());
+            // only marked open once the rest of the header is in place
+            header.put(STATE_POSITION, OPEN);
+        }
+
+        // Runs ahead of the bytes written while the codec still holds the last records, recovery only takes
+        // the complete lines that decode from the written bytes, up to this many
+        void recordsWritten(long exactRecords, long minTimestamp, long maxTimestamp) {
+            MappedByteBuffer header = chunks.get(0);
+            header.putLong(RECORDS_POSITION, exactRecords);
+            header.putLong(RECORDS_POSITION + 8, minTimestamp);
+            header.putLong(RECORDS_POSITION + 16, maxTimestamp);
+        }
+
+        private void updateWritten() {
+            chunks.get(0).putLong(WRITTEN_POSITION, size());
+        }
+
+        // Mapping past the end of the file extends it, the chunk is reserved up front
+        private void mapChunk() throws IOException {
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) chunks.size() * CHUNK_BYTES, CHUNK_BYTES));
+            mappedBytes.addAndGet(CHUNK_BYTES);
+        }
+
+        private MappedByteBuffer writable() throws IOException {
+            MappedByteBuffer chunk = chunks.get(current);
+            if (chunk.hasRemaining()) {
+                return chunk;
+            }
+            current++;
+            if (current == chunks.size()) {
+                mapChunk();
+            }
+            return chunks.get(current);
+        }
+
+        void write(int b) throws IOException {
+            writable().put((byte) b);
+            updateWritten();
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                MappedByteBuffer chunk = writable();
+                int n = Math.min(len, chunk.remaining());
+                chunk.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+            updateWritten();
+        }
+
+        long size() {
+            return (long) current * CHUNK_BYTES + chunks.get(current).position() - HEADER_BYTES;
+        }
+
+        // Views of the written bytes, valid until the segment is released
+        List<ByteBuffer> contents() {
+            List<ByteBuffer> views = new ArrayList<>(current + 1);
+            for (int i = 0; i <= current; i++) {
+                ByteBuffer view = chunks.get(i).duplicate();
+                view.flip();
+                if (i == 0) {
+                    view.position(HEADER_BYTES);
+                }
+                if (view.hasRemaining()) {
+                    views.add(view.slice());
+                }
+            }
+            return views;
+        }
+
+        private void reset() {
+            for (int i = 0; i <= current; i++) {
+                chunks.get(i).clear();
+            }
+            current = 0;
+            chunks.get(0).put(STATE_POSITION, FREE);
+            chunks.get(0).position(HEADER_BYTES);
+        }
+
+        // The mappings themselves go with the buffers once they are collected
+        private void delete() {
+            mappedBytes.addAndGet(-(long) chunks.size() * CHUNK_BYTES);
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.error("Failed to delete spool segment {} : {}", path, e.getMessage());
+            }
+        }
+    }
+}
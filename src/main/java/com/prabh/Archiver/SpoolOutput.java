@@ -0,0 +1,71 @@
+package com.prabh.Archiver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Stages the batch in a mapped spool segment, which is uploaded straight from the mapping
+class SpoolOutput extends BatchOutput {
+    private final Spool spool;
+    private final Spool.Segment segment;
+    private final UploadService uploadService;
+
+    SpoolOutput(Spool _spool, Spool.Segment _segment, UploadService _uploadService) {
+        this.spool = _spool;
+        this.segment = _segment;
+        this.uploadService = _uploadService;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        segment.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        segment.write(b, off, len);
+    }
+
+    @Override
+    long size() {
+        return segment.size();
+    }
+
+    @Override
+    boolean directWrites() {
+        return true;
+    }
+
+    @Override
+    boolean recoverable() {
+        return true;
+    }
+
+    @Override
+    void recordsWritten(long exactRecords, long minTimestamp, long maxTimestamp) {
+        segment.recordsWritten(exactRecords, minTimestamp, maxTimestamp);
+    }
+
+    @Override
+    List<ByteBuffer> contents() {
+        return segment.contents();
+    }
+
+    // The segment goes back to the spool either way : a failed batch is fetched again from its uncommitted offsets
+    @Override
+    CompletableFuture<Void> commit(String key) {
+        return uploadService.submit(contents(), key)
+                .whenComplete((v, e) -> discard());
+    }
+
+    @Override
+    void discard() {
+        spool.release(segment);
+    }
+
+    @Override
+    CompletableFuture<Void> commitSidecar(String key, byte[] data) {
+        return uploadService.submitMetadata(data, key);
+    }
+}
@@ -0,0 +1,299 @@
+package com.prabh.Archiver;
+
+import com.google.common.io.ByteStreams;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.ArchivedRecord;
+import com.prabh.Utils.CompressionConfig;
+import com.prabh.Utils.Metrics;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.TimestampType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// Rebuilds the batches a crashed archiver left in its spool directory and stores them like sealed batches
+// A segment is only read up to the bytes its header says were written, and the batch is cut after the last
+// record that decodes completely : a codec stream that was cut short just ends early
+// BINARY records carry their offsets, TEXT lines get theirs from the header, which counts the leading records
+// that sit at consecutive offsets and are one line each. PARQUET batches can't be read before their footer
+// is written, so they (and whatever else could not be stored) are moved to spool-unrecovered next to the spool
+// rather than deleted, their records are fetched again from the committed offsets
+class SpoolRecovery {
+    private static final Logger logger = LoggerFactory.getLogger(SpoolRecovery.class);
+    private static final int RECORDS_PER_WRITE = 1000;
+    private static final Metrics.Counter recoveredRecords = Metrics.counter("archiver_recovered_records_total",
+            "Records of crashed runs stored from the spool at startup");
+    private final Path root;
+    private final BatchConfig batchConfig;
+    private final BatchOutput.Factory outputFactory;
+    // Abandoned spool directories, locked until they are deleted
+    private final Map<Path, FileLock> abandoned = new HashMap<>();
+    // partition -> start offset -> next offset of the stored batches
+    private final ConcurrentHashMap<TopicPartition, ConcurrentSkipListMap<Long, Long>> recovered = new ConcurrentHashMap<>();
+    private final AtomicLong recoveredBatches = new AtomicLong();
+    // Segments holding records that were not stored
+    private final Set<Path> unrecovered = ConcurrentHashMap.newKeySet();
+
+    SpoolRecovery(Path _root, BatchConfig _batchConfig, BatchOutput.Factory _outputFactory) {
+        this.root = _root;
+        this.batchConfig = _batchConfig;
+        this.outputFactory = _outputFactory;
+    }
+
+    // Rebuilds every abandoned segment on the executor and hands the batch to store
+    // The returned futures complete once their batch is stored or given up, they never fail
+    List<CompletableFuture<Void>> start(Executor executor,
+                                        Function<TopicPartitionWriter, CompletableFuture<Void>> store) {
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (Path segment : abandonedSegments()) {
+            batches.add(CompletableFuture.supplyAsync(() -> rebuild(segment), executor)
+                    .thenCompose(batch -> batch == null
+                            ? CompletableFuture.completedFuture(null)
+                            : store.apply(batch).thenRun(() -> recovered(batch)))
+                    .exceptionally(e -> {
+                        logger.error("Batch in {} was not recovered, its records are fetched again : {}", segment,
+                                e.getMessage());
+                        unrecovered.add(segment);
+                        return null;
+                    }));
+        }
+        return batches;
+    }
+
+    private List<Path> abandonedSegments() {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return segments;
+        }
+        try (Stream<Path> directories = Files.list(root)) {
+            for (Path directory : directories.filter(Files::isDirectory).toList()) {
+                FileLock lock = Spool.tryLockAbandoned(directory);
+                if (lock == null) {
+                    continue;
+                }
+                abandoned.put(directory, lock);
+                try (Stream<Path> files = Files.list(directory)) {
+                    files.filter(file -> file.toString().endsWith(Spool.SEGMENT_EXTENSION)).forEach(segments::add);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to scan the spool for abandoned batches : {}", e.getMessage());
+        }
+        return segments;
+    }
+
+    // null when the segment holds nothing to recover
+    private TopicPartitionWriter rebuild(Path segment) {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            Spool.Header header = Spool.readHeader(channel);
+            if (header == null || header.written() == 0) {
+                return null;
+            }
+            channel.position(Spool.HEADER_BYTES);
+            InputStream in = new BufferedInputStream(ByteStreams.limit(Channels.newInputStream(channel),
+                    header.written()), 64 * 1024);
+            TopicPartitionWriter batch = switch (header.archiveFormat()) {
+                case BINARY -> rebuild(header, in);
+                case TEXT -> rebuildText(header, in);
+                case PARQUET -> null;
+            };
+            if (batch == null) {
+                logger.warn("Batch of {} at offset {} can't be recovered from the {} spool, it is fetched again",
+                        header.partition(), header.leaderOffset(), header.archiveFormat().name);
+                unrecovered.add(segment);
+            }
+            return batch;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to read spool segment {} : {}", segment, e.getMessage());
+            unrecovered.add(segment);
+            return null;
+        }
+    }
+
+    // Complete lines only, up to the records the header vouches for
+    // TEXT keeps no timestamps, so the records are rebuilt without any : the batch is filed under the leader's
+    // and listed for the span of every record the archiver wrote, which covers the ones recovered
+    private TopicPartitionWriter rebuildText(Spool.Header header, InputStream in) {
+        TopicPartition partition = header.partition();
+        TopicPartitionWriter batch = null;
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>(RECORDS_PER_WRITE);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long lines = 0;
+        try (InputStream text = new BufferedInputStream(header.compressionType().wrapInputStream(in), 64 * 1024)) {
+            int b;
+            while (lines < header.exactRecords() && (b = text.read()) >= 0) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                byte[] value = line.toByteArray();
+                records.add(new ConsumerRecord<>(partition.topic(), partition.partition(),
+                        header.leaderOffset() + lines, RecordBatch.NO_TIMESTAMP, TimestampType.NO_TIMESTAMP_TYPE, -1,
+                        value.length, null, value, new RecordHeaders(), Optional.empty()));
+                line.reset();
+                lines++;
+                if (records.size() == RECORDS_PER_WRITE) {
+                    batch = write(header, batch, records);
+                    records = new ArrayList<>(RECORDS_PER_WRITE);
+                }
+            }
+        } catch (IOException e) {
+            // the codec stream was cut short, the lines before it are kept
+            logger.debug("Spool of {} at offset {} ends after {} lines : {}", partition, header.leaderOffset(), lines,
+                    e.getMessage());
+        }
+        if (!records.isEmpty()) {
+            batch = write(header, batch, records);
+        }
+        if (batch != null) {
+            batch.setTimeSpan(header.leaderTimestamp(), header.minTimestamp(), header.maxTimestamp());
+        }
+        return batch;
+    }
+
+    private TopicPartitionWriter rebuild(Spool.Header header, InputStream in) throws IOException {
+        TopicPartition partition = header.partition();
+        TopicPartitionWriter batch = null;
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>(RECORDS_PER_WRITE);
+        long lastOffset = header.leaderOffset() - 1;
+        try (ArchiveFormat.RecordReader reader = header.archiveFormat()
+                .newReader(header.compressionType().wrapInputStream(in))) {
+            while (true) {
+                ArchivedRecord record;
+                try {
+                    record = reader.next();
+                } catch (IOException e) {
+                    // the record the archiver was writing when it stopped
+                    break;
+                }
+                // the first record has to be the leader, and offsets only grow within a batch
+                if (record == null || record.offset <= lastOffset
+                        || (lastOffset < header.leaderOffset() && record.offset != header.leaderOffset())) {
+                    break;
+                }
+                lastOffset = record.offset;
+                records.add(new ConsumerRecord<>(partition.topic(), partition.partition(), record.offset,
+                        record.timestamp == null ? RecordBatch.NO_TIMESTAMP : record.timestamp,
+                        TimestampType.CREATE_TIME, record.key == null ? -1 : record.key.length,
+                        record.value == null ? -1 : record.value.length, record.key, record.value,
+                        new RecordHeaders(record.headers), Optional.empty()));
+                if (records.size() == RECORDS_PER_WRITE) {
+                    batch = write(header, batch, records);
+                    records = new ArrayList<>(RECORDS_PER_WRITE);
+                }
+            }
+        } catch (IOException e) {
+            // the codec couldn't even start on what was written
+            logger.debug("Nothing readable in the batch of {} at offset {} : {}", partition, header.leaderOffset(),
+                    e.getMessage());
+        }
+        if (!records.isEmpty()) {
+            batch = write(header, batch, records);
+        }
+        return batch;
+    }
+
+    // The batch is stored in the format and codec of the segment, which its name carries, whatever the
+    // archiver is configured with now
+    private TopicPartitionWriter write(Spool.Header header, TopicPartitionWriter batch,
+                                       List<ConsumerRecord<byte[], byte[]>> records) {
+        if (batch == null) {
+            ConsumerRecord<byte[], byte[]> leaderRecord = records.get(0);
+            CompressionConfig compression = header.compressionType() == batchConfig.compression.type
+                    ? batchConfig.compression : CompressionConfig.of(header.compressionType());
+            BatchConfig config = new BatchConfig(compression, header.archiveFormat(), batchConfig.rowGroupSizeBytes,
+                    batchConfig.rollover, batchConfig.topicRollover, batchConfig.keyLayout,
+                    batchConfig.indexBlockBytes);
+            batch = new TopicPartitionWriter(leaderRecord, config, config.rolloverFor(leaderRecord.topic())
+                    .initialLimits(), outputFactory);
+        }
+        batch.addToBuffer(records);
+        return batch;
+    }
+
+    private void recovered(TopicPartitionWriter batch) {
+        TopicPartition partition = batch.getTopicPartition();
+        recovered.computeIfAbsent(partition, p -> new ConcurrentSkipListMap<>())
+                .merge(batch.getStartOffset(), batch.getNextOffset(), Math::max);
+        recoveredBatches.incrementAndGet();
+        recoveredRecords.add(batch.getRecordCount());
+        logger.warn("Recovered offsets {} to {} of {}", batch.getStartOffset(), batch.getNextOffset() - 1, partition);
+    }
+
+    long recoveredBatches() {
+        return recoveredBatches.get();
+    }
+
+    boolean hasRecovered(TopicPartition partition) {
+        return recovered.containsKey(partition);
+    }
+
+    // Where fetching can resume from a position : past every recovered batch that continues it without a gap
+    long recoveredUpTo(TopicPartition partition, long position) {
+        ConcurrentSkipListMap<Long, Long> batches = recovered.get(partition);
+        if (batches == null) {
+            return position;
+        }
+        long next = position;
+        for (Map.Entry<Long, Long> batch : batches.entrySet()) {
+            if (batch.getKey() > next) {
+                break;
+            }
+            next = Math.max(next, batch.getValue());
+        }
+        return next;
+    }
+
+    // Deletes the abandoned directories, whatever wasn't recovered from them is fetched again
+    // Segments with records that were not stored are kept aside
+    void finish() {
+        Path keep = root.resolveSibling(root.getFileName() + "-unrecovered");
+        abandoned.forEach((directory, lock) -> {
+            try {
+                lock.channel().close();
+                for (Path segment : unrecovered) {
+                    if (segment.getParent().equals(directory)) {
+                        Path target = keep.resolve(directory.getFileName()).resolve(segment.getFileName());
+                        Files.createDirectories(target.getParent());
+                        Files.move(segment, target);
+                        logger.warn("Kept unrecovered spool segment at {}", target);
+                    }
+                }
+                deleteRecursively(directory);
+            } catch (IOException e) {
+                logger.error("Failed to delete abandoned spool {} : {}", directory, e.getMessage());
+            }
+        });
+        abandoned.clear();
+        unrecovered.clear();
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
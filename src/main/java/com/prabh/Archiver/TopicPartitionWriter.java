@@ -1,86 +1,336 @@
 package com.prabh.Archiver;
 
-import TestingTools.TPSCalculator;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.ArchiveManifest;
+import com.prabh.Utils.ArchivePack;
+import com.prabh.Utils.BatchIndex;
+import com.prabh.Utils.CompressionConfig;
 import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.Metrics;
+import com.prabh.Utils.ParallelCompressionOutputStream;
+import com.prabh.Utils.PooledBufferedOutputStream;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.Calendar;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
 public class TopicPartitionWriter {
     private static final Logger logger = LoggerFactory.getLogger(TopicPartitionWriter.class);
-    private final CompressionType compressionType;
-    private final ConsumerRecord<String, String> leaderRecord;
+    private final BatchConfig config;
+    private final ArchiveFormat archiveFormat;
+    private final BatchOutput.Factory outputFactory;
+    private final RolloverPolicy.Limits limits;
+    private final ConsumerRecord<byte[], byte[]> leaderRecord;
+    // Timestamp the batch is filed under, the leader's unless the batch was rebuilt without timestamps
+    private long firstTimestamp;
     private final String filePath;
-    private ConsumerRecord<String, String> latestRecord;
+    private ConsumerRecord<byte[], byte[]> latestRecord;
     String localDumpLocation = String.format("%s/KafkaToS3", System.getProperty("java.io.tmpdir"));
     private final long startTime = System.currentTimeMillis();
     private boolean opened = false;
-    private long remBatchSizeInBytes = 10 * 1024 * 1024; // 10 MB
-    private static TPSCalculator tps = new TPSCalculator().start(5L, TimeUnit.SECONDS, new TPSCalculator.AbstractTPSCallback() {
-        @Override
-        public void tpsStat(TPSCalculator.TPSStat stat) {
-            logger.error("stats: " + stat.toString());
-        }
-    });
+    private BatchOutput output;
+    private OutputStream out;
+    private ArchiveFormat.RecordWriter writer;
+    private ParallelCompressionOutputStream parallelOut;
+    private BatchIndex.Builder indexBuilder;
+    private byte[] index;
+    private long batchSizeInBytes = 0;
+    // First write that failed, the batch can't be stored once records are missing from it
+    private IOException failure;
+    // Size once sealed, kept as the output's own is gone once it is released
+    private long storedSize = 0;
+    private long recordCount = 0;
+    // Leading records at consecutive offsets (and without line breaks in TEXT), only kept for a recoverable output
+    private long exactRecords = 0;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private static final Metrics.Counter recordsWritten = Metrics.counter("archiver_records_written_total",
+            "Records written to batches");
+    private static final Metrics.Counter bytesWritten = Metrics.counter("archiver_bytes_written_total",
+            "Uncompressed bytes written to batches");
+    private static final Metrics.Counter bytesCompressed = Metrics.counter("archiver_bytes_compressed_total",
+            "Bytes of the sealed batches after compression");
 
-    public TopicPartitionWriter(ConsumerRecord<String, String> _leaderRecord, CompressionType _compressionType) {
+    TopicPartitionWriter(ConsumerRecord<byte[], byte[]> _leaderRecord, BatchConfig _config,
+                         RolloverPolicy.Limits _limits, BatchOutput.Factory _outputFactory) {
         this.leaderRecord = _leaderRecord;
-        this.compressionType = _compressionType;
+        this.config = _config;
+        this.archiveFormat = _config.archiveFormat;
+        this.limits = _limits;
+        this.outputFactory = _outputFactory;
+        this.firstTimestamp = leaderRecord.timestamp();
         int partition = leaderRecord.partition();
         long startingOffset = leaderRecord.offset();
         this.filePath = localDumpLocation + "/" + partition + "_" + startingOffset;
     }
 
-    PrintWriter getWriter() {
-        try {
-            new File(localDumpLocation).mkdirs();
-            return new PrintWriter(
-                    new BufferedOutputStream(
-                            compressionType.wrapOutputStream(
-                                    new FileOutputStream(filePath, true))));
-        } catch (IOException e) {
-            logger.error(e.getMessage());
-            return null;
+    // Writes to a local file only, the batch can't be committed
+    public TopicPartitionWriter(ConsumerRecord<byte[], byte[]> _leaderRecord, CompressionType _compressionType,
+                                ArchiveFormat _archiveFormat) {
+        this(_leaderRecord, BatchConfig.of(_compressionType, _archiveFormat));
+    }
+
+    public TopicPartitionWriter(ConsumerRecord<byte[], byte[]> _leaderRecord, BatchConfig _config) {
+        this(_leaderRecord, _config, _config.rolloverFor(_leaderRecord.topic()).initialLimits(),
+                (leader, config, path) -> new LocalFileOutput(path, null));
+    }
+
+    // The stream stays open for the whole life of the batch so that the codec keeps a single
+    // header/dictionary instead of starting a new member on every poll
+    private OutputStream openWriter() throws IOException {
+        output = outputFactory.open(leaderRecord, config, filePath);
+        if (archiveFormat.compressesInternally()) {
+            return new PooledBufferedOutputStream(output);
+        }
+        OutputStream sink = output.directWrites() ? output : new PooledBufferedOutputStream(output);
+        CompressionConfig compression = config.compression;
+        if (compression.parallel() || config.indexed()) {
+            // records go straight into the block buffer, blocks are cut between records
+            // each block is independently decodable, which is what the index points at
+            int blockBytes = compression.parallel() ? compression.parallelBlockBytes : config.indexBlockBytes;
+            parallelOut = new ParallelCompressionOutputStream(sink, compression.type,
+                    compression.levelFor(leaderRecord.topic()), blockBytes);
+            if (config.indexed()) {
+                indexBuilder = new BatchIndex.Builder();
+            }
+            return parallelOut;
         }
+        return new PooledBufferedOutputStream(compression.wrapOutputStream(sink, leaderRecord.topic()));
     }
 
-    public void addToBuffer(List<ConsumerRecord<String, String>> records) {
+    public void addToBuffer(List<ConsumerRecord<byte[], byte[]>> records) {
         opened = true;
-        try (PrintWriter writer = getWriter()) {
-            for (ConsumerRecord<String, String> record : records) {
-                writer.println(record.value());
-                tps.incrementOpCount();
-                remBatchSizeInBytes -= (record.serializedValueSize() + 1);
+        if (failure != null) {
+            return;
+        }
+        long sizeBefore = batchSizeInBytes;
+        long countBefore = recordCount;
+        try {
+            if (out == null) {
+                out = openWriter();
+                writer = archiveFormat.newWriter(out, config.compression.type,
+                        config.compression.levelFor(leaderRecord.topic()), config.rowGroupSizeBytes);
+            }
+            for (ConsumerRecord<byte[], byte[]> record : records) {
+                writer.write(record);
+                if (indexBuilder != null) {
+                    indexBuilder.add(record.offset(), record.timestamp());
+                }
+                if (parallelOut != null && parallelOut.endBlockIfFull() && indexBuilder != null) {
+                    indexBuilder.endBlock();
+                }
+                batchSizeInBytes += archiveFormat.estimateSize(record);
+                recordCount++;
+                minTimestamp = Math.min(minTimestamp, record.timestamp());
+                maxTimestamp = Math.max(maxTimestamp, record.timestamp());
                 latestRecord = record;
+                if (output.recoverable() && exactRecords == recordCount - 1 && record.offset() == leaderRecord.offset() + exactRecords
+                        && (archiveFormat != ArchiveFormat.TEXT || !containsLineBreak(record.value()))) {
+                    exactRecords++;
+                }
+            }
+            if (output.recoverable()) {
+                output.recordsWritten(exactRecords, minTimestamp, maxTimestamp);
+            }
+        } catch (IOException e) {
+            logger.error("Write to the batch of {} at offset {} failed", getTopicPartition(), leaderRecord.offset(), e);
+            failure = e;
+        }
+        recordsWritten.add(recordCount - countBefore);
+        bytesWritten.add(batchSizeInBytes - sizeBefore);
+    }
+
+    private static boolean containsLineBreak(byte[] value) {
+        if (value == null) {
+            return false;
+        }
+        for (byte b : value) {
+            if (b == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Seals the batch : flushes the codec trailer and releases the pooled buffers
+    // Throws for a batch that lost a write, it must be discarded instead of stored
+    public void close() throws IOException {
+        if (out != null && failure != null) {
+            OutputStream o = out;
+            out = null;
+            writer = null;
+            parallelOut = null;
+            indexBuilder = null;
+            try {
+                o.close();
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (out != null) {
+            OutputStream o = out;
+            ArchiveFormat.RecordWriter w = writer;
+            ParallelCompressionOutputStream blocks = parallelOut;
+            out = null;
+            writer = null;
+            parallelOut = null;
+            try {
+                w.finish();
+            } finally {
+                o.close();
+            }
+            storedSize = output.size();
+            bytesCompressed.add(storedSize);
+            if (indexBuilder != null) {
+                index = indexBuilder.build(blocks.blockPositions(), blocks.size()).toBytes();
+                indexBuilder = null;
+            }
+        }
+    }
+
+    // Hands the sealed batch over for upload under its final key
+    CompletableFuture<Void> commit() {
+        return output == null ? CompletableFuture.completedFuture(null) : commit(getKey());
+    }
+
+    // Same under another key, e.g. the directory of the batches a compaction merged
+    CompletableFuture<Void> commit(String key) {
+        if (output == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> committed = output.commit(key);
+        if (index == null) {
+            return committed;
+        }
+        // stored after the batch so that an index never points at a missing object
+        // a lost index only costs the fetcher a full download, it doesn't hold back the offsets
+        byte[] sealedIndex = index;
+        return committed.thenCompose(v -> output.commitSidecar(key + BatchIndex.EXTENSION, sealedIndex)
+                .exceptionally(e -> {
+                    logger.error("Index of {} was not stored, fetches will read the whole batch", key);
+                    return null;
+                }));
+    }
+
+    // Bytes of the sealed batch, for a pack to store it instead of commit(), valid until discard()
+    List<ByteBuffer> getContents() {
+        return output.contents();
+    }
+
+    // Size of the sealed batch, 0 until it is closed
+    long getStoredSize() {
+        return storedSize;
+    }
+
+    // Releases whatever the output holds for a batch that won't be committed
+    void discard() {
+        if (output != null) {
+            output.discard();
+        }
+    }
+
+    // Gives up a batch that may still be open, without sealing it : the streams are only closed to release
+    // the codec and the pooled buffers, nothing of the batch is stored
+    void abandon() {
+        if (out != null) {
+            OutputStream o = out;
+            out = null;
+            writer = null;
+            parallelOut = null;
+            indexBuilder = null;
+            try {
+                o.close();
+            } catch (IOException e) {
+                logger.debug("Closing the abandoned batch of {} at offset {} failed : {}", getTopicPartition(),
+                        leaderRecord.offset(), e.getMessage());
             }
         }
+        discard();
     }
 
     long remainingSpace() {
-        return remBatchSizeInBytes;
+        return limits.bytes() - batchSizeInBytes;
+    }
+
+    long remainingRecords() {
+        return limits.records() - recordCount;
+    }
+
+    // Uncompressed size of the records written so far
+    long getSizeInBytes() {
+        return batchSizeInBytes;
+    }
+
+    long getOpenDurationMillis() {
+        return System.currentTimeMillis() - startTime;
     }
 
     public boolean readyForCommit() {
         if (!opened) return false;
 
+        // a failed batch is sealed right away, so that its partition stops writing into it
+        if (failure != null) return true;
+
         // Check Chunk Size
-        if (remBatchSizeInBytes <= 0) return true;
+        if (remainingSpace() <= 0 || remainingRecords() <= 0) return true;
 
         // Check batch timegap  and batch open duration
         long timeGapInMillis = getLastTimeStamp() - getFirstTimeStamp();
-        long durationInMillis = System.currentTimeMillis() - startTime;
+        return Math.max(timeGapInMillis, getOpenDurationMillis()) >= limits.ageMs();
+    }
+
+    // A batch rebuilt from records that lost their timestamps is still filed and listed for the time span
+    // its records had, set once every record is written
+    void setTimeSpan(long _firstTimestamp, long _minTimestamp, long _maxTimestamp) {
+        this.firstTimestamp = _firstTimestamp;
+        this.minTimestamp = _minTimestamp;
+        this.maxTimestamp = _maxTimestamp;
+    }
 
-        long maxBatchDurationInMillis = 5 * 60 * 1000;
-        return Math.max(timeGapInMillis, durationInMillis) >= maxBatchDurationInMillis;
+    // What the manifest records about the committed batch
+    ArchiveManifest.Entry getManifestEntry() {
+        return getManifestEntry(getKey(), index != null);
+    }
+
+    // Same for a batch committed under another key, or stored in a pack, which is read whole : its index is not kept
+    ArchiveManifest.Entry getManifestEntry(String key, boolean indexed) {
+        return new ArchiveManifest.Entry(key, leaderRecord.partition(), leaderRecord.offset(), latestRecord.offset(),
+                minTimestamp, maxTimestamp, storedSize, indexed && index != null);
+    }
+
+    // What the pack's section table records about the batch stored at the position
+    ArchivePack.Section getSection(long position) {
+        return new ArchivePack.Section(getFileName(), leaderRecord.partition(), leaderRecord.offset(),
+                latestRecord.offset(), minTimestamp, maxTimestamp, position, storedSize);
+    }
+
+    TopicPartition getTopicPartition() {
+        return new TopicPartition(leaderRecord.topic(), leaderRecord.partition());
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    long getStartOffset() {
+        return leaderRecord.offset();
+    }
+
+    // First offset that is not part of this batch
+    long getNextOffset() {
+        return latestRecord == null ? leaderRecord.offset() : latestRecord.offset() + 1;
     }
 
     long getFirstTimeStamp() {
-        return leaderRecord.timestamp();
+        return firstTimestamp;
     }
 
     long getLastTimeStamp() {
@@ -89,22 +339,31 @@ public class TopicPartitionWriter {
 
 
     String getKey() {
+        return config.keyLayout.prefix(leaderRecord.topic(), leaderRecord.partition(), getFirstTimeStamp())
+                + getFileName();
+    }
+
+    // Directory of the pack the batch goes into instead, when it is packed
+    String getPackPrefix() {
+        return config.keyLayout.packPrefix(leaderRecord.topic(), getFirstTimeStamp());
+    }
+
+    String getFileName() {
         int partition = leaderRecord.partition();
         long startingOffset = leaderRecord.offset();
         long endingOffset = latestRecord.offset();
-        Calendar c = Calendar.getInstance();
-        c.setTimeInMillis(getFirstTimeStamp());
-
 
         String fileName = partition + "_" + startingOffset + "_" + endingOffset;
-        if (!compressionType.extension.equals("")) {
-            fileName += "." + compressionType.extension;
+        if (!archiveFormat.extension.equals("")) {
+            fileName += "." + archiveFormat.extension;
+        }
+        if (!archiveFormat.compressesInternally() && !config.compression.type.extension.equals("")) {
+            fileName += "." + config.compression.type.extension;
         }
-        return "topics/" + leaderRecord.topic() + "/" + c.get(Calendar.YEAR) + "/" + (c.get(Calendar.MONTH) + 1) + "/"
-                + c.get(Calendar.DAY_OF_MONTH) + "/" + c.get(Calendar.HOUR_OF_DAY) + "/" + c.get(Calendar.MINUTE) + "/" + fileName;
+        return fileName;
     }
 
-    String getFilePath() {
+    public String getFilePath() {
         return filePath;
     }
 }
@@ -1,73 +1,439 @@
 package com.prabh.Archiver;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.prabh.Utils.LimitedQueue;
+import com.prabh.Utils.ByteBudget;
+import com.prabh.Utils.Metrics;
+import com.prabh.Utils.ResizableSemaphore;
+import com.prabh.Utils.ThreadPools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.services.s3.model.PutObjectResponse;
-import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
+// Every upload returns a future that completes once the object (or part) is stored in S3
+// Work is bounded by the number of bytes in flight, so a slow request only holds back its own bytes
 public class UploadService {
     private final Logger logger = LoggerFactory.getLogger(UploadService.class);
     private final S3Client s3Client;
+    private final S3AsyncClient s3AsyncClient;
     private final ExecutorService uploadWorker;
     private final String bucket;
+    private final ByteBudget budget;
+    // Concurrent blocking requests, the client's connection pool is the real limit
+    private final ResizableSemaphore requestPermits;
+    // Blocking requests that don't have a worker yet
+    private final AtomicInteger waitingRequests = new AtomicInteger();
+    private final Set<CompletableFuture<?>> pendingUploads = ConcurrentHashMap.newKeySet();
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MS = 1000;
+    private static final long MAX_COPY_OBJECT_BYTES = 5L * 1024 * 1024 * 1024;
+    private static final long COPY_PART_BYTES = 512L * 1024 * 1024;
+    private static final Metrics.Histogram uploadDuration = Metrics.histogram("archiver_upload_duration_ms",
+            "Time to store an object or part, retries included");
+    private static final Metrics.Counter uploadedBytes = Metrics.counter("archiver_uploaded_bytes_total",
+            "Bytes stored in S3");
+    private static final Metrics.Counter uploadRetries = Metrics.counter("archiver_upload_retries_total",
+            "Requests that were retried");
+    private static final Metrics.Counter uploadFailures = Metrics.counter("archiver_upload_failures_total",
+            "Uploads that failed after every retry");
 
-    public UploadService(S3Client s3Client, String _bucket, int uploadPoolSize) {
-        ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("UPLOAD-WORKER-%d").build();
-        this.uploadWorker = new ThreadPoolExecutor(uploadPoolSize,
-                uploadPoolSize,
-                0L, TimeUnit.SECONDS,
-                new LimitedQueue<>(2),
-                namedThreadFactory);
-
+    // Blocking client : requests run on a pool of upload workers
+    public UploadService(S3Client s3Client, String _bucket, int uploadPoolSize, long maxInFlightBytes) {
+        this.uploadWorker = ThreadPools.newExecutor("UPLOAD-WORKER-", uploadPoolSize);
+        this.requestPermits = new ResizableSemaphore(uploadPoolSize);
         this.s3Client = s3Client;
+        this.s3AsyncClient = null;
+        this.bucket = _bucket;
+        this.budget = new ByteBudget(maxInFlightBytes);
+        Metrics.gauge("archiver_upload_inflight_bytes", "Bytes being uploaded", budget::inFlightBytes);
+    }
 
+    // Async client : requests are handed to the client's own event loop, no upload threads needed
+    public UploadService(S3AsyncClient s3AsyncClient, String _bucket, long maxInFlightBytes) {
+        this.uploadWorker = null;
+        this.requestPermits = null;
+        this.s3Client = null;
+        this.s3AsyncClient = s3AsyncClient;
         this.bucket = _bucket;
+        this.budget = new ByteBudget(maxInFlightBytes);
+        Metrics.gauge("archiver_upload_inflight_bytes", "Bytes being uploaded", budget::inFlightBytes);
     }
 
-    public void submit(File file, String key) {
-        uploadWorker.submit(new UploadWorker(file, key));
+    private <T> CompletableFuture<T> execute(Supplier<T> blockingCall, Supplier<CompletableFuture<T>> asyncCall) {
+        if (s3AsyncClient != null) {
+            return asyncCall.get();
+        }
+        waitingRequests.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> {
+            requestPermits.acquireUninterruptibly();
+            waitingRequests.decrementAndGet();
+            try {
+                return blockingCall.get();
+            } finally {
+                requestPermits.release();
+            }
+        }, uploadWorker);
     }
 
-    public void shutdown() {
-        uploadWorker.shutdown();
+    // Blocks the caller while the budget is exhausted, which is the backpressure for the writers
+    private <T> CompletableFuture<T> withBudget(long bytes, Supplier<CompletableFuture<T>> request) {
         try {
-            uploadWorker.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            budget.acquire(bytes);
         } catch (InterruptedException e) {
-            logger.error(e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
         }
-        logger.warn("Upload Service Shutdown Complete");
+
+        CompletableFuture<T> future;
+        long startMillis = System.currentTimeMillis();
+        try {
+            future = request.get();
+        } catch (RuntimeException e) {
+            budget.release(bytes);
+            return CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((r, e) -> budget.release(bytes));
+        return track(bytes, startMillis, future);
+    }
+
+    private <T> CompletableFuture<T> track(long bytes, long startMillis, CompletableFuture<T> future) {
+        pendingUploads.add(future);
+        future.whenComplete((r, e) -> {
+            pendingUploads.remove(future);
+            if (e == null) {
+                uploadDuration.observe(System.currentTimeMillis() - startMillis);
+                uploadedBytes.add(bytes);
+            } else {
+                uploadFailures.increment();
+            }
+        });
+        return future;
     }
 
-    public class UploadWorker implements Runnable {
-        private final String key;
-        private final File file;
+    // Retries a failed request with exponential backoff, the data it uploads is still held by the caller
+    private <T> CompletableFuture<T> withRetry(String key, int attempt, Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        request.get().whenComplete((r, e) -> {
+            if (e == null) {
+                result.complete(r);
+            } else if (attempt >= MAX_ATTEMPTS) {
+                result.completeExceptionally(unwrap(e));
+            } else {
+                uploadRetries.increment();
+                logger.warn("Attempt {} to upload {} failed, retrying : {}", attempt, key, unwrap(e).getMessage());
+                Executor delayed = CompletableFuture.delayedExecutor(RETRY_BACKOFF_MS << (attempt - 1), TimeUnit.MILLISECONDS);
+                CompletableFuture.runAsync(() -> {}, delayed)
+                        .thenCompose(v -> withRetry(key, attempt + 1, request))
+                        .whenComplete((retried, retryFailure) -> {
+                            if (retryFailure == null) result.complete(retried);
+                            else result.completeExceptionally(unwrap(retryFailure));
+                        });
+            }
+        });
+        return result;
+    }
 
-        public UploadWorker(File file, String _key) {
-            this.file = file;
-            this.key = _key;
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
         }
+        return e;
+    }
 
-        public void run() {
-            try {
-                PutObjectRequest request = PutObjectRequest.builder().bucket(bucket).key(key).build();
-                PutObjectResponse response = s3Client.putObject(request, RequestBody.fromFile(file));
-                if (response != null) {
+    private void logFailure(String action, String key, Throwable e) {
+        Throwable cause = unwrap(e);
+        if (cause instanceof AwsServiceException ase && ase.awsErrorDetails() != null) {
+            logger.error("{} of {} failed : {}", action, key, ase.awsErrorDetails().errorMessage());
+        } else {
+            logger.error("{} of {} failed", action, key, cause);
+        }
+    }
+
+    // Only the blocking client has upload workers, the async client scales by itself
+    public boolean hasWorkers() {
+        return requestPermits != null;
+    }
+
+    // Concurrent blocking requests, changed at runtime by the ScalingController
+    public void resizeWorkers(int uploadPoolSize) {
+        if (requestPermits != null) {
+            ThreadPools.resize(uploadWorker, uploadPoolSize);
+            requestPermits.resize(uploadPoolSize);
+        }
+    }
+
+    public int workerCount() {
+        return requestPermits == null ? 0 : requestPermits.limit();
+    }
+
+    public int busyWorkers() {
+        return requestPermits == null ? 0 : requestPermits.inUse();
+    }
+
+    public int waitingRequests() {
+        return waitingRequests.get();
+    }
+
+    public CompletableFuture<Void> submit(File file, String key) {
+        PutObjectRequest request = PutObjectRequest.builder().bucket(bucket).key(key).build();
+        CompletableFuture<PutObjectResponse> upload = withBudget(file.length(), () -> withRetry(key, 1, () -> execute(
+                () -> s3Client.putObject(request, RequestBody.fromFile(file)),
+                () -> s3AsyncClient.putObject(request, AsyncRequestBody.fromFile(file)))));
+
+        return upload.handle((response, e) -> {
+            if (e != null) {
+                // local copy is kept around for a later attempt
+                logFailure("Upload", key, e);
+                throw new CompletionException(unwrap(e));
+            }
+            logger.info("Submitted {}", key);
+            if (!file.delete()) {
+                logger.error("Failed Local Cache deletion of {}", file.getName());
+            }
+            return null;
+        });
+    }
+
+    // Objects that are built in memory, such as packs
+    public CompletableFuture<Void> submit(byte[] data, String key) {
+        return withBudget(data.length, () -> put(data, key));
+    }
+
+    // Batch indexes and manifests : small, and stored from the completion of the batch upload, where waiting
+    // for the budget would park the very threads that give it back, so they are not counted against it
+    public CompletableFuture<Void> submitMetadata(byte[] data, String key) {
+        return track(data.length, System.currentTimeMillis(), put(data, key));
+    }
+
+    private CompletableFuture<Void> put(byte[] data, String key) {
+        PutObjectRequest request = PutObjectRequest.builder().bucket(bucket).key(key).build();
+        return withRetry(key, 1, () -> execute(
+                () -> s3Client.putObject(request, RequestBody.fromBytes(data)),
+                () -> s3AsyncClient.putObject(request, AsyncRequestBody.fromBytes(data))))
+                .handle((response, e) -> {
+                    if (e != null) {
+                        logFailure("Upload", key, e);
+                        throw new CompletionException(unwrap(e));
+                    }
+                    return null;
+                });
+    }
+
+    // Batches staged in memory (such as mapped spool segments), the views are read in place and not copied
+    // They must stay untouched until the returned future completes
+    public CompletableFuture<Void> submit(List<ByteBuffer> data, String key) {
+        long length = data.stream().mapToLong(ByteBuffer::remaining).sum();
+        PutObjectRequest request = PutObjectRequest.builder().bucket(bucket).key(key).contentLength(length).build();
+        return withBudget(length, () -> withRetry(key, 1, () -> execute(
+                () -> s3Client.putObject(request, RequestBody.fromContentProvider(
+                        () -> new ByteBufferInputStream(data), length, "application/octet-stream")),
+                () -> s3AsyncClient.putObject(request, new ByteBufferAsyncRequestBody(data)))))
+                .handle((response, e) -> {
+                    if (e != null) {
+                        logFailure("Upload", key, e);
+                        throw new CompletionException(unwrap(e));
+                    }
                     logger.info("Submitted {}", key);
+                    return null;
+                });
+    }
+
+    public CompletableFuture<String> createMultipartUpload(String key) {
+        CreateMultipartUploadRequest request = CreateMultipartUploadRequest.builder().bucket(bucket).key(key).build();
+        return execute(() -> s3Client.createMultipartUpload(request),
+                () -> s3AsyncClient.createMultipartUpload(request))
+                .thenApply(CreateMultipartUploadResponse::uploadId);
+    }
+
+    public CompletableFuture<CompletedPart> uploadPart(String key, CompletableFuture<String> uploadId, int partNumber,
+                                                      byte[] data, int length) {
+        return withBudget(length, () -> uploadId.thenCompose(id -> {
+            UploadPartRequest request = UploadPartRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(id)
+                    .partNumber(partNumber)
+                    .contentLength((long) length)
+                    .build();
+            return withRetry(key + " part " + partNumber, 1, () -> execute(
+                    () -> s3Client.uploadPart(request, RequestBody.fromContentProvider(
+                            () -> new ByteArrayInputStream(data, 0, length), length, "application/octet-stream")),
+                    () -> s3AsyncClient.uploadPart(request, ByteBufferAsyncRequestBody.of(data, length))));
+        }).thenApply(response -> CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build()));
+    }
+
+    // Drops an upload that won't be completed, once its parts are done so that none of them lands after the abort
+    public void abortMultipartUpload(String stagingKey, CompletableFuture<String> uploadId,
+                                     List<CompletableFuture<CompletedPart>> parts) {
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]))
+                .handle((r, e) -> null)
+                .thenCompose(v -> uploadId)
+                .thenAccept(id -> abort(stagingKey, id));
+    }
+
+    // Completes the upload under the staging key and moves it over to its final key
+    // Every step is retried on its own, a failed copy doesn't send the parts again
+    // Once completed the upload no longer exists, a failed copy deletes the object it made instead of aborting it
+    public CompletableFuture<Void> completeMultipartUpload(String stagingKey, CompletableFuture<String> uploadId,
+                                                           List<CompletableFuture<CompletedPart>> parts, String key,
+                                                           long length) {
+        AtomicBoolean completed = new AtomicBoolean(false);
+        CompletableFuture<Void> done = CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]))
+                .thenCombine(uploadId, (v, id) -> id)
+                .thenCompose(id -> complete(stagingKey, id, parts))
+                .thenCompose(v -> {
+                    completed.set(true);
+                    return copy(stagingKey, key, length);
+                })
+                // the batch is stored once copied, a staging object left behind doesn't fail it
+                .thenCompose(v -> deleteStaging(stagingKey));
+
+        pendingUploads.add(done);
+        done.whenComplete((r, e) -> {
+            if (e == null) {
+                pendingUploads.remove(done);
+                logger.info("Submitted {}", key);
+                return;
+            }
+            logFailure("Multipart upload", key, e);
+            if (completed.get()) {
+                CompletableFuture<Void> deleted = deleteStaging(stagingKey);
+                pendingUploads.add(deleted);
+                deleted.whenComplete((v, deleteFailure) -> pendingUploads.remove(deleted));
+            } else {
+                uploadId.thenAccept(id -> abort(stagingKey, id));
+            }
+            pendingUploads.remove(done);
+        });
+        return done;
+    }
+
+    // Never fails, a staging object that could not be deleted is only logged as nothing reads it
+    private CompletableFuture<Void> deleteStaging(String stagingKey) {
+        DeleteObjectRequest request = DeleteObjectRequest.builder().bucket(bucket).key(stagingKey).build();
+        return withRetry(stagingKey, 1, () -> execute(() -> s3Client.deleteObject(request),
+                () -> s3AsyncClient.deleteObject(request)))
+                .<Void>thenApply(response -> null)
+                .exceptionally(e -> {
+                    logFailure("Deletion", stagingKey, e);
+                    return null;
+                });
+    }
+
+    // A retry after a completion whose response was lost finds the upload gone, the object it made is checked instead
+    private CompletableFuture<Void> complete(String key, String uploadId, List<CompletableFuture<CompletedPart>> parts) {
+        CompleteMultipartUploadRequest request = CompleteMultipartUploadRequest.builder()
+                .bucket(bucket).key(key).uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder()
+                        .parts(parts.stream().map(CompletableFuture::join).toList())
+                        .build())
+                .build();
+        return withRetry(key, 1, () -> execute(() -> s3Client.completeMultipartUpload(request),
+                () -> s3AsyncClient.completeMultipartUpload(request)))
+                .<Void>thenApply(response -> null)
+                .exceptionallyCompose(e -> {
+                    if (!(unwrap(e) instanceof NoSuchUploadException)) {
+                        return CompletableFuture.failedFuture(unwrap(e));
+                    }
+                    HeadObjectRequest head = HeadObjectRequest.builder().bucket(bucket).key(key).build();
+                    return execute(() -> s3Client.headObject(head), () -> s3AsyncClient.headObject(head))
+                            .thenApply(response -> null);
+                });
+    }
+
+    // CopyObject stops at 5 GB, larger objects are copied over range by range with UploadPartCopy
+    private CompletableFuture<Void> copy(String sourceKey, String key, long length) {
+        if (length <= MAX_COPY_OBJECT_BYTES) {
+            CopyObjectRequest request = CopyObjectRequest.builder()
+                    .sourceBucket(bucket).sourceKey(sourceKey)
+                    .destinationBucket(bucket).destinationKey(key)
+                    .build();
+            return withRetry(key, 1, () -> execute(() -> s3Client.copyObject(request),
+                    () -> s3AsyncClient.copyObject(request)))
+                    .thenApply(response -> null);
+        }
+        CreateMultipartUploadRequest create = CreateMultipartUploadRequest.builder().bucket(bucket).key(key).build();
+        return withRetry(key, 1, () -> execute(() -> s3Client.createMultipartUpload(create),
+                () -> s3AsyncClient.createMultipartUpload(create)))
+                .thenApply(CreateMultipartUploadResponse::uploadId)
+                .thenCompose(id -> {
+                    List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+                    for (long position = 0; position < length; position += COPY_PART_BYTES) {
+                        int partNumber = parts.size() + 1;
+                        long last = Math.min(length, position + COPY_PART_BYTES) - 1;
+                        UploadPartCopyRequest request = UploadPartCopyRequest.builder()
+                                .sourceBucket(bucket).sourceKey(sourceKey)
+                                .destinationBucket(bucket).destinationKey(key)
+                                .uploadId(id)
+                                .partNumber(partNumber)
+                                .copySourceRange("bytes=" + position + "-" + last)
+                                .build();
+                        parts.add(withRetry(key + " part " + partNumber, 1, () -> execute(
+                                () -> s3Client.uploadPartCopy(request), () -> s3AsyncClient.uploadPartCopy(request)))
+                                .thenApply(response -> CompletedPart.builder().partNumber(partNumber)
+                                        .eTag(response.copyPartResult().eTag()).build()));
+                    }
+                    CompletableFuture<Void> copied = CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]))
+                            .thenCompose(v -> complete(key, id, parts));
+                    copied.whenComplete((r, e) -> {
+                        if (e != null) {
+                            abort(key, id);
+                        }
+                    });
+                    return copied;
+                });
+    }
+
+    private void abort(String key, String uploadId) {
+        AbortMultipartUploadRequest request = AbortMultipartUploadRequest.builder()
+                .bucket(bucket).key(key).uploadId(uploadId).build();
+        execute(() -> s3Client.abortMultipartUpload(request), () -> s3AsyncClient.abortMultipartUpload(request))
+                .exceptionally(abortFailure -> {
+                    logFailure("Multipart abort", key, abortFailure);
+                    return null;
+                });
+    }
+
+    public long inFlightBytes() {
+        return budget.inFlightBytes();
+    }
+
+    public void shutdown() {
+        try {
+            while (!pendingUploads.isEmpty()) {
+                try {
+                    CompletableFuture.allOf(pendingUploads.toArray(new CompletableFuture[0])).get();
+                } catch (ExecutionException e) {
+                    // failures are already logged by the upload itself
                 }
-                if (!file.delete()) {
-                    logger.error("Failed Local Cache deletion of {}", file.getName());
-                }
-            } catch (S3Exception e) {
-                logger.error(e.awsErrorDetails().errorMessage());
             }
+        } catch (InterruptedException e) {
+            logger.error(e.getMessage(), e);
+            Thread.currentThread().interrupt();
         }
+
+        if (uploadWorker != null) {
+            uploadWorker.shutdown();
+            try {
+                uploadWorker.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        logger.warn("Upload Service Shutdown Complete");
     }
-}
\ No newline at end of file
+}
@@ -1,204 +1,572 @@
 package com.prabh.Archiver;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.BufferArena;
+import com.prabh.Utils.Metrics;
+import com.prabh.Utils.ResizableSemaphore;
+import com.prabh.Utils.ThreadPools;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
+// Every partition gets a single writer pipeline : consumers hand records over through a lock-free queue
+// and keep fetching, a partition is only paused once its queue holds more than its byte credit
 public class WriteService {
     private final Logger logger = LoggerFactory.getLogger(WriteService.class);
     private final ExecutorService taskExecutor;
-    private final CompressionType compressionType;
-    private final List<ConcurrentHashMap<TopicPartition, WritingTask>> activeTasks;
-    private final ConcurrentHashMap<TopicPartition, TopicPartitionWriter> activeBatches = new ConcurrentHashMap<>();
+    // Partitions being written at once, bounds CPU spent on compression and open files
+    private final ResizableSemaphore writePermits;
+    // Scheduled writers that don't have a permit yet
+    private final AtomicInteger waitingWriters = new AtomicInteger();
+    private final BatchConfig batchConfig;
+    private final ArchiveFormat archiveFormat;
+    private final BatchOutput.Factory outputFactory;
+    private final ConcurrentHashMap<TopicPartition, PartitionPipeline> pipelines = new ConcurrentHashMap<>();
     private final UploadService uploadService;
-//    private final TPSCalculator tps =  new TPSCalculator().start(30L, TimeUnit.SECONDS, new TPSCalculator.AbstractTPSCallback() {
-//        @Override
-//        public void tpsStat(TPSCalculator.ProgressStat stat) {
-//            logger.error("stats: " + stat.toString());
-//        }
-//    });
-
-    public WriteService(int noOfConsumers, int taskPoolSize, CompressionType _compressionType, UploadService _uploadService) {
+    private final OffsetTracker offsetTracker = new OffsetTracker();
+    // Partitions with a batch that could not be written or stored, the consumer fetches them again, see rewindFailedPartitions
+    private final Set<TopicPartition> failedPartitions = ConcurrentHashMap.newKeySet();
+    // null when manifests are off
+    private final ManifestWriter manifestWriter;
+    // null when packing is off, batches smaller than packBelowBytes are stored in packs
+    private final PackWriter packWriter;
+    private final long packBelowBytes;
+    // only used in LOCAL_FILE mode
+    private final Spool spool;
+    // only used in IN_MEMORY mode
+    private final BufferArena arena;
+    private final SpoolRecovery recovery;
+    private final AtomicLong lastTickTime = new AtomicLong(System.currentTimeMillis());
+    private static final Path SPOOL_ROOT = Path.of(System.getProperty("java.io.tmpdir"), "KafkaToS3", "spool");
+    private static final long DRAIN_TIMEOUT_MS = 60 * 1000;
+    private static final long RECOVERY_TIMEOUT_MS = 10 * 60 * 1000;
+    private static final long TICK_INTERVAL_MS = 1000;
+    private static final long MANIFEST_FLUSH_WAIT_MS = 200;
+    static final long MAX_QUEUED_BYTES_PER_PARTITION = 4 * 1024 * 1024; // 4 MB
+    private static final Metrics.Histogram writeLatency = Metrics.histogram("archiver_write_latency_micros",
+            "Time a writer spends on one polled chunk of a partition");
+    private static final Metrics.Counter batchesSealed = Metrics.counter("archiver_batches_sealed_total",
+            "Batches sealed and handed over for upload");
+    private static final Metrics.Counter batchFailures = Metrics.counter("archiver_batch_failures_total",
+            "Batches that could not be sealed or stored");
+
+    public WriteService(int taskPoolSize, BatchConfig _batchConfig,
+                        SinkMode sinkMode, int partSize, long memoryBufferBytes, UploadService _uploadService,
+                        boolean manifests, long _packBelowBytes, long packMaxWaitMs) {
         this.uploadService = _uploadService;
-        this.compressionType = _compressionType;
-        ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("WRITER-%d").build();
-        this.taskExecutor = Executors.newFixedThreadPool(taskPoolSize, namedThreadFactory);
-        activeTasks = new ArrayList<>(noOfConsumers);
-        for (int i = 0; i < noOfConsumers; i++) {
-            activeTasks.add(new ConcurrentHashMap<>());
+        this.manifestWriter = manifests ? new ManifestWriter(_uploadService) : null;
+
+        this.packBelowBytes = _packBelowBytes;
+        this.batchConfig = _batchConfig;
+        this.archiveFormat = _batchConfig.archiveFormat;
+        this.spool = sinkMode == SinkMode.LOCAL_FILE ? new Spool(SPOOL_ROOT) : null;
+        this.arena = sinkMode == SinkMode.IN_MEMORY ? new BufferArena(memoryBufferBytes) : null;
+        this.outputFactory = switch (sinkMode) {
+            case LOCAL_FILE -> (leaderRecord, config, localFilePath) -> new SpoolOutput(spool,
+                    spool.acquire(leaderRecord, config.archiveFormat, config.compression.type), uploadService);
+            case IN_MEMORY -> (leaderRecord, config, localFilePath) -> new MemoryOutput(arena, uploadService);
+            case MULTIPART -> (leaderRecord, config, localFilePath) -> new MultipartUploadOutput(uploadService,
+                    "staging/" + leaderRecord.topic() + "/" + leaderRecord.partition() + "_" + leaderRecord.offset()
+                            + "_" + UUID.randomUUID(), partSize);
+        };
+        this.recovery = new SpoolRecovery(SPOOL_ROOT, batchConfig, outputFactory);
+        this.taskExecutor = ThreadPools.newExecutor("WRITER-", taskPoolSize);
+        this.packWriter = _packBelowBytes > 0 ? new PackWriter(_uploadService, taskExecutor, packMaxWaitMs) : null;
+        this.writePermits = new ResizableSemaphore(taskPoolSize);
+
+        Metrics.gauge("archiver_writer_queued_bytes", "Bytes queued for the partition writers",
+                () -> pipelines.values().stream().mapToLong(pipeline -> pipeline.queuedBytes.get()).sum());
+        Metrics.gauge("archiver_open_batches", "Batches currently being written",
+                () -> pipelines.values().stream().filter(pipeline -> pipeline.batch != null).count());
+        if (arena != null) {
+            Metrics.gauge("archiver_memory_buffer_used_bytes", "Bytes of the in memory batch arena in use",
+                    arena::usedBytes);
+        }
+    }
+
+    // Stores the batches a crashed archiver left in the spool, in parallel on the writers, before anything is consumed
+    // Consumers then skip the recovered offsets when their partitions are assigned, see recoveredUpTo
+    public void recover() {
+        long startTime = System.currentTimeMillis();
+        List<CompletableFuture<Void>> batches = recovery.start(taskExecutor, this::store);
+        if (!awaitDurable(batches, RECOVERY_TIMEOUT_MS)) {
+            logger.error("Recovery timed out, the batches not stored yet are fetched again");
+        }
+        recovery.finish();
+        if (!batches.isEmpty()) {
+            logger.warn("Recovered {} of {} abandoned batches in {} ms", recovery.recoveredBatches(), batches.size(),
+                    System.currentTimeMillis() - startTime);
         }
     }
 
-    public void submit(int consumer, TopicPartition partition, List<ConsumerRecord<String, String>> records) {
-        WritingTask t = new WritingTask(records, partition);
-        taskExecutor.submit(t);
-        activeTasks.get(consumer).put(partition, t);
+    public boolean hasRecovered(TopicPartition partition) {
+        return recovery.hasRecovered(partition);
     }
 
-    public Map<TopicPartition, OffsetAndMetadata> checkActiveTasks(int consumer) {
-        Map<TopicPartition, OffsetAndMetadata> donePartitions = new HashMap<>();
-        List<TopicPartition> tasksToRemove = new ArrayList<>();
-        activeTasks.get(consumer).forEach((currentPartition, task) -> {
-            long offset = task.getCurrentOffset();
-            if (task.isFinished() && offset > 0) {
-                donePartitions.put(currentPartition, new OffsetAndMetadata(offset));
-                tasksToRemove.add(currentPartition);
+    // Offset to fetch the partition from instead of the position, when recovered batches already cover it
+    public long recoveredUpTo(TopicPartition partition, long position) {
+        return recovery.recoveredUpTo(partition, position);
+    }
+
+    // Queues the records for the partition's writer
+    // Returns false once the partition is out of credit, the caller should stop fetching it
+    public boolean submit(TopicPartition partition, List<ConsumerRecord<byte[], byte[]>> records) {
+        return pipelines.computeIfAbsent(partition, PartitionPipeline::new).offer(records);
+    }
+
+    // Paused partitions whose writer has drained enough to be fetched again
+    public List<TopicPartition> resumable(Collection<TopicPartition> pausedPartitions) {
+        List<TopicPartition> partitionsToResume = new ArrayList<>();
+        for (TopicPartition currentPartition : pausedPartitions) {
+            PartitionPipeline pipeline = pipelines.get(currentPartition);
+            if (pipeline == null || pipeline.hasCredit()) {
+                partitionsToResume.add(currentPartition);
+            }
+        }
+        return partitionsToResume;
+    }
+
+    // Batches also roll over on age, so idle partitions get a chance to seal without new records
+    public void tick() {
+        long now = System.currentTimeMillis();
+        long last = lastTickTime.get();
+        if (now - last < TICK_INTERVAL_MS || !lastTickTime.compareAndSet(last, now)) {
+            return;
+        }
+        if (packWriter != null) {
+            packWriter.flushIfDue();
+        }
+        if (manifestWriter != null) {
+            manifestWriter.flushIfDue();
+        }
+        // also picks up writers that stopped for memory
+        pipelines.values().forEach(pipeline -> {
+            if (pipeline.batch != null || !pipeline.queue.isEmpty()) {
+                pipeline.schedule();
             }
         });
+    }
 
-        tasksToRemove.forEach(activeTasks.get(consumer)::remove);
-        return donePartitions;
+    // Partitions that may be written at once, changed at runtime by the ScalingController
+    public void resizeWriters(int taskPoolSize) {
+        ThreadPools.resize(taskExecutor, taskPoolSize);
+        writePermits.resize(taskPoolSize);
     }
 
-    public Map<TopicPartition, OffsetAndMetadata> handleRevokedPartitionTasks(int consumer, Collection<TopicPartition> partitions) {
+    public int writerCount() {
+        return writePermits.limit();
+    }
 
-        // 1. Fetch the tasks of revoked partitions and stop them
-        Map<TopicPartition, WritingTask> revokedTasks = new HashMap<>();
+    public int busyWriters() {
+        return writePermits.inUse();
+    }
+
+    public int waitingWriters() {
+        return waitingWriters.get();
+    }
+
+    // Offsets that are durable in S3 and safe to commit
+    public Map<TopicPartition, OffsetAndMetadata> committableOffsets(Collection<TopicPartition> partitions) {
+        return offsetTracker.committable(partitions);
+    }
+
+    // Partitions of which a batch could not be written or stored, with the offset to fetch them from again : the start
+    // of their oldest batch that isn't durable. Their pipelines are dropped here, the caller seeks them before it polls
+    public Map<TopicPartition, Long> rewindFailedPartitions(Collection<TopicPartition> partitions) {
+        if (failedPartitions.isEmpty()) {
+            return Map.of();
+        }
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            if (!failedPartitions.remove(partition)) {
+                continue;
+            }
+            PartitionPipeline pipeline = pipelines.remove(partition);
+            if (pipeline == null) {
+                continue;
+            }
+            pipeline.discard();
+            offsetTracker.forget(List.of(partition));
+            long offset = pipeline.watermark.oldestPending();
+            if (pipeline.failedOffset >= 0 && (offset < 0 || pipeline.failedOffset < offset)) {
+                offset = pipeline.failedOffset;
+            }
+            if (offset >= 0) {
+                offsets.put(partition, offset);
+            }
+        }
+        return offsets;
+    }
+
+    // Stops the writers of the given partitions, seals their open batches and waits for them to be uploaded
+    // Returns the final committable offsets, after which the partitions are no longer tracked
+    public Map<TopicPartition, OffsetAndMetadata> drainPartitions(Collection<TopicPartition> partitions) {
+        List<CompletableFuture<Void>> uploads = new ArrayList<>();
         partitions.forEach(currentPartition -> {
-            WritingTask task = activeTasks.get(consumer).remove(currentPartition);
-            if (task != null) {
-                task.stop();
-                revokedTasks.put(currentPartition, task);
+            PartitionPipeline pipeline = pipelines.remove(currentPartition);
+            if (pipeline != null) {
+                uploads.add(pipeline.close());
             }
         });
 
-        // 2. Wait for revoked tasks to complete processing current record and fetch offsets
-        Map<TopicPartition, OffsetAndMetadata> revokedPartitionOffsets = new HashMap<>();
-        revokedTasks.forEach((currentPartition, task) -> {
-            long offset = task.waitForCompletion();
-            if (offset > 0) {
-                revokedPartitionOffsets.put(currentPartition, new OffsetAndMetadata(offset));
+        // a failed or slow upload just keeps its offsets uncommitted
+        if (!awaitDurable(uploads, DRAIN_TIMEOUT_MS)) {
+            logger.error("Not every batch of {} reached S3 before the partitions were released", partitions);
+        }
+
+        Map<TopicPartition, OffsetAndMetadata> offsets = offsetTracker.committable(partitions);
+        offsetTracker.forget(partitions);
+        failedPartitions.removeAll(partitions);
+        if (spool != null) {
+            partitions.forEach(spool::releasePartition);
+        }
+        return offsets;
+    }
+
+    // The partitions already belong to another consumer, which fetches their uncommitted records again :
+    // open and queued batches are dropped unsealed, storing them would only archive those records twice
+    public void abandonPartitions(Collection<TopicPartition> partitions) {
+        partitions.forEach(currentPartition -> {
+            PartitionPipeline pipeline = pipelines.remove(currentPartition);
+            if (pipeline != null) {
+                pipeline.discard();
             }
         });
+        offsetTracker.forget(partitions);
+        failedPartitions.removeAll(partitions);
+        if (spool != null) {
+            partitions.forEach(spool::releasePartition);
+        }
+    }
 
-        return revokedPartitionOffsets;
+    // Waits for the batches, flushing packs and manifests meanwhile as their entries only arrive once the uploads
+    // are done
+    boolean awaitDurable(List<CompletableFuture<Void>> batches, long timeoutMs) {
+        CompletableFuture<Void> all = CompletableFuture.allOf(batches.toArray(new CompletableFuture[0]));
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (packWriter != null) {
+                    packWriter.flush();
+                }
+                if (manifestWriter != null) {
+                    manifestWriter.flush();
+                }
+                try {
+                    all.get(manifestWriter == null && packWriter == null ? remaining
+                            : Math.min(remaining, MANIFEST_FLUSH_WAIT_MS), TimeUnit.MILLISECONDS);
+                    return true;
+                } catch (TimeoutException e) {
+                    // flush again and keep waiting
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
     }
 
     public void shutdown() {
+        // partitions that no consumer released are sealed here
+        List<CompletableFuture<Void>> uploads = new ArrayList<>();
+        new ArrayList<>(pipelines.keySet()).forEach(currentPartition -> {
+            PartitionPipeline pipeline = pipelines.remove(currentPartition);
+            if (pipeline != null) {
+                uploads.add(pipeline.close());
+            }
+        });
+        if ((manifestWriter != null || packWriter != null) && !awaitDurable(uploads, DRAIN_TIMEOUT_MS)) {
+            logger.error("Not every pack or manifest was stored before shutdown");
+        }
+
         taskExecutor.shutdown();
         try {
             taskExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
         } catch (InterruptedException e) {
             logger.error(e.getMessage(), e);
         }
-
-        Set<TopicPartition> pendingBatches = activeBatches.keySet();
-        pendingBatches.forEach(this::commitBatch);
+        // segments still uploading are deleted as their uploads finish
+        if (spool != null) {
+            spool.close();
+        }
         logger.warn("Writing Client Shutdown complete");
     }
 
-    boolean readyForCommit(TopicPartition partition) {
-        if (!activeBatches.containsKey(partition)) {
-            return false;
-        }
-
-        return activeBatches.get(partition).readyForCommit();
-    }
+    // Writes records of a single partition outside of the partition pipelines, e.g. for the backfill
+    // Every batch that fills up is stored and its future added to stored, the batch still open is returned
+    // and has to be passed back in with the next records, or stored by the caller once there are none
+    TopicPartitionWriter append(TopicPartitionWriter batch, List<ConsumerRecord<byte[], byte[]>> records,
+                                List<CompletableFuture<Void>> stored) {
+        int n = records.size();
+        for (int i = 0; i < n; ) {
+            if (batch != null && batch.readyForCommit()) {
+                stored.add(store(batch));
+                batch = null;
+            }
+            if (batch == null) {
+                ConsumerRecord<byte[], byte[]> leaderRecord = records.get(i);
+                batch = new TopicPartitionWriter(leaderRecord, batchConfig,
+                        batchConfig.rolloverFor(leaderRecord.topic()).initialLimits(), outputFactory);
+            }
 
-    public void addToBuffer(TopicPartition partition, List<ConsumerRecord<String, String>> records) {
-        activeBatches.get(partition).addToBuffer(records);
+            int start = i;
+            long remainingSpace = batch.remainingSpace();
+            long remainingRecords = batch.remainingRecords();
+            while (i < n && remainingSpace > 0 && remainingRecords > 0) {
+                remainingSpace -= archiveFormat.estimateSize(records.get(i));
+                remainingRecords--;
+                i++;
+            }
+            batch.addToBuffer(records.subList(start, i));
+        }
+        return batch;
     }
 
-    public void initializeNewBatch(TopicPartition partition, ConsumerRecord<String, String> record) {
-        assert activeBatches.containsKey(partition);
-        TopicPartitionWriter batch = new TopicPartitionWriter(record, compressionType);
-        activeBatches.put(partition, batch);
+    // Seals the batch and stores it, with its index and its manifest entry
+    CompletableFuture<Void> store(TopicPartitionWriter sealed) {
+        try {
+            sealed.close();
+        } catch (IOException e) {
+            sealed.discard();
+            logger.error("Failed to seal batch {}", sealed.getFilePath(), e);
+            return CompletableFuture.failedFuture(e);
+        }
+        batchesSealed.increment();
+        if (packWriter != null && sealed.getStoredSize() < packBelowBytes) {
+            CompletableFuture<String> packed = packWriter.add(sealed);
+            if (manifestWriter == null) {
+                return packed.thenApply(packKey -> null);
+            }
+            return packed.thenCompose(packKey -> manifestWriter.add(sealed.getTopicPartition().topic(),
+                    sealed.getManifestEntry(packKey, false)));
+        }
+        CompletableFuture<Void> committed = sealed.commit();
+        if (manifestWriter != null) {
+            committed = committed.thenCompose(v -> manifestWriter.add(sealed.getTopicPartition().topic(),
+                    sealed.getManifestEntry()));
+        }
+        return committed;
     }
 
-    public long getRemainingSpace(TopicPartition partition) {
-        assert activeBatches.containsKey(partition);
-        return activeBatches.get(partition).remainingSpace();
-    }
+    private class PartitionPipeline implements Runnable {
+        private final TopicPartition partition;
+        private final ConcurrentLinkedQueue<Chunk> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        // only contended when the pipeline is closed while its writer is running
+        private final ReentrantLock writerLock = new ReentrantLock();
+        private volatile boolean closed = false;
+        private volatile TopicPartitionWriter batch;
+        private final RolloverPolicy rollover;
+        private final OffsetTracker.Watermark watermark;
+        // First offset of a chunk that could not be written, -1 if none
+        private volatile long failedOffset = -1;
+        // Smoothed write rate of the partition, only tracked for adaptive rollover
+        private double bytesPerMs = -1;
 
-    public void commitBatch(TopicPartition partition) {
-        TopicPartitionWriter batch = activeBatches.get(partition);
-        uploadService.submit(new File(batch.getFilePath()), batch.getKey());
-        activeBatches.remove(partition);
-    }
+        private record Chunk(List<ConsumerRecord<byte[], byte[]>> records, long bytes) {
+        }
 
-    private class WritingTask implements Runnable {
-        private final Logger logger = LoggerFactory.getLogger(WritingTask.class.getName());
-        private final List<ConsumerRecord<String, String>> records;
-        private final TopicPartition partition;
-        private volatile boolean stopped = false;
-        private volatile boolean started = false;
-        private volatile boolean finished = false;
-        private final AtomicLong currentOffset = new AtomicLong();
-        private final ReentrantLock startStopLock = new ReentrantLock();
-        private final CompletableFuture<Long> completion = new CompletableFuture<>();
-
-        public WritingTask(List<ConsumerRecord<String, String>> _records, TopicPartition _partition) {
-            this.records = _records;
+        PartitionPipeline(TopicPartition _partition) {
             this.partition = _partition;
+            this.rollover = batchConfig.rolloverFor(_partition.topic());
+            this.watermark = offsetTracker.watermark(_partition);
+        }
+
+        boolean offer(List<ConsumerRecord<byte[], byte[]>> records) {
+            long bytes = 0;
+            for (ConsumerRecord<byte[], byte[]> record : records) {
+                bytes += archiveFormat.estimateSize(record);
+            }
+            queue.offer(new Chunk(records, bytes));
+            long queued = queuedBytes.addAndGet(bytes);
+            schedule();
+            return queued < MAX_QUEUED_BYTES_PER_PARTITION;
+        }
+
+        // Resumes with some slack so that a partition doesn't flip between paused and resumed on every poll
+        boolean hasCredit() {
+            return queuedBytes.get() < MAX_QUEUED_BYTES_PER_PARTITION / 2;
+        }
+
+        void schedule() {
+            if (closed || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            waitingWriters.incrementAndGet();
+            try {
+                taskExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                waitingWriters.decrementAndGet();
+                scheduled.set(false);
+            }
         }
 
         @Override
         public void run() {
-            startStopLock.lock();
-            if (stopped) return; // This happens when the task is still in executor queue
-            started = true; // Task is started by executor thread pool
-            startStopLock.unlock();
+            writePermits.acquireUninterruptibly();
+            waitingWriters.decrementAndGet();
+            writerLock.lock();
+            boolean waitingForMemory = false;
+            try {
+                if (!closed) {
+                    waitingForMemory = !drain();
+                }
+            } catch (RuntimeException e) {
+                logger.error("Writer of {} failed, the partition is fetched again", partition, e);
+                fail();
+            } finally {
+                writerLock.unlock();
+                writePermits.release();
+                scheduled.set(false);
+            }
+
+            // records offered after the queue was seen empty but before the flag was cleared
+            // a writer out of memory is picked up again by tick() once uploads have returned some
+            if (!waitingForMemory && !queue.isEmpty()) {
+                schedule();
+            }
+        }
 
+        // Returns false when it stopped because the memory arena can't take the next chunk
+        // The chunk stays queued, so the queue fills up and the consumer pauses the partition
+        private boolean drain() {
+            // a low arena seals batches early, their blocks come back as soon as they are uploaded
+            if (batch != null && (batch.readyForCommit() || (arena != null && arena.isLow()))) {
+                commitBatch();
+            }
+
+            Chunk chunk;
+            while (!closed && (chunk = queue.peek()) != null) {
+                // an idle arena always takes the chunk, so an oversized one can't stall the partition
+                if (arena != null && arena.availableBytes() < chunk.bytes() && arena.usedBytes() > 0) {
+                    commitBatch();
+                    return false;
+                }
+                // the credit comes back as soon as the chunk leaves the queue, even if writing it throws
+                queue.poll();
+                queuedBytes.addAndGet(-chunk.bytes());
+                long startNanos = System.nanoTime();
+                try {
+                    write(chunk.records());
+                } catch (RuntimeException e) {
+                    // the chunk may be partly written, the partition is fetched again from before it
+                    failedOffset = chunk.records().get(0).offset();
+                    throw e;
+                }
+                writeLatency.observe((System.nanoTime() - startNanos) / 1000);
+            }
+            return true;
+        }
+
+        private void write(List<ConsumerRecord<byte[], byte[]>> records) {
             int n = records.size();
             for (int i = 0; i < n; ) {
-                if (stopped) break;
-                if (readyForCommit(partition)) {
-                    commitBatch(partition);
+                if (closed) break;
+                if (batch != null && batch.readyForCommit()) {
+                    commitBatch();
                 }
 
-                if (!activeBatches.containsKey(partition)) {
-                    initializeNewBatch(partition, records.get(i));
+                if (batch == null) {
+                    ConsumerRecord<byte[], byte[]> leaderRecord = records.get(i);
+                    watermark.opened(leaderRecord.offset());
+                    batch = new TopicPartitionWriter(leaderRecord, batchConfig, rollover.limitsFor(bytesPerMs),
+                            outputFactory);
                 }
 
-                List<ConsumerRecord<String, String>> batchedRecords = new ArrayList<>(n - i);
-                long remainingSpace = getRemainingSpace(partition);
-                while (i < n && remainingSpace > 0) {
-                    ConsumerRecord<String, String> record = records.get(i);
-                    batchedRecords.add(record);
-                    remainingSpace -= (record.serializedValueSize() + 1);
+                int start = i;
+                long remainingSpace = batch.remainingSpace();
+                long remainingRecords = batch.remainingRecords();
+                while (i < n && remainingSpace > 0 && remainingRecords > 0) {
+                    remainingSpace -= archiveFormat.estimateSize(records.get(i));
+                    remainingRecords--;
                     i++;
-                    currentOffset.set(record.offset() + 1);
                 }
-                addToBuffer(partition, batchedRecords);
+                batch.addToBuffer(records.subList(start, i));
             }
-            finished = true;
-            completion.complete(currentOffset.get());
         }
 
-        public long getCurrentOffset() {
-            return currentOffset.get();
+        // Returns without waiting for the upload, the future completes once the batch is durable in S3
+        // and only then are its offsets allowed into the committed watermark
+        private CompletableFuture<Void> commitBatch() {
+            TopicPartitionWriter sealed = batch;
+            batch = null;
+            if (sealed == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (rollover.isAdaptive() && sealed.readyForCommit()) {
+                bytesPerMs = RolloverPolicy.updateRate(bytesPerMs, sealed.getSizeInBytes(),
+                        sealed.getOpenDurationMillis());
+            }
+            long startOffset = sealed.getStartOffset();
+            long nextOffset = sealed.getNextOffset();
+            return store(sealed).whenComplete((v, e) -> {
+                if (e == null) {
+                    watermark.durable(startOffset, nextOffset);
+                } else {
+                    batchFailures.increment();
+                    logger.error("Batch of {} at offset {} was not stored, the partition is fetched again", partition,
+                            startOffset);
+                    fail();
+                }
+            });
         }
 
-        public void stop() {
-            startStopLock.lock();
-            this.stopped = true;
-            if (!started) {
-                finished = true;
-                completion.complete(currentOffset.get());
+        // Stops writing, the consumer drops the pipeline and fetches the partition again from its oldest pending batch
+        // (or the chunk that could not be written, if it came first)
+        // A pipeline that was already released has nothing to fetch again, its offsets simply stay uncommitted
+        private void fail() {
+            closed = true;
+            if (pipelines.get(partition) == this) {
+                failedPartitions.add(partition);
             }
-            startStopLock.unlock();
         }
 
-        public long waitForCompletion() {
+        // Queued records are dropped, their offsets were never made durable so they get fetched again
+        CompletableFuture<Void> close() {
+            closed = true;
+            queue.clear();
+            queuedBytes.set(0);
+            writerLock.lock();
             try {
-                return completion.get();
-            } catch (InterruptedException | ExecutionException e) {
-                return -1;
+                return commitBatch();
+            } finally {
+                writerLock.unlock();
             }
         }
 
-        public boolean isFinished() {
-            return finished;
+        // Same for a lost partition, except that the open batch is dropped as well
+        void discard() {
+            closed = true;
+            queue.clear();
+            queuedBytes.set(0);
+            writerLock.lock();
+            try {
+                TopicPartitionWriter abandoned = batch;
+                batch = null;
+                if (abandoned != null) {
+                    abandoned.abandon();
+                }
+            } finally {
+                writerLock.unlock();
+            }
         }
     }
 }
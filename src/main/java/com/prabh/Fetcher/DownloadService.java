@@ -1,7 +1,11 @@
 package com.prabh.Fetcher;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.prabh.Utils.ArchiveManifest;
+import com.prabh.Utils.BatchIndex;
+import com.prabh.Utils.BatchKey;
+import com.prabh.Utils.KeyLayout;
 import com.prabh.Utils.Pair;
+import com.prabh.Utils.ThreadPools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
@@ -25,10 +29,18 @@ class DownloadService {
     private final AtomicBoolean stopped = new AtomicBoolean(false);
     private final FetchRequestRange start;
     private final FetchRequestRange end;
+    // Fetched window in epoch millis (inclusive), used to narrow indexed batches down to the blocks it overlaps
+    private final long fromMillis;
+    private final long toMillis;
+    // Batches that have a sidecar index
+    private final Set<String> indexedObjects = ConcurrentHashMap.newKeySet();
     private final String downloadTopic;
+    private final KeyLayout keyLayout;
+    private final boolean useManifests;
     private final S3Client s3Client;
     private final String bucket;
     private final ExecutorService workers;
+    private final Semaphore downloadPermits;
     private final ProducerService producerService;
     private final boolean streamDownload;
     private final FilePaths filePaths;
@@ -36,16 +48,22 @@ class DownloadService {
 
     public DownloadService(S3Client _s3Client, String _bucket, String _topic, FetchRequestRange _start,
                            FetchRequestRange _end, ProducerService _producerService, boolean _streamDownload,
-                           FilePaths _filePaths, int noOfWorkerThreads) {
+                           FilePaths _filePaths, int noOfWorkerThreads, KeyLayout _keyLayout,
+                           boolean _useManifests) {
         this.streamDownload = _streamDownload;
         this.bucket = _bucket;
         this.start = _start;
         this.end = _end;
+        this.fromMillis = _start.toEpochMillis();
+        // an end given as calendar fields covers its whole last minute
+        this.toMillis = _end.epoch == -1 ? _end.toEpochMillis() + 59_999 : _end.toEpochMillis();
         this.downloadTopic = _topic;
+        this.keyLayout = _keyLayout;
+        this.useManifests = _useManifests;
         this.s3Client = _s3Client;
         this.producerService = _producerService;
-        ThreadFactory tf = new ThreadFactoryBuilder().setNameFormat("DOWNLOAD-WORKER-%d").build();
-        this.workers = Executors.newFixedThreadPool(noOfWorkerThreads, tf);
+        this.workers = ThreadPools.newExecutor("DOWNLOAD-WORKER-", noOfWorkerThreads);
+        this.downloadPermits = new Semaphore(noOfWorkerThreads);
         this.filePaths = _filePaths;
     }
 
@@ -80,7 +98,7 @@ class DownloadService {
     }
 
     String getValidPrefix(int depth, List<Integer> state) {
-        StringBuilder keyPrefixBuilder = new StringBuilder("topics/" + downloadTopic + "/");
+        StringBuilder keyPrefixBuilder = new StringBuilder(KeyLayout.topicRoot(downloadTopic));
         for (int i = 1; i <= depth; i++) {
             keyPrefixBuilder.append(state.get(i)).append("/");
         }
@@ -94,13 +112,18 @@ class DownloadService {
         long totalObjects = 0;
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePaths.NetObjectListFile, filecreated))) {
             ListObjectsV2Request listObjects = ListObjectsV2Request.builder().bucket(bucket).prefix(keyPrefix).build();
+            List<String> keys = new ArrayList<>();
 
             boolean done = false;
             while (!done) {
                 ListObjectsV2Response listObjResponse = s3Client.listObjectsV2(listObjects);
-                totalObjects += listObjResponse.contents().size();
                 for (S3Object content : listObjResponse.contents()) {
-                    writer.write(content.key() + "\n");
+                    String key = content.key();
+                    if (BatchIndex.isIndexKey(key)) {
+                        indexedObjects.add(key.substring(0, key.length() - BatchIndex.EXTENSION.length()));
+                        continue;
+                    }
+                    keys.add(key);
                 }
 
                 done = !listObjResponse.isTruncated();
@@ -109,12 +132,19 @@ class DownloadService {
                     listObjects = listObjects.toBuilder().continuationToken(listObjResponse.nextContinuationToken()).build();
                 }
             }
-        } catch (S3Exception e) {
-            logger.error(e.awsErrorDetails().errorMessage());
-            System.exit(1);
+
+            // a compaction stores the merged batch in the same directory before it deletes the batches it merged
+            Set<String> superseded = new HashSet<>();
+            BatchKey.superseded(keys.stream().map(BatchKey::parse).filter(Objects::nonNull).toList())
+                    .forEach(batch -> superseded.add(batch.key()));
+            for (String key : keys) {
+                if (!superseded.contains(key)) {
+                    totalObjects++;
+                    writer.write(key + "\n");
+                }
+            }
         } catch (IOException e) {
-            logger.error(e.getMessage());
-            System.exit(1);
+            throw new UncheckedIOException(e);
         }
         filecreated = true;
         return totalObjects;
@@ -179,17 +209,117 @@ class DownloadService {
 
         }
 
+        // Blocks are independently compressed, so the ranges concatenated decode like a smaller batch
+        void downloadRanges(List<Pair<Long, Long>> ranges) {
+            try {
+                ByteArrayOutputStream stream = streamDownload ? new ByteArrayOutputStream() : null;
+                try (OutputStream out = streamDownload ? stream : new BufferedOutputStream(new FileOutputStream(localFileName))) {
+                    for (Pair<Long, Long> range : ranges) {
+                        GetObjectRequest request = GetObjectRequest.builder().bucket(bucket).key(key)
+                                .range("bytes=" + range.first + "-" + (range.second - 1))
+                                .build();
+                        s3Client.getObject(request, ResponseTransformer.toOutputStream(out));
+                    }
+                }
+                if (streamDownload) {
+                    producerService.submit(key, new File(localFileName).getName(), stream.toByteArray());
+                } else {
+                    producerService.submit(key, localFileName);
+                }
+                progressListener.markDownloadedObject(key);
+            } catch (AwsServiceException e) {
+                logger.error("Download for object {} failed\n{}", key, e.awsErrorDetails().errorMessage());
+            } catch (SdkClientException | IOException e) {
+                logger.error(e.getMessage());
+            }
+        }
+
+        // Byte ranges of the blocks overlapping the fetched window, null when the whole batch is needed
+        List<Pair<Long, Long>> plannedRanges() {
+            if (!indexedObjects.contains(key)) {
+                return null;
+            }
+            try {
+                GetObjectRequest request = GetObjectRequest.builder().bucket(bucket).key(key + BatchIndex.EXTENSION).build();
+                BatchIndex index = BatchIndex.fromBytes(s3Client.getObject(request, ResponseTransformer.toBytes()).asByteArray());
+                List<Pair<Long, Long>> ranges = index.rangesFor(fromMillis, toMillis);
+                boolean whole = ranges.size() == 1 && ranges.get(0).first == 0 && ranges.get(0).second == index.objectLength;
+                return whole ? null : ranges;
+            } catch (AwsServiceException | SdkClientException | IOException e) {
+                logger.warn("Index of {} is unreadable, downloading the whole batch : {}", key, e.getMessage());
+                return null;
+            }
+        }
+
         public void run() {
             if (stopped.get()) {
                 return;
             }
-            logger.info("Downloading {}", key);
-            if (streamDownload) {
-                downloadStream();
-            } else {
-                downloadFile();
+            downloadPermits.acquireUninterruptibly();
+            try {
+                List<Pair<Long, Long>> ranges = plannedRanges();
+                if (ranges == null) {
+                    logger.info("Downloading {}", key);
+                    if (streamDownload) {
+                        downloadStream();
+                    } else {
+                        downloadFile();
+                    }
+                } else if (ranges.isEmpty()) {
+                    logger.info("Skipping {}, none of its records fall within the range", key);
+                    progressListener.markDownloadedObject(key);
+                    progressListener.markProducedObject(key);
+                } else {
+                    logger.info("Downloading {} block ranges of {}", ranges.size(), key);
+                    downloadRanges(ranges);
+                }
+            } finally {
+                downloadPermits.release();
+            }
+        }
+    }
+
+    // Plans the batches listed by the manifests of the range's hours
+    long planFromManifests() {
+        Set<String> objectKeys = new LinkedHashSet<>();
+        try {
+            List<ArchiveManifest.Entry> entries = ArchiveManifest.list(s3Client, bucket, downloadTopic, fromMillis,
+                    toMillis).values().stream().filter(entry -> entry.overlaps(fromMillis, toMillis)).toList();
+
+            // batches a compaction merged are still listed by the archiver's manifests, the merged batch is
+            // listed by the compaction's manifest of the same hour
+            Set<BatchKey> superseded = BatchKey.superseded(entries.stream().map(BatchKey::of).toList());
+            for (ArchiveManifest.Entry entry : entries) {
+                if (!superseded.contains(BatchKey.of(entry))) {
+                    objectKeys.add(entry.key());
+                    if (entry.indexed()) {
+                        indexedObjects.add(entry.key());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePaths.NetObjectListFile))) {
+            for (String objectKey : objectKeys) {
+                writer.write(objectKey + "\n");
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        filecreated = true;
+        logger.info("Planned {} objects from the manifests", objectKeys.size());
+        return objectKeys.size();
+    }
+
+    // Hourly layouts are listed prefix by prefix, the LEGACY tree is walked down to the minute by query()
+    long queryLayout(List<String> prefixes) {
+        long totalObjects = 0;
+        for (String prefix : prefixes) {
+            totalObjects += fetchObjectListWithPrefix(bucket, prefix);
+        }
+        return totalObjects;
     }
 
     long query(int currentDepth, List<Integer> currentState, boolean leftBorder, boolean rightBorder) {
@@ -302,20 +432,37 @@ class DownloadService {
             logger.error(e.getMessage());
         }
 
+        List<String> layoutPrefixes = keyLayout == KeyLayout.LEGACY ? null
+                : keyLayout.listPrefixes(downloadTopic, start.toEpochMillis(), end.toEpochMillis());
         logger.info("""
                         Data Fetching Started
                         Query Range :
                               Start prefix : {}
                               End prefix   : {}
                         """,
-                getValidPrefix(5, start.currentValue),
-                getValidPrefix(5, end.currentValue));
-
-        List<Integer> currentState = new ArrayList<>(maxDepth + 1);
-        currentState.add(-1);
+                layoutPrefixes == null ? getValidPrefix(5, start.currentValue)
+                        : layoutPrefixes.isEmpty() ? "-" : layoutPrefixes.get(0),
+                layoutPrefixes == null ? getValidPrefix(5, end.currentValue)
+                        : layoutPrefixes.isEmpty() ? "-" : layoutPrefixes.get(layoutPrefixes.size() - 1));
 
         logger.info("Generating Valid prefixes");
-        long total = query(0, currentState, true, true);
+        long total;
+        try {
+            if (useManifests) {
+                total = planFromManifests();
+            } else if (layoutPrefixes == null) {
+                List<Integer> currentState = new ArrayList<>(maxDepth + 1);
+                currentState.add(-1);
+                total = query(0, currentState, true, true);
+            } else {
+                total = queryLayout(layoutPrefixes);
+            }
+        } catch (RuntimeException e) {
+            // the producers are shut down too, so that a shutdown waiting for them returns
+            logger.error("Objects of {} could not be listed : {}", downloadTopic, e.getMessage());
+            shutdown();
+            throw e;
+        }
         logger.warn("All valid prefixes queried. Retrieved {} object keys", total);
         if (total == 0) {
             logger.error("No objects found within given range");
@@ -1,5 +1,7 @@
 package com.prabh.Fetcher;
 
+import java.time.YearMonth;
+import java.time.ZoneId;
 import java.util.Calendar;
 import java.util.List;
 
@@ -93,6 +95,15 @@ public class FetchRequestRange {
         }
     }
 
+    // Ranges built from calendar fields are read in the JVM's time zone, out of range days are clamped to the month
+    long toEpochMillis() {
+        if (epoch != -1) return epoch;
+        YearMonth month = YearMonth.of(currentValue.get(1), currentValue.get(2));
+        int day = Math.max(1, Math.min(currentValue.get(3), month.lengthOfMonth()));
+        return month.atDay(day).atTime(currentValue.get(4), currentValue.get(5))
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
     public String getStamp() {
         if (epoch != -1) return Long.toString(epoch);
         StringBuilder ret = new StringBuilder("");
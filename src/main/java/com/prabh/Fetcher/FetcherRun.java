@@ -1,6 +1,8 @@
 package com.prabh.Fetcher;
 
 import org.apache.kafka.clients.admin.NewTopic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.core.retry.RetryPolicy;
 import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
@@ -11,6 +13,8 @@ import java.time.Duration;
 
 // Source Connector
 public class FetcherRun {
+    private static final Logger logger = LoggerFactory.getLogger(FetcherRun.class);
+
     public void SourceConnectorTemplate() {
 
         S3Client s3Client = S3Client.builder()
@@ -41,6 +45,11 @@ public class FetcherRun {
     }
 
     public static void main(String[] args) {
-        new FetcherRun().SourceConnectorTemplate();
+        try {
+            new FetcherRun().SourceConnectorTemplate();
+        } catch (RuntimeException e) {
+            logger.error("Fetch failed", e);
+            System.exit(1);
+        }
     }
 }
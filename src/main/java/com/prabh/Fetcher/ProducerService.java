@@ -1,34 +1,40 @@
 package com.prabh.Fetcher;
 
-import com.google.common.io.Files;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.ArchivePack;
+import com.prabh.Utils.ArchivedRecord;
 import com.prabh.Utils.CompressionType;
 
 import com.prabh.Utils.LimitedQueue;
+import com.prabh.Utils.ThreadPools;
 import org.apache.kafka.clients.producer.*;
-import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Properties;
 import java.util.concurrent.*;
 
 public class ProducerService {
     private final Logger logger = LoggerFactory.getLogger(ProducerService.class);
     private final String subscribedTopic;
-    private final KafkaProducer<String, String> producer;
+    private final KafkaProducer<byte[], byte[]> producer;
     private final String bootstrapId;
     private final ExecutorService executor;
     private final RejectionHandler rejectedRecords;
     private ProgressListener progressListener;
     private final CountDownLatch completion;
 
-    ProducerService(String topic, String _bootstrapId, FilePaths filePaths,CountDownLatch completion, int producerPoolSize) {
+    ProducerService(String topic, String _bootstrapId, FilePaths filePaths, CountDownLatch completion,
+                    int producerPoolSize) {
         this.completion = completion;
         this.subscribedTopic = topic;
         this.bootstrapId = _bootstrapId;
-        ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("KAFKA-PRODUCER-WORKER-%d").build();
+        ThreadFactory namedThreadFactory = ThreadPools.threadFactory("KAFKA-PRODUCER-WORKER-");
         this.executor = new ThreadPoolExecutor(producerPoolSize,
                 producerPoolSize,
                 0L, TimeUnit.SECONDS,
@@ -46,11 +52,11 @@ public class ProducerService {
         rejectedRecords.setProgressListener(progressListener);
     }
 
-    public KafkaProducer<String, String> createProducerClient() {
+    public KafkaProducer<byte[], byte[]> createProducerClient() {
         Properties prop = new Properties();
         prop.setProperty(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapId);
-        prop.setProperty(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
-        prop.setProperty(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        prop.setProperty(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        prop.setProperty(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
 //        prop.setProperty(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, "100");
         return new KafkaProducer<>(prop);
     }
@@ -58,7 +64,8 @@ public class ProducerService {
     public void sendInitialSingal() {
         logger.info("Sending Initial Signal");
         try {
-            producer.send(new ProducerRecord<>(subscribedTopic, null, "InitialSignal")).get();
+            producer.send(new ProducerRecord<>(subscribedTopic, null,
+                    "InitialSignal".getBytes(StandardCharsets.UTF_8))).get();
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Kafka Initial Signal Failed - " + e.getLocalizedMessage());
             throw new RuntimeException(e);
@@ -102,23 +109,32 @@ public class ProducerService {
             this.b = _b;
         }
 
-        public BufferedReader getFileReader() throws IOException {
-            String extension = Files.getFileExtension(filePath);
-            CompressionType compressionType = CompressionType.getCompressionType(extension);
-            return new BufferedReader(new InputStreamReader(
-                    compressionType.wrapInputStream(new FileInputStream(filePath))));
+        public ArchiveFormat.RecordReader getFileReader() throws IOException {
+            String fileName = new File(filePath).getName();
+            // packs are small, their section table is at the end
+            if (ArchivePack.isPackKey(fileName)) {
+                return ArchivePack.newReader(Files.readAllBytes(new File(filePath).toPath()));
+            }
+            CompressionType compressionType = CompressionType.fromFileName(fileName);
+            return ArchiveFormat.fromFileName(fileName).newReader(
+                    compressionType.wrapInputStream(new BufferedInputStream(new FileInputStream(filePath))));
         }
 
-        public BufferedReader getStreamReader() throws IOException {
-            String extension = Files.getFileExtension(batchName);
-            CompressionType compressionType = CompressionType.getCompressionType(extension);
-            return new BufferedReader(new InputStreamReader(
-                    compressionType.wrapInputStream(new ByteArrayInputStream(b))));
+        public ArchiveFormat.RecordReader getStreamReader() throws IOException {
+            if (ArchivePack.isPackKey(batchName)) {
+                return ArchivePack.newReader(b);
+            }
+            CompressionType compressionType = CompressionType.fromFileName(batchName);
+            return ArchiveFormat.fromFileName(batchName).newReader(
+                    compressionType.wrapInputStream(new ByteArrayInputStream(b)));
         }
 
-        void process(String key, String msg) {
-            ProducerRecord<String, String> record = new ProducerRecord<>(subscribedTopic, key, msg);
-            rejectedRecords.submit(msg, producer.send(record));
+        void process(ArchivedRecord archivedRecord) {
+            // Partition is left to the producer as the produce topic may be laid out differently
+            ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(subscribedTopic, null,
+                    archivedRecord.timestamp, archivedRecord.key, archivedRecord.value,
+                    new RecordHeaders(archivedRecord.headers));
+            rejectedRecords.submit(record, producer.send(record));
         }
 
         public void readlocalFile() {
@@ -129,11 +145,10 @@ public class ProducerService {
             }
 
             logger.info("Loading File {} to Kafka", file.getName());
-            try (BufferedReader reader = getFileReader()) {
-                String line;
-                String key = null; // PLEASE MAKE SURE YOU WANT THIS TO BE NULL
-                while ((line = reader.readLine()) != null) {
-                    process(key, line);
+            try (ArchiveFormat.RecordReader reader = getFileReader()) {
+                ArchivedRecord record;
+                while ((record = reader.next()) != null) {
+                    process(record);
                     progressListener.markProducedRecord();
                 }
             } catch (IOException e) {
@@ -148,11 +163,10 @@ public class ProducerService {
 
         public void readBytes() {
             logger.info("Streaming {} ", batchName);
-            try (BufferedReader reader = getStreamReader()) {
-                String line;
-                String key = null; // MAKE SURE YOU WANT THIS TO BE NULL
-                while ((line = reader.readLine()) != null) {
-                    process(key, line);
+            try (ArchiveFormat.RecordReader reader = getStreamReader()) {
+                ArchivedRecord record;
+                while ((record = reader.next()) != null) {
+                    process(record);
                     progressListener.markProducedRecord();
                 }
                 progressListener.markProducedObject(objectKey);
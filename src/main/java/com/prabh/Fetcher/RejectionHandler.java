@@ -1,5 +1,6 @@
 package com.prabh.Fetcher;
 
+import com.prabh.Utils.ArchiveFormat;
 import com.prabh.Utils.Pair;
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
@@ -28,15 +29,15 @@ public class RejectionHandler implements Runnable {
             UnknownServerException.class.getName());
     private batch permanentErr;
     private batch transientErr;
-    private final KafkaProducer<String, String> producer;
+    private final KafkaProducer<byte[], byte[]> producer;
     private final String topic;
     private final Logger logger = LoggerFactory.getLogger(RejectionHandler.class);
     private final FilePaths filePaths;
-    private final BlockingQueue<Pair<Future<RecordMetadata>, String>> rejectedRecords;
+    private final BlockingQueue<Pair<Future<RecordMetadata>, ProducerRecord<byte[], byte[]>>> rejectedRecords;
     private final AtomicBoolean stopped = new AtomicBoolean(false);
     private ProgressListener progressListener;
 
-    public RejectionHandler(FilePaths _filePaths, KafkaProducer<String, String> _producer, String topic) {
+    public RejectionHandler(FilePaths _filePaths, KafkaProducer<byte[], byte[]> _producer, String topic) {
         this.filePaths = _filePaths;
         this.producer = _producer;
         this.topic = topic;
@@ -51,7 +52,7 @@ public class RejectionHandler implements Runnable {
         stopped.set(true);
     }
 
-    public void submit(String record, Future<RecordMetadata> f) {
+    public void submit(ProducerRecord<byte[], byte[]> record, Future<RecordMetadata> f) {
         try {
             rejectedRecords.put(new Pair<>(f, record));
         } catch (InterruptedException e) {
@@ -63,7 +64,7 @@ public class RejectionHandler implements Runnable {
     public void run() {
         Thread.currentThread().setName("Rejection Handler");
         while (!stopped.get() || !rejectedRecords.isEmpty()) {
-            Pair<Future<RecordMetadata>, String> p = rejectedRecords.poll();
+            Pair<Future<RecordMetadata>, ProducerRecord<byte[], byte[]>> p = rejectedRecords.poll();
             if (p != null) {
                 try {
                     p.first.get();
@@ -85,8 +86,8 @@ public class RejectionHandler implements Runnable {
         return permanentExceptions.contains(e.getClass().getName());
     }
 
-    public void retry(String msg) {
-        producer.send(new ProducerRecord<>(topic, null, msg), new Callback() {
+    public void retry(ProducerRecord<byte[], byte[]> msg) {
+        producer.send(msg, new Callback() {
             @Override
             public void onCompletion(RecordMetadata recordMetadata, Exception e) {
                 if (e != null) {
@@ -96,7 +97,7 @@ public class RejectionHandler implements Runnable {
         });
     }
 
-    public void putToLocalCache(String record, boolean permanent) {
+    public void putToLocalCache(ProducerRecord<byte[], byte[]> record, boolean permanent) {
         if (progressListener != null) {
             progressListener.markRejectedRecord();
         }
@@ -107,7 +108,7 @@ public class RejectionHandler implements Runnable {
         }
     }
 
-    public void markPermanentRejection(String record) {
+    public void markPermanentRejection(ProducerRecord<byte[], byte[]> record) {
         if (permanentErr == null || permanentErr.readyForCommit() == 2) {
             permanentErr = new batch(0);
         }
@@ -115,7 +116,7 @@ public class RejectionHandler implements Runnable {
         permanentErr.add(record);
     }
 
-    public void markTemporaryRejection(String record) {
+    public void markTemporaryRejection(ProducerRecord<byte[], byte[]> record) {
         if (transientErr == null || transientErr.readyForCommit() == 2) {
             transientErr = new batch(0);
         }
@@ -124,19 +125,20 @@ public class RejectionHandler implements Runnable {
     }
 
 
+    // Rejected records are cached in binary format so that keys, headers and timestamps survive a replay
     private class batch {
         private final long startTime = System.currentTimeMillis();
         private long currentSize = 0;
         private final String fileName;
-        private final Queue<String> buffer = new LinkedList<>();
+        private final Queue<ProducerRecord<byte[], byte[]>> buffer = new LinkedList<>();
 
         batch(long t) {
             String dir = (t == 1) ? filePaths.RejectedDirectoryTransient : filePaths.RejectedDirectoryPermanent;
-            this.fileName = dir + "/" + UUID.randomUUID();
+            this.fileName = dir + "/" + UUID.randomUUID() + "." + ArchiveFormat.BINARY.extension;
         }
 
-        public void add(String record) {
-            currentSize += record.length();
+        public void add(ProducerRecord<byte[], byte[]> record) {
+            currentSize += record.value() == null ? 0 : record.value().length;
             buffer.add(record);
         }
 
@@ -153,11 +155,12 @@ public class RejectionHandler implements Runnable {
 
         public void flush() {
             new File(fileName).getParentFile().mkdirs();
-            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)))) {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName, true))) {
+                ArchiveFormat.RecordWriter writer = ArchiveFormat.BINARY.newWriter(out);
                 while (!buffer.isEmpty()) {
-                    String s = buffer.poll();
-                    System.out.println(s);
-                    writer.println(s);
+                    ProducerRecord<byte[], byte[]> r = buffer.poll();
+                    long timestamp = r.timestamp() == null ? -1 : r.timestamp();
+                    writer.write(-1, timestamp, r.key(), r.value(), r.headers());
                 }
             } catch (IOException e) {
                 logger.error(e.getMessage());
@@ -1,6 +1,7 @@
 package com.prabh.Fetcher;
 
 import com.prabh.Utils.AdminController;
+import com.prabh.Utils.KeyLayout;
 import org.apache.kafka.clients.admin.NewTopic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,7 +24,7 @@ public class SourceClient {
                 completion, builder.producerThreadCount);
         this.downloadingService = new DownloadService(builder.s3Client, builder.bucket, builder.consumeTopic,
                 builder.startStamp, builder.endStamp, producerService, builder.stream, filePaths,
-                builder.downloadThreadCount);
+                builder.downloadThreadCount, builder.keyLayout, builder.useManifests);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             Thread.currentThread().setName("Shutdown Hook");
@@ -32,6 +33,7 @@ public class SourceClient {
     }
 
     // Overwrites the local cached progress if present
+    // Throws when the objects of the range can't be listed, nothing is replayed then
     public void start() {
         downloadingService.start(false);
     }
@@ -68,6 +70,8 @@ public class SourceClient {
         private int downloadThreadCount = 20;
         private int producerThreadCount = 5;
         private boolean stream = false;
+        private KeyLayout keyLayout = KeyLayout.LEGACY;
+        private boolean useManifests = false;
 
         public Builder() {
 
@@ -137,6 +141,19 @@ public class SourceClient {
             return this;
         }
 
+        // Must match the key layout the topic was archived with
+        public Builder keyLayout(KeyLayout _keyLayout) {
+            this.keyLayout = _keyLayout;
+            return this;
+        }
+
+        // Plans the replay from the manifests the archiver keeps (SinkClient.Builder.manifests())
+        // instead of listing every prefix in range
+        public Builder useManifests() {
+            this.useManifests = true;
+            return this;
+        }
+
         private void validate() {
             if (bootstrapId == null) {
                 throw new IllegalArgumentException("Parameter 'Kafka Broker Bootstrap Id' must not be null");
@@ -146,8 +163,11 @@ public class SourceClient {
                 throw new IllegalArgumentException("Parameter 'S3 Client' must not be null");
             } else if (bucket == null) {
                 throw new IllegalArgumentException("Parameter 'Bucket' must not be null");
-            } else if (startStamp == null || endStamp == null)
+            } else if (startStamp == null || endStamp == null) {
                 throw new IllegalArgumentException("Missing or Invalid queried epoch range");
+            } else if (keyLayout == null) {
+                throw new IllegalArgumentException("Key layout cannot be null");
+            }
             if (produceTopic == null) {
                 throw new IllegalArgumentException("Parameter 'Produce Topic' must not be null");
             } else {
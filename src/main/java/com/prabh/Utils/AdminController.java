@@ -4,10 +4,16 @@ import org.apache.kafka.clients.admin.Admin;
 import org.apache.kafka.clients.admin.AdminClientConfig;
 import org.apache.kafka.clients.admin.CreateTopicsResult;
 import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.admin.TopicDescription;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -30,6 +36,54 @@ public class AdminController {
         }
     }
 
+    // First offset still in the log of every partition of the topics
+    public Map<TopicPartition, Long> earliestOffsets(List<String> topics) {
+        return offsets(topics, OffsetSpec.earliest());
+    }
+
+    // Offset the next produced record of every partition of the topics will get
+    public Map<TopicPartition, Long> latestOffsets(List<String> topics) {
+        return offsets(topics, OffsetSpec.latest());
+    }
+
+    private Map<TopicPartition, Long> offsets(List<String> topics, OffsetSpec spec) {
+        try {
+            Map<TopicPartition, OffsetSpec> request = new HashMap<>();
+            for (TopicDescription topic : client.describeTopics(topics).allTopicNames().get().values()) {
+                topic.partitions().forEach(p -> request.put(new TopicPartition(topic.name(), p.partition()), spec));
+            }
+            Map<TopicPartition, Long> offsets = new HashMap<>();
+            client.listOffsets(request).all().get().forEach((partition, info) -> offsets.put(partition, info.offset()));
+            return offsets;
+        } catch (ExecutionException | InterruptedException e) {
+            throw new RuntimeException("Offset lookup of " + topics + " failed : " + e.getMessage());
+        }
+    }
+
+    public Map<TopicPartition, OffsetAndMetadata> committedOffsets(String groupName) {
+        try {
+            Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+            client.listConsumerGroupOffsets(groupName).partitionsToOffsetAndMetadata().get().forEach((partition, offset) -> {
+                // partitions without a committed offset are listed with null
+                if (offset != null) {
+                    offsets.put(partition, offset);
+                }
+            });
+            return offsets;
+        } catch (ExecutionException | InterruptedException e) {
+            throw new RuntimeException("Committed offsets of " + groupName + " not retrieved : " + e.getMessage());
+        }
+    }
+
+    // Only allowed while the group has no active members
+    public void commitOffsets(String groupName, Map<TopicPartition, OffsetAndMetadata> offsets) {
+        try {
+            client.alterConsumerGroupOffsets(groupName, offsets).all().get();
+        } catch (ExecutionException | InterruptedException e) {
+            throw new RuntimeException("Offsets of " + groupName + " not committed : " + e.getMessage());
+        }
+    }
+
     public void shutdown() {
         client.close();
     }
@@ -0,0 +1,365 @@
+package com.prabh.Utils;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public enum ArchiveFormat {
+    // Record values separated by new lines
+    TEXT("text", "") {
+        @Override
+        public RecordWriter newWriter(OutputStream out) {
+            return new TextWriter(out);
+        }
+
+        @Override
+        public RecordReader newReader(InputStream in) {
+            return new TextReader(in);
+        }
+
+        @Override
+        public long estimateSize(ConsumerRecord<byte[], byte[]> record) {
+            return Math.max(record.serializedValueSize(), 0) + 1;
+        }
+    },
+
+    // Length prefixed frames carrying offset, timestamp, key, headers and value
+    BINARY("binary", "kbin") {
+        @Override
+        public RecordWriter newWriter(OutputStream out) {
+            return new BinaryWriter(out);
+        }
+
+        @Override
+        public RecordReader newReader(InputStream in) {
+            return new BinaryReader(in);
+        }
+
+        @Override
+        public long estimateSize(ConsumerRecord<byte[], byte[]> record) {
+            long size = BinaryWriter.FIXED_FRAME_BYTES + Math.max(record.serializedKeySize(), 0)
+                    + Math.max(record.serializedValueSize(), 0);
+            for (Header header : record.headers()) {
+                size += 8 + header.key().getBytes(StandardCharsets.UTF_8).length
+                        + (header.value() == null ? 0 : header.value().length);
+            }
+            return size;
+        }
+    },
+
+    // Columnar files with offset, timestamp, key, value and headers columns, compressed by Parquet itself
+    PARQUET("parquet", "parquet") {
+        private static final long DEFAULT_ROW_GROUP_SIZE_BYTES = 8 * 1024 * 1024; // 8 MB
+
+        @Override
+        public RecordWriter newWriter(OutputStream out) throws IOException {
+            return newWriter(out, CompressionType.SNAPPY, CompressionType.DEFAULT_LEVEL, DEFAULT_ROW_GROUP_SIZE_BYTES);
+        }
+
+        @Override
+        public RecordWriter newWriter(OutputStream out, CompressionType compression, int level,
+                                      long rowGroupSizeBytes) throws IOException {
+            return ParquetRecords.newWriter(out, compression, level, rowGroupSizeBytes);
+        }
+
+        @Override
+        public RecordReader newReader(InputStream in) throws IOException {
+            return ParquetRecords.newReader(in);
+        }
+
+        @Override
+        public long estimateSize(ConsumerRecord<byte[], byte[]> record) {
+            return BINARY.estimateSize(record);
+        }
+
+        @Override
+        public boolean compressesInternally() {
+            return true;
+        }
+    };
+
+    public final String name;
+    public final String extension;
+
+    public static ArchiveFormat getArchiveFormat(String name) {
+        name = name.toLowerCase();
+        for (ArchiveFormat format : values()) {
+            if (name.equals(format.name) || name.equals(format.extension)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("""
+                The Asked Archive Format Is Unknown/Unsupported
+                Currently Supported Formats - Text, Binary, Parquet
+                """);
+    }
+
+    // Object names look like <partition>_<start>_<end>[.<format>][.<compression>]
+    public static ArchiveFormat fromFileName(String fileName) {
+        String[] parts = fileName.split("\\.");
+        for (int i = 1; i < parts.length; i++) {
+            for (ArchiveFormat format : values()) {
+                if (!format.extension.equals("") && parts[i].equalsIgnoreCase(format.extension)) {
+                    return format;
+                }
+            }
+        }
+        return TEXT;
+    }
+
+    ArchiveFormat(String _name, String _extension) {
+        this.name = _name;
+        this.extension = _extension;
+    }
+
+    public abstract RecordWriter newWriter(OutputStream out) throws IOException;
+
+    // Formats that compress internally use the codec themselves instead of being wrapped by it
+    public RecordWriter newWriter(OutputStream out, CompressionType compression, int level,
+                                  long rowGroupSizeBytes) throws IOException {
+        return newWriter(out);
+    }
+
+    public abstract RecordReader newReader(InputStream in) throws IOException;
+
+    // True when the object must not be wrapped in a compression stream
+    public boolean compressesInternally() {
+        return false;
+    }
+
+    // Approximate number of bytes the record takes before compression
+    public abstract long estimateSize(ConsumerRecord<byte[], byte[]> record);
+
+    public interface RecordWriter {
+        void write(long offset, long timestamp, byte[] key, byte[] value, Iterable<Header> headers) throws IOException;
+
+        default void write(ConsumerRecord<byte[], byte[]> record) throws IOException {
+            write(record.offset(), record.timestamp(), record.key(), record.value(), record.headers());
+        }
+
+        // Writes any trailer the format needs, the underlying stream is left open
+        default void finish() throws IOException {
+        }
+    }
+
+    public interface RecordReader extends Closeable {
+        // Returns null once the stream is exhausted
+        ArchivedRecord next() throws IOException;
+    }
+
+    private static final class TextWriter implements RecordWriter {
+        private final OutputStream out;
+
+        TextWriter(OutputStream _out) {
+            this.out = _out;
+        }
+
+        @Override
+        public void write(long offset, long timestamp, byte[] key, byte[] value, Iterable<Header> headers) throws IOException {
+            if (value != null) {
+                out.write(value);
+            }
+            out.write('\n');
+        }
+    }
+
+    // Splits lines directly on the byte stream, values are never decoded to Strings
+    private static final class TextReader implements RecordReader {
+        private final InputStream in;
+        private final byte[] buf = new byte[64 * 1024];
+        private int pos = 0;
+        private int limit = 0;
+        private boolean eof = false;
+
+        TextReader(InputStream _in) {
+            this.in = _in;
+        }
+
+        private boolean fill() throws IOException {
+            if (eof) return false;
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) {
+                eof = true;
+                return false;
+            }
+            pos = 0;
+            limit = n;
+            return true;
+        }
+
+        @Override
+        public ArchivedRecord next() throws IOException {
+            if (pos == limit && !fill()) {
+                return null;
+            }
+
+            ByteArrayOutputStream spill = null;
+            while (true) {
+                int start = pos;
+                while (pos < limit && buf[pos] != '\n') pos++;
+                if (pos < limit) {
+                    byte[] line = take(spill, start, pos);
+                    pos++; // skip new line
+                    return new ArchivedRecord(-1, null, null, line, null);
+                }
+
+                // line continues beyond the current buffer
+                if (spill == null) spill = new ByteArrayOutputStream();
+                spill.write(buf, start, pos - start);
+                if (!fill()) {
+                    return new ArchivedRecord(-1, null, null, stripCarriageReturn(spill.toByteArray()), null);
+                }
+            }
+        }
+
+        private byte[] take(ByteArrayOutputStream spill, int start, int end) {
+            if (spill == null) {
+                if (end > start && buf[end - 1] == '\r') end--;
+                return Arrays.copyOfRange(buf, start, end);
+            }
+            spill.write(buf, start, end - start);
+            return stripCarriageReturn(spill.toByteArray());
+        }
+
+        private static byte[] stripCarriageReturn(byte[] line) {
+            if (line.length > 0 && line[line.length - 1] == '\r') {
+                return Arrays.copyOf(line, line.length - 1);
+            }
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /*
+     * Frame layout (big endian)
+     *   int    frame length (excluding this field)
+     *   byte   version
+     *   long   offset
+     *   long   timestamp
+     *   int    key length (-1 for null) + key bytes
+     *   int    value length (-1 for null) + value bytes
+     *   int    header count, then per header : int key length + utf8 key, int value length (-1 for null) + value
+     */
+    private static final class BinaryWriter implements RecordWriter {
+        static final byte VERSION = 1;
+        static final int FIXED_FRAME_BYTES = 4 + 1 + 8 + 8 + 4 + 4 + 4;
+        private final OutputStream out;
+        private final byte[] scratch = new byte[FIXED_FRAME_BYTES];
+
+        BinaryWriter(OutputStream _out) {
+            this.out = _out;
+        }
+
+        @Override
+        public void write(long offset, long timestamp, byte[] key, byte[] value, Iterable<Header> headers) throws IOException {
+            int headerCount = 0;
+            int headerBytes = 0;
+            if (headers != null) {
+                for (Header header : headers) {
+                    headerCount++;
+                    headerBytes += 8 + header.key().getBytes(StandardCharsets.UTF_8).length
+                            + (header.value() == null ? 0 : header.value().length);
+                }
+            }
+            int keyLength = key == null ? -1 : key.length;
+            int valueLength = value == null ? -1 : value.length;
+            int frameLength = FIXED_FRAME_BYTES - 4 + Math.max(keyLength, 0) + Math.max(valueLength, 0) + headerBytes;
+
+            int p = putInt(scratch, 0, frameLength);
+            scratch[p++] = VERSION;
+            p = putLong(scratch, p, offset);
+            p = putLong(scratch, p, timestamp);
+            putInt(scratch, p, keyLength);
+            out.write(scratch, 0, p + 4);
+            if (key != null) out.write(key);
+
+            putInt(scratch, 0, valueLength);
+            out.write(scratch, 0, 4);
+            if (value != null) out.write(value);
+
+            putInt(scratch, 0, headerCount);
+            out.write(scratch, 0, 4);
+            if (headerCount > 0) {
+                for (Header header : headers) {
+                    byte[] headerKey = header.key().getBytes(StandardCharsets.UTF_8);
+                    byte[] headerValue = header.value();
+                    putInt(scratch, 0, headerKey.length);
+                    out.write(scratch, 0, 4);
+                    out.write(headerKey);
+                    putInt(scratch, 0, headerValue == null ? -1 : headerValue.length);
+                    out.write(scratch, 0, 4);
+                    if (headerValue != null) out.write(headerValue);
+                }
+            }
+        }
+
+        private static int putInt(byte[] b, int p, int v) {
+            b[p] = (byte) (v >>> 24);
+            b[p + 1] = (byte) (v >>> 16);
+            b[p + 2] = (byte) (v >>> 8);
+            b[p + 3] = (byte) v;
+            return p + 4;
+        }
+
+        private static int putLong(byte[] b, int p, long v) {
+            p = putInt(b, p, (int) (v >>> 32));
+            return putInt(b, p, (int) v);
+        }
+    }
+
+    private static final class BinaryReader implements RecordReader {
+        private static final Header[] NO_HEADERS = new Header[0];
+        private final DataInputStream in;
+
+        BinaryReader(InputStream _in) {
+            this.in = new DataInputStream(_in instanceof BufferedInputStream ? _in : new BufferedInputStream(_in, 64 * 1024));
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            if (length < 0) return null;
+            byte[] b = new byte[length];
+            in.readFully(b);
+            return b;
+        }
+
+        @Override
+        public ArchivedRecord next() throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            int frameLength = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+            byte version = in.readByte();
+            if (version != BinaryWriter.VERSION) {
+                // Written by a newer archiver, skip what we can't understand
+                in.skipNBytes(frameLength - 1);
+                return next();
+            }
+
+            long offset = in.readLong();
+            long timestamp = in.readLong();
+            byte[] key = readBytes(in.readInt());
+            byte[] value = readBytes(in.readInt());
+            int headerCount = in.readInt();
+            Header[] headers = headerCount == 0 ? NO_HEADERS : new Header[headerCount];
+            for (int i = 0; i < headerCount; i++) {
+                String headerKey = new String(readBytes(in.readInt()), StandardCharsets.UTF_8);
+                headers[i] = new RecordHeader(headerKey, readBytes(in.readInt()));
+            }
+            return new ArchivedRecord(offset, timestamp < 0 ? null : timestamp, key, value, headers);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.prabh.Utils;
+
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Lists the batches an archiver stored for a topic whose records fall within one UTC hour
+// A batch is listed under every hour its records span, so a reader only needs the manifests of its own range
+// Every archiver instance keeps its own manifest per hour, so no two writers ever update the same object :
+// manifests/<topic>/dt=<yyyy-MM-dd>/hr=<HH>/<writer>.manifest.gz
+// Each line is a tab separated entry : key, partition, start offset, end offset, min / max timestamp, size, indexed
+public class ArchiveManifest {
+    public static final String EXTENSION = ".manifest.gz";
+    private static final long HOUR_MS = 60 * 60 * 1000;
+    private static final DateTimeFormatter HOUR_FORMATTER = DateTimeFormatter.ofPattern("'dt='uuuu-MM-dd/'hr='HH/")
+            .withZone(ZoneOffset.UTC);
+
+    public record Entry(String key, int partition, long startOffset, long endOffset, long minTimestamp,
+                        long maxTimestamp, long sizeBytes, boolean indexed) {
+
+        // Records without a timestamp are kept, as the fetcher can't tell where they belong
+        public boolean overlaps(long fromMillis, long toMillis) {
+            return minTimestamp < 0 || (maxTimestamp >= fromMillis && minTimestamp <= toMillis);
+        }
+    }
+
+    private ArchiveManifest() {
+    }
+
+    public static String topicPrefix(String topic) {
+        return "manifests/" + topic + "/";
+    }
+
+    public static String hourPrefix(String topic, long timestampMillis) {
+        return topicPrefix(topic) + HOUR_FORMATTER.format(Instant.ofEpochMilli(timestampMillis));
+    }
+
+    // Hours the entry is listed under, from its earliest to its latest record timestamp
+    // Records without a timestamp don't count, a batch without any is listed under the first hour of the epoch
+    public static List<String> hourPrefixes(String topic, Entry entry) {
+        long first = entry.minTimestamp() >= 0 ? entry.minTimestamp() : Math.max(entry.maxTimestamp(), 0);
+        long last = Math.max(entry.maxTimestamp(), first);
+        List<String> prefixes = new ArrayList<>();
+        for (long hour = first - first % HOUR_MS; hour <= last; hour += HOUR_MS) {
+            prefixes.add(hourPrefix(topic, hour));
+        }
+        return prefixes;
+    }
+
+    // Entries of the topic's manifests for the hours of the range (inclusive), by batch key
+    // A single paginated LIST over the manifests followed by a GET per manifest, instead of a LIST per prefix
+    public static Map<String, Entry> list(S3Client s3Client, String bucket, String topic, long fromMillis,
+                                          long toMillis) throws IOException {
+        String lastHourPrefix = hourPrefix(topic, toMillis);
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        ListObjectsV2Request listObjects = ListObjectsV2Request.builder().bucket(bucket)
+                .prefix(topicPrefix(topic))
+                .startAfter(hourPrefix(topic, fromMillis))
+                .build();
+        boolean done = false;
+        while (!done) {
+            ListObjectsV2Response listObjResponse = s3Client.listObjectsV2(listObjects);
+            for (S3Object content : listObjResponse.contents()) {
+                if (content.key().compareTo(lastHourPrefix) > 0 && !content.key().startsWith(lastHourPrefix)) {
+                    done = true;
+                    break;
+                }
+                byte[] manifest = s3Client.getObject(GetObjectRequest.builder().bucket(bucket).key(content.key())
+                        .build(), ResponseTransformer.toBytes()).asByteArray();
+                try {
+                    for (Entry entry : decode(manifest)) {
+                        entries.put(entry.key(), entry);
+                    }
+                } catch (IOException e) {
+                    throw new IOException("Manifest " + content.key() + " is unreadable : " + e.getMessage(), e);
+                }
+            }
+            done = done || !listObjResponse.isTruncated();
+            listObjects = listObjects.toBuilder().continuationToken(listObjResponse.nextContinuationToken()).build();
+        }
+        return entries;
+    }
+
+    public static byte[] encode(Collection<Entry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8))) {
+            for (Entry e : entries) {
+                out.write(e.key() + "\t" + e.partition() + "\t" + e.startOffset() + "\t" + e.endOffset() + "\t"
+                        + e.minTimestamp() + "\t" + e.maxTimestamp() + "\t" + e.sizeBytes() + "\t"
+                        + (e.indexed() ? 1 : 0) + "\n");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static List<Entry> decode(byte[] data) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(data)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] f = line.split("\t");
+                if (f.length != 8) {
+                    throw new IOException("Malformed manifest entry : " + line);
+                }
+                entries.add(new Entry(f[0], Integer.parseInt(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3]),
+                        Long.parseLong(f[4]), Long.parseLong(f[5]), Long.parseLong(f[6]), f[7].equals("1")));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed manifest entry", e);
+        }
+        return entries;
+    }
+}
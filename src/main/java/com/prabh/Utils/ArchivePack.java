@@ -0,0 +1,124 @@
+package com.prabh.Utils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Object holding the small batches of several partitions of a topic, <prefix>pack-<writer>-<n>.kpack
+// Every section is a batch exactly as it would have been stored on its own, the section table that follows
+// them names each one (so its format and compression come from the name as usual) with its offsets,
+// timestamps and byte range, and the object ends with the table length and the magic
+public class ArchivePack {
+    public static final String EXTENSION = ".kpack";
+    private static final int MAGIC = 0x4B50414B; // KPAK
+    private static final byte VERSION = 1;
+    private static final int TRAILER_BYTES = 8;
+
+    public record Section(String name, int partition, long startOffset, long endOffset, long minTimestamp,
+                          long maxTimestamp, long position, long length) {
+    }
+
+    private ArchivePack() {
+    }
+
+    public static boolean isPackKey(String key) {
+        return key.endsWith(EXTENSION);
+    }
+
+    public static String fileName(String writerId, long sequence) {
+        return "pack-" + writerId + "-" + sequence + EXTENSION;
+    }
+
+    // Section table and trailer, written after the last section
+    public static byte[] encodeTable(List<Section> sections) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9 + sections.size() * 80);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(sections.size());
+            for (Section section : sections) {
+                out.writeUTF(section.name());
+                out.writeInt(section.partition());
+                out.writeLong(section.startOffset());
+                out.writeLong(section.endOffset());
+                out.writeLong(section.minTimestamp());
+                out.writeLong(section.maxTimestamp());
+                out.writeLong(section.position());
+                out.writeLong(section.length());
+            }
+            // the table length counts the trailer too
+            out.writeInt(out.size() + TRAILER_BYTES);
+            out.writeInt(MAGIC);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static List<Section> decodeTable(byte[] pack) throws IOException {
+        if (pack.length < TRAILER_BYTES) {
+            throw new IOException("Not a pack");
+        }
+        DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(pack, pack.length - TRAILER_BYTES,
+                TRAILER_BYTES));
+        int tableLength = trailer.readInt();
+        if (trailer.readInt() != MAGIC || tableLength < TRAILER_BYTES || tableLength > pack.length) {
+            throw new IOException("Not a pack");
+        }
+        int tableStart = pack.length - tableLength;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(pack, tableStart, tableLength))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Unknown pack table");
+            }
+            int count = in.readInt();
+            List<Section> sections = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Section section = new Section(in.readUTF(), in.readInt(), in.readLong(), in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong());
+                if (section.position() < 0 || section.length() < 0
+                        || section.position() + section.length() > tableStart) {
+                    throw new IOException("Section " + section.name() + " is out of the pack");
+                }
+                sections.add(section);
+            }
+            return sections;
+        }
+    }
+
+    // Reads the records of every section in turn
+    public static ArchiveFormat.RecordReader newReader(byte[] pack) throws IOException {
+        List<Section> sections = decodeTable(pack);
+        return new ArchiveFormat.RecordReader() {
+            private int next = 0;
+            private ArchiveFormat.RecordReader current;
+
+            @Override
+            public ArchivedRecord next() throws IOException {
+                while (true) {
+                    if (current != null) {
+                        ArchivedRecord record = current.next();
+                        if (record != null) {
+                            return record;
+                        }
+                        current.close();
+                        current = null;
+                    }
+                    if (next == sections.size()) {
+                        return null;
+                    }
+                    Section section = sections.get(next++);
+                    InputStream in = new ByteArrayInputStream(pack, (int) section.position(), (int) section.length());
+                    current = ArchiveFormat.fromFileName(section.name())
+                            .newReader(CompressionType.fromFileName(section.name()).wrapInputStream(in));
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (current != null) {
+                    current.close();
+                }
+            }
+        };
+    }
+}
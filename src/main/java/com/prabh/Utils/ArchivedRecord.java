@@ -0,0 +1,21 @@
+package com.prabh.Utils;
+
+import org.apache.kafka.common.header.Header;
+
+// A record as read back from an archived batch
+// Fields that the archive format doesn't carry are left null (offset -1)
+public class ArchivedRecord {
+    public final long offset;
+    public final Long timestamp;
+    public final byte[] key;
+    public final byte[] value;
+    public final Header[] headers;
+
+    public ArchivedRecord(long _offset, Long _timestamp, byte[] _key, byte[] _value, Header[] _headers) {
+        this.offset = _offset;
+        this.timestamp = _timestamp;
+        this.key = _key;
+        this.value = _value;
+        this.headers = _headers;
+    }
+}
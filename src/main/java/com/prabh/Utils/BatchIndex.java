@@ -0,0 +1,122 @@
+package com.prabh.Utils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Sidecar of an archived batch, stored under <batch key>.idx
+// One entry per independently compressed block : its first offset, the span of its record timestamps
+// and its byte position in the object, so that a fetch can read only the blocks it needs with ranged GETs
+public class BatchIndex {
+    public static final String EXTENSION = ".idx";
+    private static final int MAGIC = 0x4B494458; // KIDX
+    private static final byte VERSION = 1;
+    public final List<Block> blocks;
+    public final long objectLength;
+
+    public record Block(long firstOffset, long minTimestamp, long maxTimestamp, long position) {
+    }
+
+    public BatchIndex(List<Block> _blocks, long _objectLength) {
+        this.blocks = _blocks;
+        this.objectLength = _objectLength;
+    }
+
+    public static boolean isIndexKey(String key) {
+        return key.endsWith(EXTENSION);
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(13 + 8 + blocks.size() * 32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(objectLength);
+            out.writeInt(blocks.size());
+            for (Block block : blocks) {
+                out.writeLong(block.firstOffset());
+                out.writeLong(block.minTimestamp());
+                out.writeLong(block.maxTimestamp());
+                out.writeLong(block.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static BatchIndex fromBytes(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a batch index");
+            }
+            long objectLength = in.readLong();
+            int count = in.readInt();
+            List<Block> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blocks.add(new Block(in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+            }
+            return new BatchIndex(blocks, objectLength);
+        }
+    }
+
+    // Byte ranges [first, second) of the blocks holding records timestamped within the window (inclusive)
+    // Adjacent blocks are merged into a single range, blocks without timestamps are always kept
+    public List<Pair<Long, Long>> rangesFor(long fromMillis, long toMillis) {
+        List<Pair<Long, Long>> ranges = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            boolean overlaps = block.minTimestamp() < 0
+                    || (block.maxTimestamp() >= fromMillis && block.minTimestamp() <= toMillis);
+            if (!overlaps) {
+                continue;
+            }
+            long end = i + 1 < blocks.size() ? blocks.get(i + 1).position() : objectLength;
+            Pair<Long, Long> last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last.second == block.position()) {
+                last.second = end;
+            } else {
+                ranges.add(new Pair<>(block.position(), end));
+            }
+        }
+        return ranges;
+    }
+
+    // Collects the entries while the batch is written, positions come from the compressed stream at the end
+    public static class Builder {
+        private final List<long[]> entries = new ArrayList<>();
+        private long[] current;
+
+        public void add(long offset, long timestamp) {
+            if (current == null) {
+                current = new long[]{offset, timestamp, timestamp};
+                entries.add(current);
+                return;
+            }
+            if (timestamp < 0 || current[1] < 0) {
+                current[1] = -1;
+            } else {
+                current[1] = Math.min(current[1], timestamp);
+            }
+            current[2] = Math.max(current[2], timestamp);
+        }
+
+        // The next record starts a new block
+        public void endBlock() {
+            current = null;
+        }
+
+        public BatchIndex build(List<Long> blockPositions, long objectLength) {
+            if (blockPositions.size() != entries.size()) {
+                throw new IllegalStateException("Index has " + entries.size() + " blocks, stream wrote "
+                        + blockPositions.size());
+            }
+            List<Block> blocks = new ArrayList<>(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                long[] e = entries.get(i);
+                blocks.add(new Block(e[0], e[1], e[2], blockPositions.get(i)));
+            }
+            return new BatchIndex(blocks, objectLength);
+        }
+    }
+}
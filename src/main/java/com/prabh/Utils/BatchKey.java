@@ -0,0 +1,59 @@
+package com.prabh.Utils;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A batch key split into its directory and its <partition>_<start offset>_<end offset>[.<format>][.<codec>] name
+public record BatchKey(String key, String directory, int partition, long startOffset, long endOffset, String suffix) {
+    private static final Pattern NAME = Pattern.compile("(\\d+)_(\\d+)_(\\d+)((?:\\.[^./]+)*)");
+
+    // null for anything that isn't a batch, such as packs, indexes and manifests
+    public static BatchKey parse(String key) {
+        if (BatchIndex.isIndexKey(key)) {
+            return null;
+        }
+        int slash = key.lastIndexOf('/');
+        Matcher m = NAME.matcher(key.substring(slash + 1));
+        if (!m.matches()) {
+            return null;
+        }
+        try {
+            return new BatchKey(key, key.substring(0, slash + 1), Integer.parseInt(m.group(1)),
+                    Long.parseLong(m.group(2)), Long.parseLong(m.group(3)), m.group(4));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Name of a batch holding the offsets from start to end, in the same format and compression as this one
+    public String withOffsets(long start, long end) {
+        return directory + partition + "_" + start + "_" + end + suffix;
+    }
+
+    // The batch a manifest entry lists, with the entry's offsets (a pack holds several of them)
+    public static BatchKey of(ArchiveManifest.Entry entry) {
+        return new BatchKey(entry.key(), "", entry.partition(), entry.startOffset(), entry.endOffset(), "");
+    }
+
+    // Batches whose offsets a larger batch of the same partition covers, such as the inputs of a compaction
+    // that are not deleted yet, or a batch stored again over a longer range after a failure
+    // Batches with equal ranges don't cover each other
+    public static Set<BatchKey> superseded(Collection<BatchKey> batches) {
+        List<BatchKey> sorted = new ArrayList<>(batches);
+        sorted.sort(Comparator.comparingInt(BatchKey::partition).thenComparingLong(BatchKey::startOffset)
+                .thenComparing(Comparator.comparingLong(BatchKey::endOffset).reversed()));
+        Set<BatchKey> covered = new HashSet<>();
+        BatchKey cover = null;
+        for (BatchKey batch : sorted) {
+            if (cover != null && cover.partition == batch.partition && cover.endOffset >= batch.endOffset) {
+                if (cover.startOffset < batch.startOffset || cover.endOffset > batch.endOffset) {
+                    covered.add(batch);
+                }
+                continue;
+            }
+            cover = batch;
+        }
+        return covered;
+    }
+}
@@ -0,0 +1,63 @@
+package com.prabh.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fixed capacity pool of direct buffers, for batches that are kept in memory instead of on disk
+// Blocks are allocated on first use and recycled rather than freed, so the off heap footprint never
+// grows past the capacity, whatever the load
+// Writers never wait for a block : they hold a write permit, and the blocks they would wait for only come back
+// once other writers seal their batches. An exhausted arena hands out heap blocks instead, the writers stop
+// taking new chunks and seal their batches until it has room again
+public class BufferArena {
+    public static final int BLOCK_BYTES = 1024 * 1024; // 1 MB
+    private final int maxBlocks;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBlocks = new ConcurrentLinkedQueue<>();
+    // Heap blocks handed out past the capacity and not released yet
+    private final AtomicInteger overflowBlocks = new AtomicInteger();
+
+    public BufferArena(long capacityBytes) {
+        this.maxBlocks = (int) Math.max(1, capacityBytes / BLOCK_BYTES);
+        this.permits = new Semaphore(maxBlocks);
+    }
+
+    // A heap block once the arena is exhausted, never waits
+    public ByteBuffer acquire() {
+        if (!permits.tryAcquire()) {
+            overflowBlocks.incrementAndGet();
+            return ByteBuffer.allocate(BLOCK_BYTES);
+        }
+        ByteBuffer block = freeBlocks.poll();
+        return block != null ? block : ByteBuffer.allocateDirect(BLOCK_BYTES);
+    }
+
+    public void release(ByteBuffer block) {
+        if (!block.isDirect()) {
+            overflowBlocks.decrementAndGet();
+            return;
+        }
+        block.clear();
+        freeBlocks.offer(block);
+        permits.release();
+    }
+
+    public long availableBytes() {
+        return (long) permits.availablePermits() * BLOCK_BYTES;
+    }
+
+    public long usedBytes() {
+        return capacityBytes() - availableBytes() + (long) overflowBlocks.get() * BLOCK_BYTES;
+    }
+
+    public long capacityBytes() {
+        return (long) maxBlocks * BLOCK_BYTES;
+    }
+
+    // Less than a quarter left, batches being written should be sealed to give their blocks back
+    public boolean isLow() {
+        return permits.availablePermits() < maxBlocks / 4 || overflowBlocks.get() > 0;
+    }
+}
@@ -0,0 +1,52 @@
+package com.prabh.Utils;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Semaphore counted in bytes, bounds the amount of data in flight rather than the number of tasks
+// A single request larger than the whole budget is still let through once nothing else is in flight
+public class ByteBudget {
+    private final long maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long inFlightBytes = 0;
+
+    public ByteBudget(long _maxBytes) {
+        this.maxBytes = _maxBytes;
+    }
+
+    public void acquire(long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlightBytes > 0 && inFlightBytes + bytes > maxBytes) {
+                released.await();
+            }
+            inFlightBytes += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long bytes) {
+        lock.lock();
+        try {
+            inFlightBytes -= bytes;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long inFlightBytes() {
+        lock.lock();
+        try {
+            return inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,44 @@
+package com.prabh.Utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+// Codec of the archived batches along with its level, which can differ per topic
+public class CompressionConfig {
+    public final CompressionType type;
+    public final int defaultLevel;
+    public final Map<String, Integer> topicLevels;
+    // Native threads used by codecs that can compress a single stream in parallel (zstd)
+    public final int workers;
+    // Size of the independently compressed blocks, 0 compresses each batch as a single stream
+    public final int parallelBlockBytes;
+
+    public CompressionConfig(CompressionType _type, int _defaultLevel, Map<String, Integer> _topicLevels, int _workers,
+                             int _parallelBlockBytes) {
+        this.type = _type;
+        this.defaultLevel = _defaultLevel;
+        this.topicLevels = Map.copyOf(_topicLevels);
+        this.workers = _workers;
+        this.parallelBlockBytes = _parallelBlockBytes;
+    }
+
+    public static CompressionConfig of(CompressionType type) {
+        return new CompressionConfig(type, CompressionType.DEFAULT_LEVEL, Map.of(), 0, 0);
+    }
+
+    public boolean parallel() {
+        return parallelBlockBytes > 0 && type != CompressionType.NONE;
+    }
+
+    public int levelFor(String topic) {
+        return topicLevels.getOrDefault(topic, defaultLevel);
+    }
+
+    public OutputStream wrapOutputStream(OutputStream out, String topic) throws IOException {
+        if (parallel()) {
+            return new ParallelCompressionOutputStream(out, type, levelFor(topic), parallelBlockBytes);
+        }
+        return type.wrapOutputStream(out, levelFor(topic), workers);
+    }
+}
@@ -1,5 +1,11 @@
 package com.prabh.Utils;
 
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
 import org.xerial.snappy.SnappyInputStream;
 import org.xerial.snappy.SnappyOutputStream;
 
@@ -26,6 +32,9 @@ public enum CompressionType {
 
         @Override
         public OutputStream wrapOutputStream(OutputStream out, int level) throws IOException {
+            if (level == DEFAULT_LEVEL) {
+                level = Deflater.DEFAULT_COMPRESSION;
+            }
             return new GZIPOutputStream(out, GZIP_BUFFER_SIZE_BYTES) {
                 public OutputStream setLevel(int level) {
                     def.setLevel(level);
@@ -38,6 +47,11 @@ public enum CompressionType {
         public InputStream wrapInputStream(InputStream in) throws IOException {
             return new GZIPInputStream(in);
         }
+
+        @Override
+        public boolean supportsLevel(int level) {
+            return level == DEFAULT_LEVEL || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION);
+        }
     },
 
     // Snappy
@@ -51,8 +65,72 @@ public enum CompressionType {
         public InputStream wrapInputStream(InputStream in) throws IOException {
             return new SnappyInputStream(in);
         }
+    },
+
+    // Zstandard, levels 1 (fastest) to 22, negative levels trade even more ratio for speed
+    ZSTD("zstd", "zst") {
+        private static final int ZSTD_DEFAULT_LEVEL = 3;
+
+        @Override
+        public OutputStream wrapOutputStream(OutputStream out) throws IOException {
+            return wrapOutputStream(out, DEFAULT_LEVEL, 0);
+        }
+
+        @Override
+        public OutputStream wrapOutputStream(OutputStream out, int level) throws IOException {
+            return wrapOutputStream(out, level, 0);
+        }
+
+        // workers > 0 compresses on that many native threads inside the codec
+        @Override
+        public OutputStream wrapOutputStream(OutputStream out, int level, int workers) throws IOException {
+            ZstdOutputStream zstd = new ZstdOutputStream(out, level == DEFAULT_LEVEL ? ZSTD_DEFAULT_LEVEL : level);
+            if (workers > 0) {
+                zstd.setWorkers(workers);
+            }
+            return zstd;
+        }
+
+        @Override
+        public InputStream wrapInputStream(InputStream in) throws IOException {
+            return new ZstdInputStream(in);
+        }
+
+        @Override
+        public boolean supportsLevel(int level) {
+            return level == DEFAULT_LEVEL || (level >= -(1 << 17) && level <= 22 && level != 0);
+        }
+    },
+
+    // LZ4 frame format, the default is the fast compressor and levels 1 to 17 pick the high compressor
+    LZ4("lz4", "lz4") {
+        @Override
+        public OutputStream wrapOutputStream(OutputStream out) throws IOException {
+            return wrapOutputStream(out, DEFAULT_LEVEL);
+        }
+
+        @Override
+        public OutputStream wrapOutputStream(OutputStream out, int level) throws IOException {
+            LZ4Factory factory = LZ4Factory.fastestInstance();
+            return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB, -1L,
+                    level == DEFAULT_LEVEL ? factory.fastCompressor() : factory.highCompressor(level),
+                    XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+        }
+
+        @Override
+        public InputStream wrapInputStream(InputStream in) throws IOException {
+            return new LZ4FrameInputStream(in);
+        }
+
+        @Override
+        public boolean supportsLevel(int level) {
+            return level == DEFAULT_LEVEL || (level >= 1 && level <= 17);
+        }
     };
 
+    // Lets the codec pick its own level
+    public static final int DEFAULT_LEVEL = Integer.MIN_VALUE;
+
     // Add Any other Compression type
     // The current design is made upon the assumption that compression types support input/output streams.
 
@@ -61,18 +139,30 @@ public enum CompressionType {
 
     public static CompressionType getCompressionType(String name) {
         name = name.toLowerCase();
-        if (name.equals(NONE.name) || name.equals(NONE.extension)) {
+        for (CompressionType type : values()) {
+            if (name.equals(type.name) || name.equals(type.extension)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("""
+                The Asked Compression Type Is Unknown/Unsupported
+                Currently Supported Types - GZip, Snappy, Zstd, LZ4
+                """);
+    }
+
+    // Object names look like <partition>_<start>_<end>[.<format>][.<compression>]
+    public static CompressionType fromFileName(String fileName) {
+        int i = fileName.lastIndexOf('.');
+        if (i < 0) {
             return NONE;
-        } else if (name.equals(GZIP.name) || name.equals(GZIP.extension)) {
-            return GZIP;
-        } else if (name.equals(SNAPPY.name) || name.equals(SNAPPY.extension)) {
-            return SNAPPY;
-        } else {
-            throw new IllegalArgumentException("""
-                    The Asked Compression Type Is Unknown/Unsupported
-                    Currently Supported Types - GZip, Snappy
-                    """);
         }
+        String extension = fileName.substring(i + 1).toLowerCase();
+        for (CompressionType type : values()) {
+            if (!type.extension.equals("") && type.extension.equals(extension)) {
+                return type;
+            }
+        }
+        return NONE;
     }
 
     CompressionType(String _name, String _extension) {
@@ -88,7 +178,16 @@ public enum CompressionType {
         return wrapOutputStream(out);
     }
 
+    public OutputStream wrapOutputStream(OutputStream out, int level, int workers) throws IOException {
+        return wrapOutputStream(out, level);
+    }
+
     public InputStream wrapInputStream(InputStream in) throws IOException {
         return in;
     }
+
+    // Codecs without levels accept the default only
+    public boolean supportsLevel(int level) {
+        return level == DEFAULT_LEVEL;
+    }
 }
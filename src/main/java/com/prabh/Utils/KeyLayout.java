@@ -0,0 +1,134 @@
+package com.prabh.Utils;
+
+import org.apache.kafka.common.utils.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+// Where a batch lands in the bucket, from its topic, partition and first record timestamp
+// The archiver and the fetcher must use the same layout for a topic
+public enum KeyLayout {
+    // topics/<topic>/<year>/<month>/<day>/<hour>/<minute>/ in the JVM's time zone
+    LEGACY("legacy") {
+        private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("uuuu/M/d/H/m/")
+                .withZone(ZoneId.systemDefault());
+
+        private final DateTimeFormatter hourFormatter = DateTimeFormatter.ofPattern("uuuu/M/d/H/")
+                .withZone(ZoneId.systemDefault());
+
+        @Override
+        public String prefix(String topic, int partition, long timestampMillis) {
+            return topicRoot(topic) + formatter.format(Instant.ofEpochMilli(timestampMillis));
+        }
+
+        // Hours of the JVM's time zone, an hour repeated when clocks go back is listed once
+        @Override
+        public List<String> listPrefixes(String topic, long fromMillis, long toMillis) {
+            List<String> prefixes = new ArrayList<>();
+            ZonedDateTime end = Instant.ofEpochMilli(toMillis).atZone(ZoneId.systemDefault());
+            for (ZonedDateTime hour = Instant.ofEpochMilli(fromMillis).atZone(ZoneId.systemDefault())
+                    .truncatedTo(ChronoUnit.HOURS); !hour.isAfter(end); hour = hour.plusHours(1)) {
+                String prefix = topicRoot(topic) + hourFormatter.format(hour);
+                if (!prefixes.contains(prefix)) {
+                    prefixes.add(prefix);
+                }
+            }
+            return prefixes;
+        }
+    },
+
+    // topics/<topic>/dt=<yyyy-MM-dd>/hr=<HH>/ in UTC, readable as hive partitions
+    HIVE("hive") {
+        @Override
+        public String prefix(String topic, int partition, long timestampMillis) {
+            return topicRoot(topic) + HOUR_FORMATTER.format(Instant.ofEpochMilli(timestampMillis));
+        }
+
+        @Override
+        public List<String> listPrefixes(String topic, long fromMillis, long toMillis) {
+            List<String> prefixes = new ArrayList<>();
+            for (Instant hour : hours(fromMillis, toMillis)) {
+                prefixes.add(topicRoot(topic) + HOUR_FORMATTER.format(hour));
+            }
+            return prefixes;
+        }
+    },
+
+    // <salt>/topics/<topic>/dt=<yyyy-MM-dd>/hr=<HH>/ where the salt is a hex digit hashed from the topic partition
+    // S3 scales request rates per key prefix, so partitions of a topic no longer share one
+    SALTED_HIVE("salted-hive") {
+        @Override
+        public String prefix(String topic, int partition, long timestampMillis) {
+            return salt(topic, partition) + "/" + HIVE.prefix(topic, partition, timestampMillis);
+        }
+
+        @Override
+        public List<String> listPrefixes(String topic, long fromMillis, long toMillis) {
+            List<String> hourPrefixes = HIVE.listPrefixes(topic, fromMillis, toMillis);
+            List<String> prefixes = new ArrayList<>(hourPrefixes.size() * SALT_BUCKETS);
+            for (int salt = 0; salt < SALT_BUCKETS; salt++) {
+                for (String hourPrefix : hourPrefixes) {
+                    prefixes.add(Integer.toHexString(salt) + "/" + hourPrefix);
+                }
+            }
+            return prefixes;
+        }
+    };
+
+    private static final DateTimeFormatter HOUR_FORMATTER = DateTimeFormatter.ofPattern("'dt='uuuu-MM-dd/'hr='HH/")
+            .withZone(ZoneOffset.UTC);
+    private static final int SALT_BUCKETS = 16;
+    private static final int PACK_PARTITION = -1;
+    public final String name;
+
+    KeyLayout(String _name) {
+        this.name = _name;
+    }
+
+    // Directory of the batch, ends with '/'
+    public abstract String prefix(String topic, int partition, long timestampMillis);
+
+    // Directory of a pack of batches from several partitions of the topic, SALTED_HIVE salts it by the topic alone
+    public String packPrefix(String topic, long timestampMillis) {
+        return prefix(topic, PACK_PARTITION, timestampMillis);
+    }
+
+    // Prefixes that together hold every batch of the topic started between the two timestamps (inclusive)
+    // The fetcher still walks LEGACY minute by minute, its hour prefixes are listed by the compaction
+    public abstract List<String> listPrefixes(String topic, long fromMillis, long toMillis);
+
+    public static String topicRoot(String topic) {
+        return "topics/" + topic + "/";
+    }
+
+    static String salt(String topic, int partition) {
+        byte[] id = (topic + "/" + partition).getBytes(StandardCharsets.UTF_8);
+        return Integer.toHexString(Utils.toPositive(Utils.murmur2(id)) % SALT_BUCKETS);
+    }
+
+    private static List<Instant> hours(long fromMillis, long toMillis) {
+        List<Instant> hours = new ArrayList<>();
+        Instant end = Instant.ofEpochMilli(toMillis);
+        for (Instant hour = Instant.ofEpochMilli(fromMillis).truncatedTo(ChronoUnit.HOURS); !hour.isAfter(end);
+             hour = hour.plus(1, ChronoUnit.HOURS)) {
+            hours.add(hour);
+        }
+        return hours;
+    }
+
+    public static KeyLayout getKeyLayout(String layoutName) {
+        for (KeyLayout layout : values()) {
+            if (layout.name.equalsIgnoreCase(layoutName)) {
+                return layout;
+            }
+        }
+        throw new IllegalArgumentException("Unknown key layout " + layoutName);
+    }
+}
@@ -0,0 +1,235 @@
+package com.prabh.Utils;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Process wide metrics of the pipelines
+// Updates are striped LongAdder increments, so hot paths never contend on a lock,
+// values are only summed when JMX (com.prabh.archiver domain) or the HTTP endpoint (Prometheus text) reads them
+public final class Metrics {
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+    private static final String JMX_DOMAIN = "com.prabh.archiver";
+    private static final ConcurrentSkipListMap<String, Metric> registry = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    private interface Metric {
+        String help();
+
+        void scrape(String name, StringBuilder out);
+    }
+
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    public interface GaugeMBean {
+        long getValue();
+    }
+
+    public interface HistogramMBean {
+        long getCount();
+
+        long getSum();
+
+        long getMax();
+
+        double getMean();
+    }
+
+    public static final class Counter implements Metric, CounterMBean {
+        private final String help;
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String _help) {
+            this.help = _help;
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+        @Override
+        public void scrape(String name, StringBuilder out) {
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(getCount()).append('\n');
+        }
+    }
+
+    public static final class Gauge implements Metric, GaugeMBean {
+        private final String help;
+        private final LongSupplier value;
+
+        private Gauge(String _help, LongSupplier _value) {
+            this.help = _help;
+            this.value = _value;
+        }
+
+        @Override
+        public long getValue() {
+            return value.getAsLong();
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+        @Override
+        public void scrape(String name, StringBuilder out) {
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(getValue()).append('\n');
+        }
+    }
+
+    // Power of two buckets : bucket i counts values in (2^(i-1), 2^i], the last one everything above
+    public static final class Histogram implements Metric, HistogramMBean {
+        private static final int BUCKETS = 32;
+        private final String help;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram(String _help) {
+            this.help = _help;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(long value) {
+            value = Math.max(value, 0);
+            int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+            buckets[Math.min(bucket, BUCKETS)].increment();
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getSum() {
+            return sum.sum();
+        }
+
+        @Override
+        public long getMax() {
+            return max.get();
+        }
+
+        @Override
+        public double getMean() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) getSum() / n;
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+        @Override
+        public void scrape(String name, StringBuilder out) {
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{le=\"").append(1L << i).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[BUCKETS].sum();
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(getSum()).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    public static Counter counter(String name, String help) {
+        return (Counter) registry.computeIfAbsent(name, n -> register(n, "Counter", new Counter(help), CounterMBean.class));
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return (Histogram) registry.computeIfAbsent(name, n -> register(n, "Histogram", new Histogram(help), HistogramMBean.class));
+    }
+
+    // A later registration under the same name replaces the earlier one, e.g. when a client is rebuilt
+    public static void gauge(String name, String help, LongSupplier value) {
+        Gauge gauge = new Gauge(help, value);
+        registry.put(name, gauge);
+        register(name, "Gauge", gauge, GaugeMBean.class);
+    }
+
+    private static <T extends Metric> T register(String name, String type, T metric, Class<? super T> mbeanInterface) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            @SuppressWarnings("unchecked")
+            Class<T> iface = (Class<T>) mbeanInterface;
+            server.registerMBean(new StandardMBean(metric, iface), objectName);
+        } catch (JMException e) {
+            logger.error("Metric {} is not exported over JMX : {}", name, e.getMessage());
+        }
+        return metric;
+    }
+
+    // Prometheus text exposition format
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Metric> entry : registry.entrySet()) {
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(entry.getValue().help()).append('\n');
+            entry.getValue().scrape(entry.getKey(), out);
+        }
+        return out.toString();
+    }
+
+    // Serves scrape() on http://<host>:<port>/metrics
+    public static HttpServer serveHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        logger.info("Serving metrics on port {}", server.getAddress().getPort());
+        return server;
+    }
+}
@@ -0,0 +1,157 @@
+package com.prabh.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+// Splits the stream into blocks that are compressed independently on a shared pool (pigz style)
+// Each block is a complete gzip member / zstd frame / lz4 frame / snappy stream, and all of these
+// decoders read concatenated blocks as one stream, so the output stays readable by wrapInputStream
+// Blocks are written out in the order they were started
+public class ParallelCompressionOutputStream extends OutputStream {
+    private static final ForkJoinPool compressionPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final OutputStream out;
+    private final CompressionType type;
+    private final int level;
+    private final int blockSizeBytes;
+    private final int maxPendingBlocks;
+    private final ArrayDeque<CompletableFuture<ByteArrayOutputStream>> pendingBlocks = new ArrayDeque<>();
+    // Position of every block written so far in the compressed output
+    private final List<Long> blockPositions = new ArrayList<>();
+    private long position = 0;
+    private byte[] block;
+    private int count = 0;
+    private boolean closed = false;
+
+    public ParallelCompressionOutputStream(OutputStream _out, CompressionType _type, int _level, int _blockSizeBytes) {
+        this.out = _out;
+        this.type = _type;
+        this.level = _level;
+        this.blockSizeBytes = _blockSizeBytes;
+        // keeps every pool thread busy without holding a whole batch in memory
+        this.maxPendingBlocks = compressionPool.getParallelism() + 1;
+        this.block = new byte[_blockSizeBytes];
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > block.length) {
+            // a block only ends between records, a record larger than the block grows it
+            block = Arrays.copyOf(block, Math.max(block.length * 2, count + extra));
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        ensureCapacity(1);
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        ensureCapacity(len);
+        System.arraycopy(b, off, block, count, len);
+        count += len;
+    }
+
+    // Called between records, so that a block never splits one
+    public boolean endBlockIfFull() throws IOException {
+        if (count >= blockSizeBytes) {
+            endBlock();
+            return true;
+        }
+        return false;
+    }
+
+    public void endBlock() throws IOException {
+        ensureOpen();
+        if (count == 0) {
+            return;
+        }
+        byte[] raw = block;
+        int length = count;
+        block = new byte[blockSizeBytes];
+        count = 0;
+
+        pendingBlocks.add(CompletableFuture.supplyAsync(() -> compress(raw, length), compressionPool));
+        while (pendingBlocks.size() >= maxPendingBlocks || (!pendingBlocks.isEmpty() && pendingBlocks.peek().isDone())) {
+            writeOldestBlock();
+        }
+    }
+
+    private ByteArrayOutputStream compress(byte[] raw, int length) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        try (OutputStream codec = type.wrapOutputStream(compressed, level)) {
+            codec.write(raw, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed;
+    }
+
+    private void writeOldestBlock() throws IOException {
+        try {
+            ByteArrayOutputStream compressed = pendingBlocks.poll().join();
+            blockPositions.add(position);
+            position += compressed.size();
+            compressed.writeTo(out);
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public List<Long> blockPositions() {
+        return blockPositions;
+    }
+
+    // Compressed bytes written so far
+    public long size() {
+        return position;
+    }
+
+    // Only what has been compressed so far can be flushed, the open block stays buffered
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pendingBlocks.isEmpty() && pendingBlocks.peek().isDone()) {
+            writeOldestBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            endBlock();
+            while (!pendingBlocks.isEmpty()) {
+                writeOldestBlock();
+            }
+        } finally {
+            closed = true;
+            block = null;
+            out.close();
+        }
+    }
+}
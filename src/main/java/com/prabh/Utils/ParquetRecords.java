@@ -0,0 +1,314 @@
+package com.prabh.Utils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.api.ReadSupport;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.*;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.MessageTypeParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Parquet encoding of archived records, one row per record
+// The file is written straight to the batch stream, reads need the footer so the object is buffered in memory
+final class ParquetRecords {
+    static final MessageType SCHEMA = MessageTypeParser.parseMessageType("""
+            message kafka_record {
+              required int64 offset;
+              optional int64 timestamp (TIMESTAMP(MILLIS,true));
+              optional binary key;
+              optional binary value;
+              optional group headers (LIST) {
+                repeated group list {
+                  required group element {
+                    required binary key (STRING);
+                    optional binary value;
+                  }
+                }
+              }
+            }
+            """);
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    private ParquetRecords() {
+    }
+
+    private record Row(long offset, long timestamp, byte[] key, byte[] value, Iterable<Header> headers) {
+    }
+
+    static CompressionCodecName codecOf(CompressionType type) {
+        return switch (type) {
+            case NONE -> CompressionCodecName.UNCOMPRESSED;
+            case GZIP -> CompressionCodecName.GZIP;
+            case SNAPPY -> CompressionCodecName.SNAPPY;
+            case ZSTD -> CompressionCodecName.ZSTD;
+            case LZ4 -> CompressionCodecName.LZ4_RAW;
+        };
+    }
+
+    static ArchiveFormat.RecordWriter newWriter(OutputStream out, CompressionType compression, int level,
+                                                long rowGroupSizeBytes) throws IOException {
+        RowWriterBuilder builder = new RowWriterBuilder(new StreamOutputFile(out))
+                .withCompressionCodec(codecOf(compression))
+                .withRowGroupSize(rowGroupSizeBytes)
+                .withDictionaryEncoding(true);
+        if (compression == CompressionType.ZSTD && level != CompressionType.DEFAULT_LEVEL) {
+            builder.config("parquet.compression.codec.zstd.level", String.valueOf(level));
+        }
+        ParquetWriter<Row> writer = builder.build();
+
+        return new ArchiveFormat.RecordWriter() {
+            @Override
+            public void write(long offset, long timestamp, byte[] key, byte[] value, Iterable<Header> headers) throws IOException {
+                writer.write(new Row(offset, timestamp, key, value, headers));
+            }
+
+            // Flushes the last row group and the footer
+            @Override
+            public void finish() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    static ArchiveFormat.RecordReader newReader(InputStream in) throws IOException {
+        byte[] file;
+        try (in) {
+            file = in.readAllBytes();
+        }
+        ParquetReader<Group> reader = new ParquetReader.Builder<Group>(new BytesInputFile(file)) {
+            @Override
+            protected ReadSupport<Group> getReadSupport() {
+                return new GroupReadSupport();
+            }
+        }.build();
+
+        return new ArchiveFormat.RecordReader() {
+            @Override
+            public ArchivedRecord next() throws IOException {
+                Group row = reader.read();
+                return row == null ? null : toRecord(row);
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    private static byte[] bytesOrNull(Group group, String field) {
+        return group.getFieldRepetitionCount(field) == 0 ? null : group.getBinary(field, 0).getBytes();
+    }
+
+    private static ArchivedRecord toRecord(Group row) {
+        Long timestamp = row.getFieldRepetitionCount("timestamp") == 0 ? null : row.getLong("timestamp", 0);
+        Header[] headers = NO_HEADERS;
+        if (row.getFieldRepetitionCount("headers") > 0) {
+            Group list = row.getGroup("headers", 0);
+            int n = list.getFieldRepetitionCount("list");
+            headers = new Header[n];
+            for (int i = 0; i < n; i++) {
+                Group element = list.getGroup("list", i).getGroup("element", 0);
+                headers[i] = new RecordHeader(element.getString("key", 0), bytesOrNull(element, "value"));
+            }
+        }
+        return new ArchivedRecord(row.getLong("offset", 0), timestamp, bytesOrNull(row, "key"),
+                bytesOrNull(row, "value"), headers);
+    }
+
+    private static class RowWriteSupport extends WriteSupport<Row> {
+        private RecordConsumer consumer;
+
+        @Override
+        public WriteContext init(Configuration configuration) {
+            return new WriteContext(SCHEMA, Map.of());
+        }
+
+        @Override
+        public void prepareForWrite(RecordConsumer recordConsumer) {
+            this.consumer = recordConsumer;
+        }
+
+        private void binaryField(String name, int index, byte[] value) {
+            if (value == null) return;
+            consumer.startField(name, index);
+            consumer.addBinary(Binary.fromConstantByteArray(value));
+            consumer.endField(name, index);
+        }
+
+        @Override
+        public void write(Row row) {
+            consumer.startMessage();
+            consumer.startField("offset", 0);
+            consumer.addLong(row.offset());
+            consumer.endField("offset", 0);
+            if (row.timestamp() >= 0) {
+                consumer.startField("timestamp", 1);
+                consumer.addLong(row.timestamp());
+                consumer.endField("timestamp", 1);
+            }
+            binaryField("key", 2, row.key());
+            binaryField("value", 3, row.value());
+
+            List<Header> headers = new ArrayList<>();
+            if (row.headers() != null) {
+                row.headers().forEach(headers::add);
+            }
+            if (!headers.isEmpty()) {
+                consumer.startField("headers", 4);
+                consumer.startGroup();
+                consumer.startField("list", 0);
+                for (Header header : headers) {
+                    consumer.startGroup();
+                    consumer.startField("element", 0);
+                    consumer.startGroup();
+                    consumer.startField("key", 0);
+                    consumer.addBinary(Binary.fromString(header.key()));
+                    consumer.endField("key", 0);
+                    binaryField("value", 1, header.value());
+                    consumer.endGroup();
+                    consumer.endField("element", 0);
+                    consumer.endGroup();
+                }
+                consumer.endField("list", 0);
+                consumer.endGroup();
+                consumer.endField("headers", 4);
+            }
+            consumer.endMessage();
+        }
+    }
+
+    private static class RowWriterBuilder extends ParquetWriter.Builder<Row, RowWriterBuilder> {
+        RowWriterBuilder(OutputFile file) {
+            super(file);
+        }
+
+        @Override
+        protected RowWriterBuilder self() {
+            return this;
+        }
+
+        @Override
+        protected WriteSupport<Row> getWriteSupport(Configuration conf) {
+            return new RowWriteSupport();
+        }
+    }
+
+    // Parquet only appends, so the batch stream works as its output file as long as positions are counted
+    // Closing the writer doesn't close the batch stream, the batch seals it afterwards
+    private static class StreamOutputFile implements OutputFile {
+        private final OutputStream out;
+
+        StreamOutputFile(OutputStream _out) {
+            this.out = _out;
+        }
+
+        @Override
+        public PositionOutputStream create(long blockSizeHint) {
+            return new PositionOutputStream() {
+                private long position = 0;
+
+                @Override
+                public long getPos() {
+                    return position;
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    position++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    position += len;
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+
+        @Override
+        public PositionOutputStream createOrOverwrite(long blockSizeHint) {
+            return create(blockSizeHint);
+        }
+
+        @Override
+        public boolean supportsBlockSize() {
+            return false;
+        }
+
+        @Override
+        public long defaultBlockSize() {
+            return 0;
+        }
+    }
+
+    private static class BytesInputFile implements InputFile {
+        private final byte[] file;
+
+        BytesInputFile(byte[] _file) {
+            this.file = _file;
+        }
+
+        @Override
+        public long getLength() {
+            return file.length;
+        }
+
+        @Override
+        public SeekableInputStream newStream() {
+            SeekableBytes bytes = new SeekableBytes(file);
+            return new DelegatingSeekableInputStream(bytes) {
+                @Override
+                public long getPos() {
+                    return bytes.position();
+                }
+
+                @Override
+                public void seek(long newPos) {
+                    bytes.seek(newPos);
+                }
+            };
+        }
+    }
+
+    private static class SeekableBytes extends ByteArrayInputStream {
+        SeekableBytes(byte[] buf) {
+            super(buf);
+        }
+
+        long position() {
+            return pos;
+        }
+
+        void seek(long newPos) {
+            pos = (int) newPos;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.prabh.Utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Buffered stream whose backing array is borrowed from a shared pool and handed back on close,
+// so batches that are opened and sealed all day long don't keep allocating fresh buffers
+public class PooledBufferedOutputStream extends FilterOutputStream {
+    public static final int BUFFER_SIZE_BYTES = 64 * 1024; // 64 KB
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledCount = new AtomicInteger(0);
+
+    private byte[] buf;
+    private int count = 0;
+
+    public PooledBufferedOutputStream(OutputStream out) {
+        super(out);
+        this.buf = borrow();
+    }
+
+    private static byte[] borrow() {
+        byte[] b = pool.poll();
+        if (b == null) {
+            return new byte[BUFFER_SIZE_BYTES];
+        }
+        pooledCount.decrementAndGet();
+        return b;
+    }
+
+    private static void giveBack(byte[] b) {
+        if (pooledCount.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            pool.offer(b);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buf == null) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buf.length) {
+            flushBuffer();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len >= buf.length) {
+            // Large writes skip the buffer altogether
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buf.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buf == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+            out.close();
+        } finally {
+            giveBack(buf);
+            buf = null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.prabh.Utils;
+
+import java.util.concurrent.Semaphore;
+
+// Semaphore whose number of permits can be changed while it is in use
+// Shrinking never takes a permit away from its holder, it only takes effect as permits are released
+public class ResizableSemaphore extends Semaphore {
+    private int limit;
+
+    public ResizableSemaphore(int permits) {
+        super(permits);
+        this.limit = permits;
+    }
+
+    public synchronized void resize(int permits) {
+        int delta = permits - limit;
+        limit = permits;
+        if (delta > 0) {
+            release(delta);
+        } else if (delta < 0) {
+            reducePermits(-delta);
+        }
+    }
+
+    public synchronized int limit() {
+        return limit;
+    }
+
+    // Permits held right now, can briefly exceed the limit after shrinking
+    public int inUse() {
+        return limit() - availablePermits();
+    }
+}
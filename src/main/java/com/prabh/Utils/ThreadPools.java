@@ -0,0 +1,39 @@
+package com.prabh.Utils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+// Fixed pools of platform threads for the blocking I/O of the services
+// The actual resources are guarded by semaphores next to the pools, which is what scaling resizes as well
+public final class ThreadPools {
+
+    private ThreadPools() {
+    }
+
+    // Threads are named <namePrefix><n>
+    public static ThreadFactory threadFactory(String namePrefix) {
+        return new ThreadFactoryBuilder().setNameFormat(namePrefix + "%d").build();
+    }
+
+    // Resizes a pool made by newExecutor
+    public static void resize(ExecutorService executor, int poolSize) {
+        if (executor instanceof ThreadPoolExecutor pool) {
+            // the core size may never exceed the maximum, so the order depends on the direction
+            if (poolSize > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(poolSize);
+                pool.setCorePoolSize(poolSize);
+            } else {
+                pool.setCorePoolSize(poolSize);
+                pool.setMaximumPoolSize(poolSize);
+            }
+        }
+    }
+
+    public static ExecutorService newExecutor(String namePrefix, int poolSize) {
+        return Executors.newFixedThreadPool(poolSize, threadFactory(namePrefix));
+    }
+}
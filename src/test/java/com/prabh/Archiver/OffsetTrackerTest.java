@@ -0,0 +1,75 @@
+package com.prabh.Archiver;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// The committable offset never passes a batch that isn't durable, whatever completes after it
+class OffsetTrackerTest {
+    private static final TopicPartition PARTITION = new TopicPartition("t", 0);
+    private final OffsetTracker tracker = new OffsetTracker();
+
+    private Map<TopicPartition, OffsetAndMetadata> committable() {
+        return tracker.committable(List.of(PARTITION));
+    }
+
+    @Test
+    void nothingIsCommittableBeforeTheFirstDurableBatch() {
+        tracker.watermark(PARTITION).opened(0);
+        assertEquals(Map.of(), committable());
+    }
+
+    @Test
+    void aFailedBatchHoldsBackTheBatchesAfterIt() {
+        OffsetTracker.Watermark watermark = tracker.watermark(PARTITION);
+        watermark.opened(0);
+        watermark.opened(10);
+        watermark.opened(20);
+        watermark.durable(10, 20);
+        watermark.durable(20, 30);
+
+        // the batch at 0 failed, it never becomes durable
+        assertEquals(Map.of(PARTITION, new OffsetAndMetadata(0)), committable());
+        assertEquals(0, watermark.oldestPending());
+    }
+
+    @Test
+    void watermarkRecoversOnceTheBatchIsStoredAgain() {
+        OffsetTracker.Watermark failed = tracker.watermark(PARTITION);
+        failed.opened(0);
+        failed.opened(10);
+        failed.durable(10, 20);
+        assertEquals(0, failed.oldestPending());
+
+        // fetched again from the failed batch
+        tracker.forget(List.of(PARTITION));
+        OffsetTracker.Watermark refetched = tracker.watermark(PARTITION);
+        refetched.opened(0);
+        assertEquals(Map.of(), committable());
+        refetched.durable(0, 10);
+        assertEquals(Map.of(PARTITION, new OffsetAndMetadata(10)), committable());
+        refetched.opened(10);
+        refetched.durable(10, 20);
+        assertEquals(Map.of(PARTITION, new OffsetAndMetadata(20)), committable());
+    }
+
+    @Test
+    void batchesOfAForgottenWatermarkDontMoveTheNextOne() {
+        OffsetTracker.Watermark detached = tracker.watermark(PARTITION);
+        detached.opened(0);
+        detached.opened(10);
+        tracker.forget(List.of(PARTITION));
+
+        OffsetTracker.Watermark current = tracker.watermark(PARTITION);
+        current.opened(0);
+        detached.durable(10, 20);
+        assertEquals(Map.of(), committable());
+        current.durable(0, 5);
+        assertEquals(Map.of(PARTITION, new OffsetAndMetadata(5)), committable());
+    }
+}
@@ -0,0 +1,121 @@
+package com.prabh.Archiver;
+
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.ArchivePack;
+import com.prabh.Utils.BufferArena;
+import com.prabh.Utils.CompressionConfig;
+import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.KeyLayout;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+// Batches are copied into the pack of their prefix and stored together : the flush only hands the pack to the
+// store executor, and the stored object is the batches back to back followed by their section table
+class PackWriterTest {
+    private static final String TOPIC = "t";
+    private static final long FIRST_TIMESTAMP = 1_700_000_000_000L;
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final List<Runnable> stores = new ArrayList<>();
+    private final BufferArena arena = new BufferArena(64 * 1024 * 1024);
+    private S3Client s3Client;
+    private UploadService uploadService;
+
+    @BeforeEach
+    void setUp() {
+        s3Client = mock(S3Client.class);
+        when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class))).thenAnswer(invocation -> {
+            RequestBody body = invocation.getArgument(1);
+            objects.put(((PutObjectRequest) invocation.getArgument(0)).key(),
+                    body.contentStreamProvider().newStream().readAllBytes());
+            return PutObjectResponse.builder().build();
+        });
+        uploadService = new UploadService(s3Client, "bucket", 2, 64 * 1024 * 1024);
+    }
+
+    @AfterEach
+    void tearDown() {
+        uploadService.shutdown();
+    }
+
+    // A sealed TEXT batch of the partition, with records of about valueBytes each
+    private TopicPartitionWriter batch(int partition, int records, int valueBytes) throws IOException {
+        BatchConfig config = new BatchConfig(CompressionConfig.of(CompressionType.NONE), ArchiveFormat.TEXT,
+                BatchConfig.DEFAULT_ROW_GROUP_SIZE_BYTES, RolloverPolicy.DEFAULT, Map.of(), KeyLayout.HIVE, 0);
+        List<ConsumerRecord<byte[], byte[]>> batch = new ArrayList<>();
+        for (long offset = 0; offset < records; offset++) {
+            byte[] value = new byte[valueBytes];
+            Arrays.fill(value, (byte) ('a' + (offset + partition) % 26));
+            batch.add(new ConsumerRecord<>(TOPIC, partition, offset, FIRST_TIMESTAMP + offset,
+                    TimestampType.CREATE_TIME, -1, value.length, null, value, new RecordHeaders(), Optional.empty()));
+        }
+        TopicPartitionWriter writer = new TopicPartitionWriter(batch.get(0), config, config.rollover.initialLimits(),
+                (leader, batchConfig, path) -> new MemoryOutput(arena, uploadService));
+        writer.addToBuffer(batch);
+        writer.close();
+        return writer;
+    }
+
+    private static byte[] bytes(TopicPartitionWriter sealed) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (ByteBuffer view : sealed.getContents()) {
+            ByteBuffer copy = view.duplicate();
+            byte[] chunk = new byte[copy.remaining()];
+            copy.get(chunk);
+            bytes.writeBytes(chunk);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void storesTheDuePacksOnTheStoreExecutor() throws IOException {
+        PackWriter packWriter = new PackWriter(uploadService, stores::add, 0);
+        // large enough for the second batch to run over the first chunk of the pack
+        TopicPartitionWriter first = batch(0, 700, 1000);
+        TopicPartitionWriter second = batch(1, 700, 1000);
+        byte[] firstBytes = bytes(first);
+        byte[] secondBytes = bytes(second);
+        assertEquals(first.getPackPrefix(), second.getPackPrefix());
+
+        CompletableFuture<String> firstStored = packWriter.add(first);
+        CompletableFuture<String> secondStored = packWriter.add(second);
+        packWriter.flushIfDue();
+
+        assertEquals(1, stores.size());
+        verifyNoInteractions(s3Client);
+        assertFalse(firstStored.isDone() || secondStored.isDone());
+
+        stores.forEach(Runnable::run);
+        String key = firstStored.join();
+        assertEquals(key, secondStored.join());
+        assertTrue(key.startsWith(first.getPackPrefix()) && ArchivePack.isPackKey(key), key);
+
+        byte[] pack = objects.get(key);
+        List<ArchivePack.Section> sections = ArchivePack.decodeTable(pack);
+        assertEquals(2, sections.size());
+        assertEquals(first.getFileName(), sections.get(0).name());
+        assertEquals(second.getFileName(), sections.get(1).name());
+        assertArrayEquals(firstBytes, Arrays.copyOfRange(pack, (int) sections.get(0).position(),
+                (int) (sections.get(0).position() + sections.get(0).length())));
+        assertArrayEquals(secondBytes, Arrays.copyOfRange(pack, (int) sections.get(1).position(),
+                (int) (sections.get(1).position() + sections.get(1).length())));
+    }
+}
@@ -0,0 +1,184 @@
+package com.prabh.Archiver;
+
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.ArchivedRecord;
+import com.prabh.Utils.CompressionConfig;
+import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.KeyLayout;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A crashed archiver leaves its batch half written in a spool segment : the records that decode completely are
+// stored in the format and codec the segment was written in, TEXT records without made up timestamps
+class SpoolRecoveryTest {
+    private static final String TOPIC = "t";
+    private static final long FIRST_TIMESTAMP = 1_700_000_000_000L;
+    private static final int RECORDS = 6000;
+    private static final int PER_POLL = 2000;
+    @TempDir
+    Path root;
+
+    // Keeps the bytes of the rebuilt batch in memory
+    private static class CapturingOutput extends BatchOutput {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        long size() {
+            return bytes.size();
+        }
+
+        @Override
+        CompletableFuture<Void> commit(String key) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        CompletableFuture<Void> commitSidecar(String key, byte[] data) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private static BatchConfig config(ArchiveFormat format, CompressionType type) {
+        return new BatchConfig(CompressionConfig.of(type), format, BatchConfig.DEFAULT_ROW_GROUP_SIZE_BYTES,
+                RolloverPolicy.DEFAULT, Map.of(), KeyLayout.HIVE, 0);
+    }
+
+    // Timestamps go back and forth, so the leader's is neither the smallest nor the largest
+    private static long timestamp(long offset) {
+        return FIRST_TIMESTAMP + (offset % 7 == 3 ? -60_000 : offset * 10);
+    }
+
+    private static byte[] value(long offset) {
+        Random random = new Random(offset);
+        StringBuilder value = new StringBuilder("value-" + offset + "-");
+        for (int i = 0; i < 200; i++) {
+            value.append((char) ('a' + random.nextInt(26)));
+        }
+        return value.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Writes the records into a spool and stops without sealing the batch, the way a crash leaves it
+    private void crashWhileWriting(ArchiveFormat format, CompressionType type) {
+        Spool spool = new Spool(root);
+        BatchConfig config = config(format, type);
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        for (long offset = 0; offset < RECORDS; offset++) {
+            byte[] value = value(offset);
+            records.add(new ConsumerRecord<>(TOPIC, 0, offset, timestamp(offset), TimestampType.CREATE_TIME, -1,
+                    value.length, null, value, new RecordHeaders(), Optional.empty()));
+        }
+        TopicPartitionWriter batch = new TopicPartitionWriter(records.get(0), config, config.rollover.initialLimits(),
+                (leader, batchConfig, path) -> new SpoolOutput(spool, spool.acquire(leader, batchConfig.archiveFormat,
+                        batchConfig.compression.type), null));
+        for (int i = 0; i < RECORDS; i += PER_POLL) {
+            batch.addToBuffer(records.subList(i, i + PER_POLL));
+        }
+        spool.close();
+    }
+
+    // Recovers the spool with the given configuration, and returns the sealed batches with their bytes
+    private Map<TopicPartitionWriter, CapturingOutput> recover(BatchConfig current) throws IOException {
+        Map<TopicPartitionWriter, CapturingOutput> outputs = new HashMap<>();
+        List<CapturingOutput> opened = new ArrayList<>();
+        SpoolRecovery recovery = new SpoolRecovery(root, current, (leader, batchConfig, path) -> {
+            CapturingOutput output = new CapturingOutput();
+            opened.add(output);
+            return output;
+        });
+        List<CompletableFuture<Void>> stored = recovery.start(Runnable::run, batch -> {
+            try {
+                batch.close();
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            outputs.put(batch, opened.get(opened.size() - 1));
+            return CompletableFuture.completedFuture(null);
+        });
+        CompletableFuture.allOf(stored.toArray(new CompletableFuture[0])).join();
+        recovery.finish();
+        try (Stream<Path> left = Files.list(root)) {
+            assertEquals(0, left.count(), "the abandoned spool is deleted once recovered");
+        }
+        return outputs;
+    }
+
+    private static List<ArchivedRecord> decode(ArchiveFormat format, CompressionType type, byte[] data)
+            throws IOException {
+        List<ArchivedRecord> records = new ArrayList<>();
+        try (ArchiveFormat.RecordReader reader = format.newReader(type.wrapInputStream(new ByteArrayInputStream(data)))) {
+            ArchivedRecord record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    @Test
+    void rebuildsATextBatchInItsOwnCodecWithoutRecordTimestamps() throws IOException {
+        crashWhileWriting(ArchiveFormat.TEXT, CompressionType.GZIP);
+
+        Map<TopicPartitionWriter, CapturingOutput> recovered = recover(config(ArchiveFormat.BINARY, CompressionType.NONE));
+
+        assertEquals(1, recovered.size());
+        TopicPartitionWriter batch = recovered.keySet().iterator().next();
+        assertTrue(batch.getFileName().endsWith(".gz") && !batch.getFileName().contains(".kbin"), batch.getFileName());
+        List<ArchivedRecord> records = decode(ArchiveFormat.TEXT, CompressionType.GZIP,
+                recovered.get(batch).bytes.toByteArray());
+        assertTrue(records.size() >= PER_POLL && records.size() <= RECORDS, "recovered " + records.size());
+        assertEquals(records.size(), batch.getRecordCount());
+        for (int i = 0; i < records.size(); i++) {
+            assertArrayEquals(value(i), records.get(i).value);
+        }
+
+        assertEquals(-1, batch.getLastTimeStamp());
+        // filed under the leader, listed for the span of every record written before the crash
+        assertEquals(KeyLayout.HIVE.prefix(TOPIC, 0, FIRST_TIMESTAMP) + batch.getFileName(), batch.getKey());
+        assertEquals(FIRST_TIMESTAMP - 60_000, batch.getManifestEntry().minTimestamp());
+        assertEquals(timestamp(RECORDS - 1), batch.getManifestEntry().maxTimestamp());
+    }
+
+    @Test
+    void rebuildsABinaryBatchWithTheTimestampsOfItsRecords() throws IOException {
+        crashWhileWriting(ArchiveFormat.BINARY, CompressionType.NONE);
+
+        Map<TopicPartitionWriter, CapturingOutput> recovered = recover(config(ArchiveFormat.TEXT, CompressionType.GZIP));
+
+        assertEquals(1, recovered.size());
+        TopicPartitionWriter batch = recovered.keySet().iterator().next();
+        assertTrue(batch.getFileName().endsWith(".kbin"), batch.getFileName());
+        List<ArchivedRecord> records = decode(ArchiveFormat.BINARY, CompressionType.NONE,
+                recovered.get(batch).bytes.toByteArray());
+        assertTrue(records.size() >= PER_POLL && records.size() <= RECORDS, "recovered " + records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(i, records.get(i).offset);
+            assertEquals(timestamp(i), records.get(i).timestamp);
+            assertArrayEquals(value(i), records.get(i).value);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.prabh.Archiver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+// Completing a multipart upload : complete under the staging key, copy to the final key, delete the staging key
+// Only an upload that was not completed yet is aborted, after that the staging object is deleted instead
+class UploadServiceTest {
+    private static final String STAGING_KEY = "staging/t/0_0";
+    private static final String KEY = "topics/t/0_0_9.kbin";
+    private static final long GB = 1024L * 1024 * 1024;
+    private S3Client s3Client;
+    private UploadService uploadService;
+
+    private static S3Exception internalError() {
+        return (S3Exception) S3Exception.builder().statusCode(500).message("We encountered an internal error").build();
+    }
+
+    @BeforeEach
+    void setUp() {
+        s3Client = mock(S3Client.class);
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class))).thenAnswer(invocation ->
+                CreateMultipartUploadResponse.builder()
+                        .uploadId("upload-" + ((CreateMultipartUploadRequest) invocation.getArgument(0)).key()).build());
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class))).thenAnswer(invocation ->
+                UploadPartResponse.builder()
+                        .eTag("part-" + ((UploadPartRequest) invocation.getArgument(0)).partNumber()).build());
+        when(s3Client.uploadPartCopy(any(UploadPartCopyRequest.class))).thenAnswer(invocation ->
+                UploadPartCopyResponse.builder().copyPartResult(CopyPartResult.builder()
+                        .eTag("copy-" + ((UploadPartCopyRequest) invocation.getArgument(0)).partNumber()).build())
+                        .build());
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenReturn(CompleteMultipartUploadResponse.builder().build());
+        when(s3Client.copyObject(any(CopyObjectRequest.class))).thenReturn(CopyObjectResponse.builder().build());
+        when(s3Client.deleteObject(any(DeleteObjectRequest.class))).thenReturn(DeleteObjectResponse.builder().build());
+        uploadService = new UploadService(s3Client, "bucket", 4, 64 * 1024 * 1024);
+    }
+
+    @AfterEach
+    void tearDown() {
+        uploadService.shutdown();
+    }
+
+    private CompletableFuture<Void> upload(long length) {
+        CompletableFuture<String> uploadId = uploadService.createMultipartUpload(STAGING_KEY);
+        byte[] part = new byte[1024];
+        List<CompletableFuture<CompletedPart>> parts = List.of(
+                uploadService.uploadPart(STAGING_KEY, uploadId, 1, part, part.length),
+                uploadService.uploadPart(STAGING_KEY, uploadId, 2, part, part.length));
+        return uploadService.completeMultipartUpload(STAGING_KEY, uploadId, parts, KEY, length);
+    }
+
+    @Test
+    void retriesEveryStepOnItsOwn() throws Exception {
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenThrow(internalError())
+                .thenReturn(CompleteMultipartUploadResponse.builder().build());
+        when(s3Client.copyObject(any(CopyObjectRequest.class)))
+                .thenThrow(internalError())
+                .thenReturn(CopyObjectResponse.builder().build());
+        when(s3Client.deleteObject(any(DeleteObjectRequest.class)))
+                .thenThrow(internalError())
+                .thenReturn(DeleteObjectResponse.builder().build());
+
+        upload(2048).get(1, TimeUnit.MINUTES);
+
+        verify(s3Client, times(2)).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+        verify(s3Client, times(2)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        verify(s3Client, times(2)).copyObject(any(CopyObjectRequest.class));
+        verify(s3Client, times(2)).deleteObject(any(DeleteObjectRequest.class));
+        verify(s3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    void completionWhoseResponseWasLostSucceeds() throws Exception {
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenThrow(internalError())
+                .thenThrow(NoSuchUploadException.builder().statusCode(404).message("upload is gone").build());
+        when(s3Client.headObject(any(HeadObjectRequest.class))).thenReturn(HeadObjectResponse.builder().build());
+
+        upload(2048).get(1, TimeUnit.MINUTES);
+
+        verify(s3Client).copyObject(any(CopyObjectRequest.class));
+        verify(s3Client).deleteObject(any(DeleteObjectRequest.class));
+    }
+
+    @Test
+    void failsWhenTheUploadIsGoneWithoutObject() {
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenThrow(NoSuchUploadException.builder().statusCode(404).message("upload is gone").build());
+        when(s3Client.headObject(any(HeadObjectRequest.class)))
+                .thenThrow(NoSuchKeyException.builder().statusCode(404).message("no such key").build());
+
+        assertThrows(ExecutionException.class, () -> upload(2048).get(1, TimeUnit.MINUTES));
+        verify(s3Client, never()).copyObject(any(CopyObjectRequest.class));
+        verify(s3Client, never()).deleteObject(any(DeleteObjectRequest.class));
+    }
+
+    @Test
+    void failedCopyDeletesTheCompletedStagingObject() {
+        when(s3Client.copyObject(any(CopyObjectRequest.class))).thenThrow(internalError());
+
+        assertThrows(ExecutionException.class, () -> upload(2048).get(1, TimeUnit.MINUTES));
+        ArgumentCaptor<DeleteObjectRequest> deleted = ArgumentCaptor.forClass(DeleteObjectRequest.class);
+        verify(s3Client, timeout(5000)).deleteObject(deleted.capture());
+        assertEquals(STAGING_KEY, deleted.getValue().key());
+        verify(s3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    void stagingObjectLeftBehindDoesntFailTheUpload() throws Exception {
+        when(s3Client.deleteObject(any(DeleteObjectRequest.class))).thenThrow(internalError());
+
+        upload(2048).get(1, TimeUnit.MINUTES);
+
+        verify(s3Client).copyObject(any(CopyObjectRequest.class));
+        verify(s3Client, times(3)).deleteObject(any(DeleteObjectRequest.class));
+        verify(s3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    void copiesObjectsAboveFiveGbRangeByRange() throws Exception {
+        long length = 6 * GB + 1;
+        upload(length).get(1, TimeUnit.MINUTES);
+
+        verify(s3Client, never()).copyObject(any(CopyObjectRequest.class));
+        ArgumentCaptor<UploadPartCopyRequest> copies = ArgumentCaptor.forClass(UploadPartCopyRequest.class);
+        verify(s3Client, atLeast(2)).uploadPartCopy(copies.capture());
+        List<UploadPartCopyRequest> requests = copies.getAllValues().stream()
+                .sorted((a, b) -> Integer.compare(a.partNumber(), b.partNumber())).toList();
+        long next = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            UploadPartCopyRequest request = requests.get(i);
+            assertEquals(i + 1, request.partNumber());
+            assertEquals(STAGING_KEY, request.sourceKey());
+            assertEquals(KEY, request.destinationKey());
+            assertEquals("upload-" + KEY, request.uploadId());
+            String[] range = request.copySourceRange().substring("bytes=".length()).split("-");
+            assertEquals(next, Long.parseLong(range[0]));
+            long last = Long.parseLong(range[1]);
+            assertTrue(last - next + 1 <= 5 * GB);
+            next = last + 1;
+        }
+        assertEquals(length, next);
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> completed =
+                ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client, times(2)).completeMultipartUpload(completed.capture());
+        CompleteMultipartUploadRequest copy = completed.getAllValues().stream()
+                .filter(request -> request.key().equals(KEY)).findFirst().orElseThrow();
+        assertEquals(requests.size(), copy.multipartUpload().parts().size());
+        verify(s3Client).deleteObject(any(DeleteObjectRequest.class));
+    }
+
+    @Test
+    void abortsTheCopyWhenAPartFails() {
+        when(s3Client.uploadPartCopy(any(UploadPartCopyRequest.class))).thenThrow(internalError());
+
+        assertThrows(ExecutionException.class, () -> upload(6 * GB).get(1, TimeUnit.MINUTES));
+        // the staging upload is already completed, its object is deleted rather than its upload aborted
+        ArgumentCaptor<AbortMultipartUploadRequest> aborted = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(s3Client, timeout(5000)).abortMultipartUpload(aborted.capture());
+        assertEquals(KEY, aborted.getValue().key());
+        ArgumentCaptor<DeleteObjectRequest> deleted = ArgumentCaptor.forClass(DeleteObjectRequest.class);
+        verify(s3Client, timeout(5000)).deleteObject(deleted.capture());
+        assertEquals(STAGING_KEY, deleted.getValue().key());
+    }
+
+    @Test
+    void discardedOutputAbortsItsUpload() throws Exception {
+        MultipartUploadOutput output = new MultipartUploadOutput(uploadService, STAGING_KEY, 0);
+        output.write(new byte[MultipartUploadOutput.MIN_PART_SIZE_BYTES + 1024]);
+        output.close();
+        output.discard();
+
+        ArgumentCaptor<AbortMultipartUploadRequest> aborted = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(s3Client, timeout(5000)).abortMultipartUpload(aborted.capture());
+        assertEquals("upload-" + STAGING_KEY, aborted.getValue().uploadId());
+        verify(s3Client, times(2)).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+}
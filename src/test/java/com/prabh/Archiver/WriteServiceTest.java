@@ -0,0 +1,156 @@
+package com.prabh.Archiver;
+
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.CompressionConfig;
+import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.KeyLayout;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+// Partition pipelines on an in memory sink, against an S3 stand-in that can fail chosen batches
+class WriteServiceTest {
+    private static final TopicPartition PARTITION = new TopicPartition("t", 0);
+    private static final long FIRST_TIMESTAMP = 1_700_000_000_000L;
+    private static final long WAIT_MS = 30_000;
+    // batches are keyed <partition>_<start>_<end>
+    private final Set<String> failingBatches = Collections.synchronizedSet(new HashSet<>());
+    private final Set<String> storedBatches = Collections.synchronizedSet(new HashSet<>());
+    private UploadService uploadService;
+    private WriteService writeService;
+
+    @BeforeEach
+    void setUp() {
+        S3Client s3Client = mock(S3Client.class);
+        when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class))).thenAnswer(invocation -> {
+            String key = ((PutObjectRequest) invocation.getArgument(0)).key();
+            String batch = key.substring(key.lastIndexOf('/') + 1);
+            if (failingBatches.contains(batch)) {
+                throw S3Exception.builder().statusCode(500).message("We encountered an internal error").build();
+            }
+            storedBatches.add(batch);
+            return PutObjectResponse.builder().build();
+        });
+        uploadService = new UploadService(s3Client, "bucket", 4, 64 * 1024 * 1024);
+        BatchConfig config = new BatchConfig(CompressionConfig.of(CompressionType.NONE), ArchiveFormat.TEXT,
+                8 * 1024 * 1024, RolloverPolicy.fixed(1024 * 1024, 10, 60_000), Map.of(), KeyLayout.HIVE, 0);
+        writeService = new WriteService(2, config, SinkMode.IN_MEMORY, 0, 64 * 1024 * 1024, uploadService, false,
+                0, 0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writeService.shutdown();
+        uploadService.shutdown();
+    }
+
+    static ConsumerRecord<byte[], byte[]> record(long offset) {
+        return record(offset, ("record " + offset).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static ConsumerRecord<byte[], byte[]> record(long offset, byte[] value) {
+        return new ConsumerRecord<>(PARTITION.topic(), PARTITION.partition(), offset, FIRST_TIMESTAMP + offset,
+                TimestampType.CREATE_TIME, 0, value.length, null, value, new RecordHeaders(), Optional.empty());
+    }
+
+    static List<ConsumerRecord<byte[], byte[]>> records(long from, long to) {
+        List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        for (long offset = from; offset < to; offset++) {
+            records.add(record(offset));
+        }
+        return records;
+    }
+
+    static <T> T await(Supplier<T> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            T value = condition.get();
+            if (value != null) {
+                return value;
+            }
+            Thread.sleep(20);
+        }
+        return fail("timed out");
+    }
+
+    private OffsetAndMetadata committable() {
+        return writeService.committableOffsets(List.of(PARTITION)).get(PARTITION);
+    }
+
+    @Test
+    void committableOffsetFollowsDurableBatches() throws InterruptedException {
+        assertTrue(writeService.submit(PARTITION, records(0, 25)));
+        await(() -> committable() != null && committable().offset() == 20 ? true : null);
+        assertEquals(Set.of("0_0_9", "0_10_19"), storedBatches);
+    }
+
+    @Test
+    void failedStoreRewindsThePartitionAndTheWatermarkRecovers() throws InterruptedException {
+        failingBatches.add("0_0_9");
+        writeService.submit(PARTITION, records(0, 25));
+
+        // the batch after it is stored, the watermark stays at the failed one until it is fetched again
+        Map<TopicPartition, Long> rewinds = await(() -> {
+            Map<TopicPartition, Long> failed = writeService.rewindFailedPartitions(List.of(PARTITION));
+            assertTrue(committable() == null || committable().offset() == 0);
+            return failed.isEmpty() ? null : failed;
+        });
+        assertEquals(Map.of(PARTITION, 0L), rewinds);
+        assertTrue(storedBatches.contains("0_10_19"));
+        assertNull(committable());
+
+        failingBatches.clear();
+        writeService.submit(PARTITION, records(0, 25));
+        await(() -> committable() != null && committable().offset() == 20 ? true : null);
+        assertTrue(storedBatches.contains("0_0_9"));
+        assertEquals(Map.of(), writeService.rewindFailedPartitions(List.of(PARTITION)));
+    }
+
+    @Test
+    void aWriteThatThrowsReturnsItsCreditAndRewinds() throws InterruptedException {
+        List<ConsumerRecord<byte[], byte[]>> chunk = new ArrayList<>();
+        for (long offset = 100; offset < 105; offset++) {
+            chunk.add(record(offset, new byte[1024 * 1024]));
+        }
+        ConsumerRecord<byte[], byte[]> corrupt = spy(chunk.get(2));
+        doThrow(new IllegalStateException("corrupt record")).when(corrupt).timestamp();
+        chunk.set(2, corrupt);
+
+        assertFalse(writeService.submit(PARTITION, chunk), "5 MB is more than the partition's credit");
+        // the writer failed on the chunk, the partition must not stay paused behind it
+        await(() -> writeService.resumable(List.of(PARTITION)).isEmpty() ? null : true);
+        Map<TopicPartition, Long> rewinds = await(() -> {
+            Map<TopicPartition, Long> failed = writeService.rewindFailedPartitions(List.of(PARTITION));
+            return failed.isEmpty() ? null : failed;
+        });
+        assertEquals(Map.of(PARTITION, 100L), rewinds);
+    }
+
+    @Test
+    void releasedPartitionsAreNotRewound() throws InterruptedException {
+        failingBatches.add("0_0_9");
+        writeService.submit(PARTITION, records(0, 25));
+        Map<TopicPartition, OffsetAndMetadata> released = writeService.drainPartitions(List.of(PARTITION));
+
+        assertTrue(released.isEmpty() || released.get(PARTITION).offset() == 0);
+        assertEquals(Map.of(), writeService.rewindFailedPartitions(List.of(PARTITION)));
+    }
+}
@@ -0,0 +1,278 @@
+package com.prabh.Fetcher;
+
+import com.prabh.Utils.ArchiveFormat;
+import com.prabh.Utils.ArchiveManifest;
+import com.prabh.Utils.ArchivedRecord;
+import com.prabh.Utils.BatchIndex;
+import com.prabh.Utils.CompressionType;
+import com.prabh.Utils.KeyLayout;
+import com.prabh.Utils.Pair;
+import com.prabh.Utils.ParallelCompressionOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+// Ranged reads planned from the .idx sidecar : only the blocks overlapping the window are fetched,
+// and the ranges put back together decode like a smaller batch holding every record of the window
+// Fetches planned from manifests only read the manifests of the range's hours
+class DownloadServiceTest {
+    private static final String BUCKET = "bucket";
+    private static final String TOPIC = "t";
+    private static final int RECORDS = 5000;
+    private static final int BLOCK_BYTES = 4 * 1024;
+    private static final long FIRST_TIMESTAMP = 1_700_000_000_000L;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+    private final Map<String, byte[]> objects = new HashMap<>();
+    private final List<String> rangesRequested = new ArrayList<>();
+    private final String prefix = KeyLayout.HIVE.prefix(TOPIC, 0, FIRST_TIMESTAMP);
+    private final String key = prefix + "0_0_" + (RECORDS - 1) + ".kbin.gz";
+    private S3Client s3Client;
+    private ProducerService producerService;
+    private FilePaths filePaths;
+    private DownloadService downloadService;
+
+    private static long timestamp(long offset) {
+        return FIRST_TIMESTAMP + offset * 100;
+    }
+
+    // A batch written the way the archiver writes an indexed one, returns its index
+    private BatchIndex storeBatch(String batchKey, CompressionType type) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelCompressionOutputStream out = new ParallelCompressionOutputStream(compressed, type,
+                CompressionType.DEFAULT_LEVEL, BLOCK_BYTES);
+        ArchiveFormat.RecordWriter writer = ArchiveFormat.BINARY.newWriter(out);
+        BatchIndex.Builder index = new BatchIndex.Builder();
+        Random random = new Random(42);
+        for (long offset = 0; offset < RECORDS; offset++) {
+            byte[] value = new byte[50 + random.nextInt(200)];
+            random.nextBytes(value);
+            writer.write(offset, timestamp(offset), null, value, List.of());
+            index.add(offset, timestamp(offset));
+            if (out.endBlockIfFull()) {
+                index.endBlock();
+            }
+        }
+        writer.finish();
+        out.close();
+        objects.put(batchKey, compressed.toByteArray());
+        BatchIndex built = index.build(out.blockPositions(), out.size());
+        objects.put(batchKey + BatchIndex.EXTENSION, built.toBytes());
+        return built;
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        s3Client = mock(S3Client.class);
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+            ListObjectsV2Request request = invocation.getArgument(0);
+            List<S3Object> contents = objects.keySet().stream().filter(k -> k.startsWith(request.prefix()))
+                    .filter(k -> request.startAfter() == null || k.compareTo(request.startAfter()) > 0).sorted()
+                    .map(k -> S3Object.builder().key(k).size((long) objects.get(k).length).build()).toList();
+            return ListObjectsV2Response.builder().contents(contents).isTruncated(false).build();
+        });
+        when(s3Client.getObject(any(GetObjectRequest.class), any(ResponseTransformer.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            ResponseTransformer<GetObjectResponse, ?> transformer = invocation.getArgument(1);
+            byte[] data = objects.get(request.key());
+            if (data == null) {
+                throw NoSuchKeyException.builder().message(request.key()).build();
+            }
+            if (request.range() != null) {
+                rangesRequested.add(request.range());
+                String[] bounds = request.range().substring("bytes=".length()).split("-");
+                data = Arrays.copyOfRange(data, Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]) + 1);
+            }
+            return transformer.transform(GetObjectResponse.builder().contentLength((long) data.length).build(),
+                    AbortableInputStream.create(new ByteArrayInputStream(data)));
+        });
+        producerService = mock(ProducerService.class);
+        filePaths = new FilePaths("test", UUID.randomUUID().toString());
+        assertTrue(new File(filePaths.DownloadDirectory).mkdirs());
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (downloadService != null) {
+            downloadService.shutdown();
+        }
+        deleteRecursively(new File(filePaths.localCacheDirectory));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private DownloadService.DownloadWorker plan(String batchKey, long fromMillis, long toMillis) {
+        downloadService = new DownloadService(s3Client, BUCKET, TOPIC,
+                new FetchRequestRange.StartTimestampBuilder(fromMillis).build(),
+                new FetchRequestRange.EndTimestampBuilder(toMillis).build(), producerService, true, filePaths, 1,
+                KeyLayout.HIVE, false);
+        downloadService.progressListener = mock(ProgressListener.class);
+        assertEquals(1, downloadService.queryLayout(List.of(prefix)));
+        return downloadService.new DownloadWorker(BUCKET, batchKey, filePaths.DownloadDirectory + "/0_0");
+    }
+
+    private static List<ArchivedRecord> decode(CompressionType type, byte[] data) throws IOException {
+        List<ArchivedRecord> records = new ArrayList<>();
+        try (ArchiveFormat.RecordReader reader = ArchiveFormat.BINARY.newReader(
+                type.wrapInputStream(new ByteArrayInputStream(data)))) {
+            ArchivedRecord record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    @ParameterizedTest
+    @EnumSource(CompressionType.class)
+    void fetchesOnlyTheBlocksOfTheWindow(CompressionType type) throws IOException {
+        String batchKey = prefix + "0_0_" + (RECORDS - 1) + ".kbin"
+                + (type.extension.isEmpty() ? "" : "." + type.extension);
+        BatchIndex index = storeBatch(batchKey, type);
+        assertTrue(index.blocks.size() > 4, "expected several blocks");
+        long fromOffset = 2000;
+        long toOffset = 2500;
+        DownloadService.DownloadWorker worker = plan(batchKey, timestamp(fromOffset), timestamp(toOffset));
+
+        List<Pair<Long, Long>> ranges = worker.plannedRanges();
+        assertNotNull(ranges);
+        assertEquals(1, ranges.size(), "overlapping blocks are adjacent, they make a single range");
+        assertTrue(ranges.get(0).second - ranges.get(0).first < index.objectLength / 2);
+
+        worker.run();
+        ArgumentCaptor<byte[]> fetched = ArgumentCaptor.forClass(byte[].class);
+        verify(producerService).submit(eq(batchKey), anyString(), fetched.capture());
+        assertEquals(List.of("bytes=" + ranges.get(0).first + "-" + (ranges.get(0).second - 1)), rangesRequested);
+
+        List<ArchivedRecord> records = decode(type, fetched.getValue());
+        assertTrue(records.size() < RECORDS);
+        assertTrue(records.get(0).offset <= fromOffset);
+        assertTrue(records.get(records.size() - 1).offset >= toOffset);
+        for (int i = 1; i < records.size(); i++) {
+            assertEquals(records.get(i - 1).offset + 1, records.get(i).offset);
+        }
+        for (ArchivedRecord record : records) {
+            assertEquals(timestamp(record.offset), record.timestamp);
+        }
+    }
+
+    @Test
+    void downloadsTheWholeBatchWhenTheWindowCoversIt() throws IOException {
+        storeBatch(key, CompressionType.GZIP);
+        assertNull(plan(key, FIRST_TIMESTAMP - 60_000, timestamp(RECORDS) + 60_000).plannedRanges());
+    }
+
+    @Test
+    void skipsTheBatchWhenNoBlockOverlaps() throws IOException {
+        storeBatch(key, CompressionType.GZIP);
+        List<Pair<Long, Long>> ranges = plan(key, timestamp(RECORDS) + 60_000, timestamp(RECORDS) + 120_000)
+                .plannedRanges();
+        assertNotNull(ranges);
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    void downloadsTheWholeBatchWithoutAnIndex() throws IOException {
+        storeBatch(key, CompressionType.GZIP);
+        objects.remove(key + BatchIndex.EXTENSION);
+        assertNull(plan(key, timestamp(2000), timestamp(2500)).plannedRanges());
+    }
+
+    @Test
+    void downloadsTheWholeBatchWhenTheIndexIsUnreadable() throws IOException {
+        storeBatch(key, CompressionType.GZIP);
+        objects.put(key + BatchIndex.EXTENSION, "not an index".getBytes(StandardCharsets.UTF_8));
+        assertNull(plan(key, timestamp(2000), timestamp(2500)).plannedRanges());
+    }
+
+    // Files the entries the way the archiver does, under every hour their records span
+    private void storeManifest(String writer, ArchiveManifest.Entry... entries) {
+        Map<String, List<ArchiveManifest.Entry>> hours = new HashMap<>();
+        for (ArchiveManifest.Entry entry : entries) {
+            for (String hourPrefix : ArchiveManifest.hourPrefixes(TOPIC, entry)) {
+                hours.computeIfAbsent(hourPrefix, hour -> new ArrayList<>()).add(entry);
+            }
+        }
+        hours.forEach((hourPrefix, hourEntries) -> objects.put(hourPrefix + writer + ArchiveManifest.EXTENSION,
+                ArchiveManifest.encode(hourEntries)));
+    }
+
+    private static ArchiveManifest.Entry entry(long startOffset, long endOffset, long minTimestamp, long maxTimestamp) {
+        return new ArchiveManifest.Entry("topics/" + TOPIC + "/0_" + startOffset + "_" + endOffset + ".kbin", 0,
+                startOffset, endOffset, minTimestamp, maxTimestamp, 1024, false);
+    }
+
+    private List<String> planFromManifests(long fromMillis, long toMillis) throws IOException {
+        if (downloadService != null) {
+            downloadService.shutdown();
+        }
+        downloadService = new DownloadService(s3Client, BUCKET, TOPIC,
+                new FetchRequestRange.StartTimestampBuilder(fromMillis).build(),
+                new FetchRequestRange.EndTimestampBuilder(toMillis).build(), producerService, true, filePaths, 1,
+                KeyLayout.HIVE, true);
+        downloadService.planFromManifests();
+        return Files.readAllLines(Paths.get(filePaths.NetObjectListFile));
+    }
+
+    @Test
+    void plansTheBatchesOverlappingTheRangeFromTheManifests() throws IOException {
+        long hour = FIRST_TIMESTAMP - FIRST_TIMESTAMP % HOUR_MS;
+        ArchiveManifest.Entry before = entry(0, 9, hour, hour + 10_000);
+        // started three hours before the range, a fixed lookback would miss it
+        ArchiveManifest.Entry spanning = entry(10, 19, hour + 20_000, hour + 3 * HOUR_MS + 30 * 60_000);
+        ArchiveManifest.Entry within = entry(20, 29, hour + 3 * HOUR_MS + 40 * 60_000, hour + 3 * HOUR_MS + 50 * 60_000);
+        ArchiveManifest.Entry after = entry(30, 39, hour + 5 * HOUR_MS, hour + 5 * HOUR_MS + 10_000);
+        storeManifest("w1", before, spanning, within, after);
+
+        assertEquals(List.of(spanning.key(), within.key()),
+                planFromManifests(hour + 3 * HOUR_MS + 15 * 60_000, hour + 4 * HOUR_MS - 1));
+        assertEquals(List.of(before.key(), spanning.key()), planFromManifests(hour, hour + 60_000));
+    }
+
+    @Test
+    void plansOnlyTheMergedBatchOfACompactedRun() throws IOException {
+        long hour = FIRST_TIMESTAMP - FIRST_TIMESTAMP % HOUR_MS;
+        ArchiveManifest.Entry first = entry(0, 9, hour, hour + 10_000);
+        ArchiveManifest.Entry second = entry(10, 19, hour + 20_000, hour + 30_000);
+        ArchiveManifest.Entry merged = entry(0, 19, hour, hour + 30_000);
+        storeManifest("w1", first, second);
+        storeManifest("compaction-w2", merged);
+
+        assertEquals(List.of(merged.key()), planFromManifests(hour, hour + HOUR_MS - 1));
+    }
+
+    @Test
+    void failsWhenAManifestIsUnreadable() {
+        objects.put(ArchiveManifest.hourPrefix(TOPIC, FIRST_TIMESTAMP) + "w1" + ArchiveManifest.EXTENSION,
+                "not a manifest".getBytes(StandardCharsets.UTF_8));
+        assertThrows(UncheckedIOException.class, () -> planFromManifests(FIRST_TIMESTAMP, FIRST_TIMESTAMP + 60_000));
+    }
+}
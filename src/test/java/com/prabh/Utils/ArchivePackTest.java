@@ -0,0 +1,126 @@
+package com.prabh.Utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A pack is batches back to back followed by the section table : the table must decode to what was written
+// and the reader must hand back the records of every section, each decoded with its own format and codec
+class ArchivePackTest {
+    private static final long FIRST_TIMESTAMP = 1_700_000_000_000L;
+
+    private static byte[] value(int partition, long offset) {
+        return ("partition " + partition + " offset " + offset).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // A batch as it would have been stored on its own
+    private static byte[] batch(ArchiveFormat format, CompressionType type, int partition, long startOffset,
+                                int records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = type.wrapOutputStream(bytes)) {
+            ArchiveFormat.RecordWriter writer = format.newWriter(out);
+            for (long offset = startOffset; offset < startOffset + records; offset++) {
+                writer.write(offset, FIRST_TIMESTAMP + offset, null, value(partition, offset), List.of());
+            }
+            writer.finish();
+        }
+        return bytes.toByteArray();
+    }
+
+    private record Packed(byte[] pack, List<ArchivePack.Section> sections) {
+    }
+
+    private static Packed pack() throws IOException {
+        ByteArrayOutputStream pack = new ByteArrayOutputStream();
+        List<ArchivePack.Section> sections = new ArrayList<>();
+        Object[][] batches = {
+                {ArchiveFormat.BINARY, CompressionType.GZIP, 0, 100L, 10},
+                {ArchiveFormat.BINARY, CompressionType.NONE, 3, 7L, 1},
+                {ArchiveFormat.TEXT, CompressionType.ZSTD, 1, 0L, 25},
+                {ArchiveFormat.BINARY, CompressionType.LZ4, 2, 5000L, 40},
+        };
+        for (Object[] b : batches) {
+            ArchiveFormat format = (ArchiveFormat) b[0];
+            CompressionType type = (CompressionType) b[1];
+            int partition = (int) b[2];
+            long startOffset = (long) b[3];
+            int records = (int) b[4];
+            byte[] bytes = batch(format, type, partition, startOffset, records);
+            String name = partition + "_" + startOffset + "_" + (startOffset + records - 1)
+                    + (format.extension.isEmpty() ? "" : "." + format.extension)
+                    + (type.extension.isEmpty() ? "" : "." + type.extension);
+            sections.add(new ArchivePack.Section(name, partition, startOffset, startOffset + records - 1,
+                    FIRST_TIMESTAMP + startOffset, FIRST_TIMESTAMP + startOffset + records - 1, pack.size(),
+                    bytes.length));
+            pack.write(bytes);
+        }
+        pack.write(ArchivePack.encodeTable(sections));
+        return new Packed(pack.toByteArray(), sections);
+    }
+
+    @Test
+    void sectionTableRoundTrips() throws IOException {
+        Packed packed = pack();
+        assertEquals(packed.sections, ArchivePack.decodeTable(packed.pack));
+    }
+
+    @Test
+    void emptyTableRoundTrips() throws IOException {
+        assertEquals(List.of(), ArchivePack.decodeTable(ArchivePack.encodeTable(List.of())));
+    }
+
+    @Test
+    void readerReturnsTheRecordsOfEverySection() throws IOException {
+        Packed packed = pack();
+        List<ArchivedRecord> records = new ArrayList<>();
+        try (ArchiveFormat.RecordReader reader = ArchivePack.newReader(packed.pack)) {
+            ArchivedRecord record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+
+        int next = 0;
+        for (ArchivePack.Section section : packed.sections) {
+            boolean binary = ArchiveFormat.fromFileName(section.name()) == ArchiveFormat.BINARY;
+            for (long offset = section.startOffset(); offset <= section.endOffset(); offset++) {
+                ArchivedRecord record = records.get(next++);
+                assertArrayEquals(value(section.partition(), offset), record.value);
+                if (binary) {
+                    assertEquals(offset, record.offset);
+                    assertEquals(FIRST_TIMESTAMP + offset, record.timestamp);
+                }
+            }
+        }
+        assertEquals(next, records.size());
+    }
+
+    @Test
+    void rejectsAnObjectWithoutTrailer() {
+        byte[] notAPack = "just a batch".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> ArchivePack.decodeTable(notAPack));
+        assertThrows(IOException.class, () -> ArchivePack.decodeTable(new byte[3]));
+    }
+
+    @Test
+    void rejectsATruncatedPack() throws IOException {
+        Packed packed = pack();
+        byte[] truncated = Arrays.copyOfRange(packed.pack, 20, packed.pack.length);
+        assertThrows(IOException.class, () -> ArchivePack.decodeTable(truncated));
+    }
+
+    @Test
+    void rejectsASectionOutsideThePack() {
+        List<ArchivePack.Section> sections = List.of(new ArchivePack.Section("0_0_9.kbin", 0, 0, 9,
+                FIRST_TIMESTAMP, FIRST_TIMESTAMP, 0, 1024));
+        assertThrows(IOException.class, () -> ArchivePack.decodeTable(ArchivePack.encodeTable(sections)));
+    }
+}
@@ -0,0 +1,108 @@
+package com.prabh.Utils;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Blocks (and whole batches appended by the compaction) are separately compressed frames of the codec,
+// the readers must decode them back to back as a single stream
+class ParallelCompressionOutputStreamTest {
+    private static final int BLOCK_BYTES = 4 * 1024;
+    private static final int RECORDS = 2000;
+
+    private static byte[] line(Random random, int i) {
+        StringBuilder line = new StringBuilder("{\"record\":").append(i);
+        int fields = 1 + random.nextInt(8);
+        for (int f = 0; f < fields; f++) {
+            line.append(",\"field").append(random.nextInt(20)).append("\":").append(random.nextInt(100000));
+        }
+        return line.append("}\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] decode(CompressionType type, byte[] data, int from, int to) throws IOException {
+        try (InputStream in = type.wrapInputStream(new ByteArrayInputStream(data, from, to - from))) {
+            return in.readAllBytes();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(CompressionType.class)
+    void blocksDecodeAsOneStream(CompressionType type) throws IOException {
+        Random random = new Random(42);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelCompressionOutputStream out = new ParallelCompressionOutputStream(compressed, type,
+                CompressionType.DEFAULT_LEVEL, BLOCK_BYTES);
+        for (int i = 0; i < RECORDS; i++) {
+            byte[] line = line(random, i);
+            raw.write(line);
+            out.write(line);
+            out.endBlockIfFull();
+        }
+        out.close();
+
+        byte[] data = compressed.toByteArray();
+        assertTrue(out.blockPositions().size() > 1, "expected several blocks");
+        assertEquals(data.length, out.size());
+        assertArrayEquals(raw.toByteArray(), decode(type, data, 0, data.length));
+    }
+
+    @ParameterizedTest
+    @EnumSource(CompressionType.class)
+    void everyBlockDecodesOnItsOwn(CompressionType type) throws IOException {
+        Random random = new Random(7);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelCompressionOutputStream out = new ParallelCompressionOutputStream(compressed, type,
+                CompressionType.DEFAULT_LEVEL, BLOCK_BYTES);
+        for (int i = 0; i < RECORDS; i++) {
+            byte[] line = line(random, i);
+            raw.write(line);
+            out.write(line);
+            out.endBlockIfFull();
+        }
+        out.close();
+
+        byte[] data = compressed.toByteArray();
+        List<Long> positions = out.blockPositions();
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        for (int i = 0; i < positions.size(); i++) {
+            int end = i + 1 < positions.size() ? positions.get(i + 1).intValue() : data.length;
+            byte[] block = decode(type, data, positions.get(i).intValue(), end);
+            assertTrue(block.length > 0 && block[block.length - 1] == '\n', "block " + i + " cuts a record");
+            blocks.write(block);
+        }
+        assertArrayEquals(raw.toByteArray(), blocks.toByteArray());
+    }
+
+    @ParameterizedTest
+    @EnumSource(CompressionType.class)
+    void appendedStreamsDecodeAsOne(CompressionType type) throws IOException {
+        Random random = new Random(3);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ByteArrayOutputStream appended = new ByteArrayOutputStream();
+        for (int batch = 0; batch < 3; batch++) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = type.wrapOutputStream(compressed)) {
+                for (int i = 0; i < RECORDS / 3; i++) {
+                    byte[] line = line(random, i);
+                    raw.write(line);
+                    out.write(line);
+                }
+            }
+            appended.write(compressed.toByteArray());
+        }
+        byte[] data = appended.toByteArray();
+        assertArrayEquals(raw.toByteArray(), decode(type, data, 0, data.length));
+    }
+}